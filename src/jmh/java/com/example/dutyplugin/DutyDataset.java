@@ -0,0 +1,69 @@
+package com.example.dutyplugin;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A synthetic server's worth of duty data, shared by the benchmarks. Every player has time
+ * in the first duty, which is the one ranked, plus a few random others. A handful of players
+ * are "on duty" so the leaderboard has live times to merge in, like it would in game.
+ */
+@State(Scope.Benchmark)
+public class DutyDataset {
+
+    private static final long SEED = 20240601L;
+    private static final int LIVE_SESSIONS = 40;
+
+    @Param({"1000", "10000", "100000"})
+    public int players;
+
+    @Param({"6", "50"})
+    public int duties;
+
+    DutyTotals totals;
+    UUID[] uuids;
+    String[] dutyNames;
+    Map<UUID, Long> live;
+    long sessionStart;
+    String savedYaml;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(SEED);
+        totals = new DutyTotals();
+        dutyNames = new String[duties];
+        for (int i = 0; i < duties; i++) {
+            dutyNames[i] = "Duty" + i;
+            totals.register(dutyNames[i]);
+        }
+
+        uuids = new UUID[players];
+        for (int i = 0; i < players; i++) {
+            uuids[i] = new UUID(random.nextLong(), random.nextLong());
+            totals.set(uuids[i], 0, randomTime(random));
+            for (int j = 0; j < 3; j++) {
+                totals.set(uuids[i], random.nextInt(duties), randomTime(random));
+            }
+        }
+
+        live = new HashMap<>();
+        for (int i = 0; i < Math.min(LIVE_SESSIONS, players); i++) {
+            UUID uuid = uuids[random.nextInt(players)];
+            live.put(uuid, totals.get(uuid, 0) + randomTime(random) / 100);
+        }
+        sessionStart = System.currentTimeMillis() - 30 * 60 * 1000L;
+        savedYaml = totals.saveToString();
+    }
+
+    // Up to roughly 500 hours
+    private static long randomTime(Random random) {
+        return 1000L + (long) (random.nextDouble() * 500 * 60 * 60 * 1000);
+    }
+}
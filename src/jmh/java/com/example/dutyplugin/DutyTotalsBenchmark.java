@@ -0,0 +1,81 @@
+package com.example.dutyplugin;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The duty time lookups and persistence the plugin does on the main thread or on every save.
+ * Each benchmark mirrors what the plugin method calls, since the plugin itself can't be
+ * constructed outside a server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DutyTotalsBenchmark {
+
+    // getTotalTime: ordinal lookup, stored total, plus the open session
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long getTotalTime(DutyDataset data) {
+        UUID uuid = data.uuids[ThreadLocalRandom.current().nextInt(data.players)];
+        String dutyName = data.dutyNames[0];
+        long total = data.totals.get(uuid, data.totals.ordinalOf(dutyName));
+        return total + System.currentTimeMillis() - data.sessionStart;
+    }
+
+    // /dutytimes: the first and a deep page with live sessions merged in
+    @Benchmark
+    public void dutyTimesPage(DutyDataset data, Blackhole blackhole) {
+        int ordinal = data.totals.ordinalOf(data.dutyNames[0]);
+        int ranked = data.totals.rankedCount(ordinal, data.live);
+        List<RankedLeaderboard.Entry> first = data.totals.page(ordinal, 0, 10, data.live);
+        List<RankedLeaderboard.Entry> deep = data.totals.page(ordinal, Math.max(0, ranked / 2 - 10), 10, data.live);
+        for (RankedLeaderboard.Entry entry : first) {
+            blackhole.consume(DutyPlugin.formatDuration(entry.getTime()));
+        }
+        blackhole.consume(deep);
+    }
+
+    // /checktime's rank suffix
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int rank(DutyDataset data) {
+        UUID uuid = data.uuids[ThreadLocalRandom.current().nextInt(data.players)];
+        return data.totals.rank(uuid, data.totals.ordinalOf(data.dutyNames[0]), data.live);
+    }
+
+    // What a save writes out
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String save(DutyDataset data) {
+        return data.totals.saveToString();
+    }
+
+    // Loading dutydata.yml at startup
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public DutyTotals load(DutyDataset data) throws Exception {
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.loadFromString(data.savedYaml);
+        DutyTotals totals = new DutyTotals();
+        totals.load(yaml.getConfigurationSection("players"));
+        return totals;
+    }
+}
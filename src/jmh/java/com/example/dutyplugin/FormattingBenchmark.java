@@ -0,0 +1,57 @@
+package com.example.dutyplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message string work: duration formatting, done for every line of /checktime and
+ * /dutytimes, and the webhook JSON, built for every batch sent to Discord.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormattingBenchmark {
+
+    @Param({"1", "10"})
+    public int embeds;
+
+    private long duration;
+    private List<WebhookDispatcher.Message> batch;
+
+    @Setup
+    public void setup() {
+        duration = 123L * 60 * 60 * 1000 + 45 * 60 * 1000 + 6789;
+        batch = new ArrayList<>(embeds);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < embeds; i++) {
+            batch.add(new WebhookDispatcher.Message("**Player" + i + "** went off duty: **Staff**\n"
+                    + "Duration: 1h 23m 45s\nTotal Time: 123h 45m 6s", 16711680, now, false));
+        }
+    }
+
+    @Benchmark
+    public String formatDuration() {
+        return DutyPlugin.formatDuration(duration);
+    }
+
+    @Benchmark
+    public String webhookPayload() {
+        return WebhookDispatcher.buildPayload(batch);
+    }
+}
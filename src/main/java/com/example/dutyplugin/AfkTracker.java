@@ -0,0 +1,183 @@
+package com.example.dutyplugin;
+
+import io.papermc.paper.event.player.AsyncChatEvent;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Notices when players on duty stop playing. Only players on duty have an entry, and chat,
+ * commands and interactions just stamp the time on it, so the listeners cost one map lookup
+ * however busy the server is. Position and look are compared by a sampler every few
+ * seconds, which makes the rest of the work proportional to the number of players on duty.
+ */
+class AfkTracker implements Listener {
+
+    enum Action {
+        END,     // take the player off duty, crediting time up to their last activity
+        EXCLUDE  // keep them on duty but stop counting time until they are active again
+    }
+
+    interface Handler {
+        // Called on the global thread every sample while the player stays idle. Returns the
+        // session they are in afterwards, or null if it was ended.
+        DutySession idle(UUID uuid, DutySession session, long lastActive, boolean first);
+
+        void activeAgain(UUID uuid, DutySession session);
+    }
+
+    private static final double MOVE_THRESHOLD_SQUARED = 0.01; // 0.1 blocks
+    private static final float LOOK_THRESHOLD = 1.0f; // degrees
+
+    private final Server server;
+    private final SessionRegistry sessions;
+    private final TaskScheduler scheduler;
+    private final Map<UUID, Activity> activity = new ConcurrentHashMap<>();
+    private volatile long idleMillis; // 0 when disabled
+    private volatile long sampleMillis = 5000;
+    private volatile Action action = Action.END;
+    private long lastSample; // only touched by the global thread
+
+    public AfkTracker(Server server, SessionRegistry sessions, TaskScheduler scheduler) {
+        this.server = server;
+        this.sessions = sessions;
+        this.scheduler = scheduler;
+    }
+
+    // Called when the config is (re)loaded
+    public void configure(long idleMillis, long sampleMillis, Action action) {
+        this.idleMillis = Math.max(0, idleMillis);
+        this.sampleMillis = Math.max(1000, sampleMillis);
+        this.action = action;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public int idleCount() {
+        int idle = 0;
+        for (Activity a : activity.values()) {
+            if (a.idle) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChat(AsyncChatEvent event) {
+        active(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onCommand(PlayerCommandPreprocessEvent event) {
+        active(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onInteract(PlayerInteractEvent event) {
+        active(event.getPlayer());
+    }
+
+    private void active(Player player) {
+        Activity a = activity.get(player.getUniqueId());
+        if (a != null) {
+            a.lastActive = System.currentTimeMillis();
+        }
+    }
+
+    // Run by a once-a-second global timer; does nothing until the sample interval has passed
+    public void tick(Handler handler) {
+        long idleAfter = idleMillis;
+        if (idleAfter <= 0) {
+            activity.clear();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSample < sampleMillis) {
+            return;
+        }
+        lastSample = now;
+
+        activity.keySet().removeIf(uuid -> !sessions.isOnDuty(uuid));
+        for (Map.Entry<UUID, DutySession> entry : sessions.entries()) {
+            UUID uuid = entry.getKey();
+            DutySession session = entry.getValue();
+            Activity a = activity.computeIfAbsent(uuid, k -> new Activity(now));
+            if (a.session != session) {
+                // A session we haven't seen (not one we restarted), so its start counts as activity
+                a.session = session;
+                a.idle = false;
+                a.lastActive = Math.max(a.lastActive, session.getStartTime());
+            }
+
+            // Position and look have to be read on the player's own region thread; the result is
+            // picked up by the next sample. Offline players never look active.
+            Player player = server.getPlayer(uuid);
+            if (player != null) {
+                scheduler.runForPlayer(player, () -> a.sample(player.getLocation()));
+            }
+
+            long lastActive = a.lastActive;
+            if (now - lastActive >= idleAfter) {
+                DutySession current = handler.idle(uuid, session, lastActive, !a.idle);
+                a.session = current;
+                a.idle = current != null;
+            } else if (a.idle) {
+                a.idle = false;
+                handler.activeAgain(uuid, session);
+            }
+        }
+    }
+
+    private static class Activity {
+        volatile long lastActive;
+        volatile boolean idle; // also read by the metrics gauge
+        DutySession session; // only used by the global thread
+        // Last sampled position and look, only used from the player's region thread
+        UUID world;
+        double x, y, z;
+        float yaw, pitch;
+        boolean sampled;
+
+        Activity(long lastActive) {
+            this.lastActive = lastActive;
+        }
+
+        // Moving or looking around both count as activity
+        void sample(Location location) {
+            World w = location.getWorld();
+            UUID worldId = w != null ? w.getUID() : null;
+            double dx = location.getX() - x;
+            double dy = location.getY() - y;
+            double dz = location.getZ() - z;
+            boolean changed = !sampled || (worldId != null && !worldId.equals(world))
+                    || dx * dx + dy * dy + dz * dz > MOVE_THRESHOLD_SQUARED
+                    || Math.abs(location.getYaw() - yaw) > LOOK_THRESHOLD
+                    || Math.abs(location.getPitch() - pitch) > LOOK_THRESHOLD;
+            if (changed) {
+                if (sampled) {
+                    lastActive = System.currentTimeMillis();
+                }
+                world = worldId;
+                x = location.getX();
+                y = location.getY();
+                z = location.getZ();
+                yaw = location.getYaw();
+                pitch = location.getPitch();
+                sampled = true;
+            }
+        }
+    }
+}
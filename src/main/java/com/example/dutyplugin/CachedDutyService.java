@@ -0,0 +1,104 @@
+package com.example.dutyplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The DutyService handed to other plugins. Snapshots of online players are kept until their
+ * session changes or they are a second old, so a scoreboard asking every tick costs a map
+ * lookup and an identity check; the totals lock is only taken to refresh them. Offline
+ * players go in a small cache of their own, kept for OFFLINE_MAX_AGE_MILLIS. A player whose
+ * times aren't in memory (sharded storage) is read in the background without being loaded into
+ * the resident set; until then they are answered from the leaderboards.
+ */
+class CachedDutyService implements DutyService, Listener {
+
+    private static final long MAX_AGE_MILLIS = 1000;
+    private static final long OFFLINE_MAX_AGE_MILLIS = 30_000;
+    private static final int MAX_OFFLINE = 256;
+
+    private final SessionRegistry sessions;
+    private final DutyTotals totals;
+    private final Supplier<Map<String, DutyType>> dutyTypes;
+    private final Consumer<Runnable> async;
+    private final Map<UUID, DutySnapshot> snapshots = new ConcurrentHashMap<>();
+    private final Map<UUID, DutySnapshot> offline = Collections.synchronizedMap(
+            new LinkedHashMap<UUID, DutySnapshot>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, DutySnapshot> eldest) {
+                    return size() > MAX_OFFLINE;
+                }
+            });
+    private final Set<UUID> reading = ConcurrentHashMap.newKeySet();
+
+    public CachedDutyService(SessionRegistry sessions, DutyTotals totals, Supplier<Map<String, DutyType>> dutyTypes,
+                             Consumer<Runnable> async) {
+        this.sessions = sessions;
+        this.totals = totals;
+        this.dutyTypes = dutyTypes;
+        this.async = async;
+    }
+
+    @Override
+    public DutySnapshot getSnapshot(UUID uuid) {
+        long now = System.currentTimeMillis();
+        DutySession session = sessions.get(uuid);
+        boolean online = Bukkit.getPlayer(uuid) != null;
+        Map<UUID, DutySnapshot> cache = online ? snapshots : offline;
+        DutySnapshot snapshot = cache.get(uuid);
+        if (snapshot != null && snapshot.session == session
+                && now - snapshot.getTakenAt() < (online ? MAX_AGE_MILLIS : OFFLINE_MAX_AGE_MILLIS)) {
+            return snapshot;
+        }
+        if (totals.isResident(uuid)) {
+            snapshot = new DutySnapshot(uuid, session, totals.timesByName(uuid), now);
+            cache.put(uuid, snapshot);
+            return snapshot;
+        }
+
+        // Never read a shard on the caller's thread, which is usually the main one
+        if (reading.add(uuid)) {
+            async.accept(() -> {
+                try {
+                    cache.put(uuid, new DutySnapshot(uuid, sessions.get(uuid), totals.storedTimes(uuid),
+                            System.currentTimeMillis()));
+                } finally {
+                    reading.remove(uuid);
+                }
+            });
+        }
+        if (snapshot != null && snapshot.session == session) {
+            return snapshot;
+        }
+        return new DutySnapshot(uuid, session, totals.rankedTimes(uuid), now);
+    }
+
+    @Override
+    public int getOnDutyCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public Set<String> getDutyNames() {
+        return Collections.unmodifiableSet(dutyTypes.get().keySet());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        UUID uuid = event.getPlayer().getUniqueId();
+        snapshots.remove(uuid);
+        offline.remove(uuid); // may be older than what they leave with
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.dutyplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exchanges batches through an SQLite file that every server can open, such as one on the
+ * same machine or a shared volume. Published batches are appended to sync_batches and read
+ * by the other servers every poll; each server also keeps its full state in sync_state,
+ * which servers read when they start or fall behind, so old batches can be deleted.
+ */
+class DatabaseSyncTransport implements SyncTransport {
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS sync_batches (" +
+            "seq INTEGER PRIMARY KEY AUTOINCREMENT, server TEXT NOT NULL, created_ms INTEGER NOT NULL, payload BLOB NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS idx_sync_batches_created ON sync_batches (created_ms)",
+        "CREATE TABLE IF NOT EXISTS sync_state (" +
+            "server TEXT PRIMARY KEY, updated_ms INTEGER NOT NULL, payload BLOB NOT NULL)"
+    };
+
+    private static final String INSERT_BATCH = "INSERT INTO sync_batches (server, created_ms, payload) VALUES (?, ?, ?)";
+    private static final String SELECT_BATCHES =
+        "SELECT seq, payload FROM sync_batches WHERE seq > ? AND server <> ? ORDER BY seq";
+    private static final String SELECT_STATES = "SELECT payload FROM sync_state WHERE server <> ?";
+    private static final String SELECT_OWN_STATE = "SELECT payload FROM sync_state WHERE server = ?";
+    private static final String SELECT_OWN_BATCHES = "SELECT payload FROM sync_batches WHERE server = ? ORDER BY seq";
+    private static final String UPSERT_STATE =
+        "INSERT INTO sync_state (server, updated_ms, payload) VALUES (?, ?, ?) " +
+        "ON CONFLICT (server) DO UPDATE SET updated_ms = excluded.updated_ms, payload = excluded.payload";
+    private static final String DELETE_OLD_BATCHES = "DELETE FROM sync_batches WHERE created_ms < ?";
+
+    private static final long STATE_INTERVAL_MILLIS = 60_000;
+    private static final long RETENTION_MILLIS = 10 * 60_000;
+
+    private final File databaseFile;
+    private final Logger logger;
+    private Connection connection;
+    private String serverId;
+    private Receiver receiver;
+    private long lastSeq;
+    private long lastStateWrite;
+    private boolean warned;
+
+    public DatabaseSyncTransport(File databaseFile, Logger logger) {
+        this.databaseFile = databaseFile;
+        this.logger = logger;
+    }
+
+    // The last full state this server wrote, plus the batches it published after it
+    @Override
+    public List<byte[]> previousState(String serverId) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        try {
+            connect();
+            try (PreparedStatement select = connection.prepareStatement(SELECT_OWN_STATE)) {
+                select.setString(1, serverId);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        frames.addAll(DutySync.unframe(rs.getBytes(1)));
+                    }
+                }
+            }
+            try (PreparedStatement select = connection.prepareStatement(SELECT_OWN_BATCHES)) {
+                select.setString(1, serverId);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        frames.add(rs.getBytes(1));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read this server's sync state from " + databaseFile.getName(), e);
+        }
+        return frames;
+    }
+
+    @Override
+    public void open(String serverId, Receiver receiver) throws IOException {
+        this.serverId = serverId;
+        this.receiver = receiver;
+        try {
+            connect();
+            catchUp();
+            writeState(System.currentTimeMillis());
+        } catch (SQLException e) {
+            throw new IOException("Could not open " + databaseFile.getName(), e);
+        }
+    }
+
+    private void connect() throws SQLException {
+        if (connection != null) {
+            return;
+        }
+        File folder = databaseFile.getAbsoluteFile().getParentFile();
+        if (folder != null) {
+            folder.mkdirs();
+        }
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA busy_timeout=5000");
+            for (String sql : SCHEMA) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    // Reads every other server's full state, then carries on from the newest batch
+    private void catchUp() throws SQLException, IOException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COALESCE(MAX(seq), 0) FROM sync_batches")) {
+            lastSeq = rs.next() ? rs.getLong(1) : 0;
+        }
+        try (PreparedStatement select = connection.prepareStatement(SELECT_STATES)) {
+            select.setString(1, serverId);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    for (byte[] batch : DutySync.unframe(rs.getBytes(1))) {
+                        receiver.received(batch);
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeState(long now) throws SQLException {
+        try (PreparedStatement upsert = connection.prepareStatement(UPSERT_STATE)) {
+            upsert.setString(1, serverId);
+            upsert.setLong(2, now);
+            upsert.setBytes(3, DutySync.frame(receiver.fullState()));
+            upsert.executeUpdate();
+        }
+        lastStateWrite = now;
+    }
+
+    @Override
+    public void publish(byte[] batch) {
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_BATCH)) {
+            insert.setString(1, serverId);
+            insert.setLong(2, System.currentTimeMillis());
+            insert.setBytes(3, batch);
+            insert.executeUpdate();
+            warned = false;
+        } catch (SQLException e) {
+            // The state written on the next interval includes this batch
+            warn("Could not publish a sync batch", e);
+        }
+    }
+
+    @Override
+    public void poll() {
+        long now = System.currentTimeMillis();
+        try {
+            // Batches we hadn't read yet were deleted, so start again from the full states
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT MIN(seq) FROM sync_batches")) {
+                if (rs.next() && rs.getLong(1) > lastSeq + 1) {
+                    catchUp();
+                }
+            }
+            try (PreparedStatement select = connection.prepareStatement(SELECT_BATCHES)) {
+                select.setLong(1, lastSeq);
+                select.setString(2, serverId);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        lastSeq = rs.getLong(1);
+                        receiver.received(rs.getBytes(2));
+                    }
+                }
+            }
+            if (now - lastStateWrite >= STATE_INTERVAL_MILLIS) {
+                writeState(now);
+                try (PreparedStatement delete = connection.prepareStatement(DELETE_OLD_BATCHES)) {
+                    delete.setLong(1, now - RETENTION_MILLIS);
+                    delete.executeUpdate();
+                }
+            }
+            warned = false;
+        } catch (SQLException | IOException e) {
+            warn("Could not read sync batches", e);
+        }
+    }
+
+    private void warn(String message, Exception e) {
+        // Once until it works again, since the shared file may be busy or unreachable for a while
+        if (!warned) {
+            logger.log(Level.WARNING, message + " from " + databaseFile.getPath(), e);
+            warned = true;
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "shared database " + databaseFile.getPath() + ", read up to batch " + lastSeq;
+    }
+
+    @Override
+    public void close() {
+        if (connection == null) {
+            return;
+        }
+        // Only connected to look for a previous state, when sync failed to start
+        if (receiver != null) {
+            try {
+                writeState(System.currentTimeMillis());
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Could not save sync state to " + databaseFile.getPath(), e);
+            }
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {}
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.dutyplugin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Cold storage for duty times that DutyCompactor took out of the live data. Players are
+ * spread over up to 256 deflated files under archive/ by the first two characters of their
+ * UUID, so looking one player up or archiving a batch only reads and rewrites the files
+ * involved. Archiving adds to whatever the player already has archived.
+ * <p>
+ * Storage writes its side of a move in the background, so each move is recorded in the
+ * player's file as pending, with the totals storage held before it, until storage confirms
+ * the write. A move still pending at the next start is settled by comparing those totals
+ * with what storage has: unchanged means storage never wrote it, and the move is undone.
+ */
+class DutyArchive {
+
+    private static final int VERSION = 1;
+
+    private final File folder;
+
+    public DutyArchive(File folder) {
+        this.folder = folder;
+    }
+
+    // The player's archived times by duty name, without any being restored; empty if they have none
+    public synchronized Map<String, Long> get(UUID uuid) throws IOException {
+        Bucket bucket = readBucket(bucketOf(uuid));
+        Map<String, Long> times = new HashMap<>(bucket.players.getOrDefault(uuid, new HashMap<>()));
+        for (Move move : bucket.pending) {
+            if (move.restore && move.uuid.equals(uuid)) {
+                subtract(times, move.times);
+            }
+        }
+        return times;
+    }
+
+    // Adds each player's times to their archived ones, pending until storage has dropped them
+    // from the live totals (which held exactly these times); returns the bytes written
+    public synchronized long add(Map<UUID, Map<String, Long>> times, long id) throws IOException {
+        Map<String, Map<UUID, Map<String, Long>>> byBucket = new HashMap<>();
+        for (Map.Entry<UUID, Map<String, Long>> entry : times.entrySet()) {
+            byBucket.computeIfAbsent(bucketOf(entry.getKey()), bucket -> new HashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        long written = 0;
+        for (Map.Entry<String, Map<UUID, Map<String, Long>>> entry : byBucket.entrySet()) {
+            Bucket bucket = readBucket(entry.getKey());
+            for (Map.Entry<UUID, Map<String, Long>> added : entry.getValue().entrySet()) {
+                Map<String, Long> archived = bucket.players.computeIfAbsent(added.getKey(), uuid -> new HashMap<>());
+                for (Map.Entry<String, Long> time : added.getValue().entrySet()) {
+                    archived.merge(time.getKey(), time.getValue(), Long::sum);
+                }
+                bucket.pending.add(new Move(id, added.getKey(), false, added.getValue(), added.getValue()));
+            }
+            written += writeBucket(entry.getKey(), bucket);
+        }
+        return written;
+    }
+
+    // The player's archived times for the given duties that can be restored; none while an
+    // earlier move of theirs is pending
+    public synchronized Map<String, Long> restorable(UUID uuid, Set<String> dutyNames) throws IOException {
+        Map<String, Long> times = new HashMap<>();
+        Bucket bucket = readBucket(bucketOf(uuid));
+        Map<String, Long> archived = bucket.players.get(uuid);
+        if (archived == null || bucket.hasPending(uuid)) {
+            return times;
+        }
+        for (Map.Entry<String, Long> time : archived.entrySet()) {
+            if (dutyNames.contains(time.getKey())) {
+                times.put(time.getKey(), time.getValue());
+            }
+        }
+        return times;
+    }
+
+    // Records that the times are being put back into the live totals, which held before until
+    // then. They stay archived until storage has them. Returns false, recording nothing, if they
+    // are no longer all archived or another move of the player's is pending.
+    public synchronized boolean restoring(UUID uuid, Map<String, Long> times, Map<String, Long> before, long id) throws IOException {
+        String name = bucketOf(uuid);
+        Bucket bucket = readBucket(name);
+        Map<String, Long> archived = bucket.players.get(uuid);
+        if (archived == null || bucket.hasPending(uuid)) {
+            return false;
+        }
+        for (Map.Entry<String, Long> time : times.entrySet()) {
+            if (archived.getOrDefault(time.getKey(), 0L) < time.getValue()) {
+                return false;
+            }
+        }
+        bucket.pending.add(new Move(id, uuid, true, times, before));
+        writeBucket(name, bucket);
+        return true;
+    }
+
+    // Finishes the players' pending moves with this id. written says whether storage wrote its
+    // side: if so restored times leave the archive, otherwise archived times do.
+    public synchronized void settle(long id, Collection<UUID> uuids, boolean written) throws IOException {
+        Set<String> names = new HashSet<>();
+        for (UUID uuid : uuids) {
+            names.add(bucketOf(uuid));
+        }
+        Set<UUID> players = new HashSet<>(uuids);
+        for (String name : names) {
+            Bucket bucket = readBucket(name);
+            boolean changed = false;
+            Iterator<Move> iterator = bucket.pending.iterator();
+            while (iterator.hasNext()) {
+                Move move = iterator.next();
+                if (move.id == id && players.contains(move.uuid)) {
+                    iterator.remove();
+                    bucket.finish(move, written);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                writeBucket(name, bucket);
+            }
+        }
+    }
+
+    // Settles the moves a crash left pending against the totals storage has now. Call once the
+    // live totals are loaded and before anything changes them; returns how many were settled.
+    public synchronized int recover(Function<UUID, Map<String, Long>> stored) throws IOException {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".dat"));
+        if (files == null) {
+            return 0;
+        }
+        int settled = 0;
+        for (File file : files) {
+            String name = file.getName().substring(0, file.getName().length() - ".dat".length());
+            Bucket bucket = readBucket(name);
+            if (bucket.pending.isEmpty()) {
+                continue;
+            }
+            for (Move move : bucket.pending) {
+                Map<String, Long> now = stored.apply(move.uuid);
+                boolean written = false;
+                for (Map.Entry<String, Long> before : move.before.entrySet()) {
+                    if (now.getOrDefault(before.getKey(), 0L).longValue() != before.getValue()) {
+                        written = true;
+                    }
+                }
+                bucket.finish(move, written);
+                settled++;
+            }
+            bucket.pending.clear();
+            writeBucket(name, bucket);
+        }
+        return settled;
+    }
+
+    // Bytes on disk, for stats
+    public long getBytes() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".dat"));
+        long bytes = 0;
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static String bucketOf(UUID uuid) {
+        return uuid.toString().substring(0, 2);
+    }
+
+    private static void subtract(Map<String, Long> from, Map<String, Long> times) {
+        for (Map.Entry<String, Long> time : times.entrySet()) {
+            Long left = from.merge(time.getKey(), -time.getValue(), Long::sum);
+            if (left != null && left <= 0) {
+                from.remove(time.getKey());
+            }
+        }
+    }
+
+    private static Map<String, Long> readTimes(DataInputStream in) throws IOException {
+        int duties = in.readInt();
+        Map<String, Long> times = new HashMap<>();
+        for (int d = 0; d < duties; d++) {
+            times.put(in.readUTF(), in.readLong());
+        }
+        return times;
+    }
+
+    private static void writeTimes(DataOutputStream out, Map<String, Long> times) throws IOException {
+        out.writeInt(times.size());
+        for (Map.Entry<String, Long> time : times.entrySet()) {
+            out.writeUTF(time.getKey());
+            out.writeLong(time.getValue());
+        }
+    }
+
+    private Bucket readBucket(String name) throws IOException {
+        Bucket bucket = new Bucket();
+        File file = new File(folder, name + ".dat");
+        if (!file.isFile()) {
+            return bucket;
+        }
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new BufferedInputStream(new FileInputStream(file))))) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported " + file.getName() + " version " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                bucket.players.put(new UUID(in.readLong(), in.readLong()), readTimes(in));
+            }
+            int pending = in.readInt();
+            for (int i = 0; i < pending; i++) {
+                long id = in.readLong();
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                boolean restore = in.readBoolean();
+                bucket.pending.add(new Move(id, uuid, restore, readTimes(in), readTimes(in)));
+            }
+        }
+        return bucket;
+    }
+
+    // Deletes the file once nobody is left in it; returns the bytes written
+    private long writeBucket(String name, Bucket bucket) throws IOException {
+        Path target = new File(folder, name + ".dat").toPath();
+        if (bucket.players.isEmpty() && bucket.pending.isEmpty()) {
+            Files.deleteIfExists(target);
+            return 0;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            out.writeInt(VERSION);
+            out.writeInt(bucket.players.size());
+            for (Map.Entry<UUID, Map<String, Long>> entry : bucket.players.entrySet()) {
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                writeTimes(out, entry.getValue());
+            }
+            out.writeInt(bucket.pending.size());
+            for (Move move : bucket.pending) {
+                out.writeLong(move.id);
+                out.writeLong(move.uuid.getMostSignificantBits());
+                out.writeLong(move.uuid.getLeastSignificantBits());
+                out.writeBoolean(move.restore);
+                writeTimes(out, move.times);
+                writeTimes(out, move.before);
+            }
+        } finally {
+            deflater.end();
+        }
+        Files.createDirectories(folder.toPath());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return bytes.size();
+    }
+
+    // One file's players and the moves of theirs storage hasn't confirmed yet
+    private static class Bucket {
+        final Map<UUID, Map<String, Long>> players = new HashMap<>();
+        final List<Move> pending = new ArrayList<>();
+
+        boolean hasPending(UUID uuid) {
+            for (Move move : pending) {
+                if (move.uuid.equals(uuid)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Takes a finished move's times out of the archive where they no longer belong
+        void finish(Move move, boolean written) {
+            if (move.restore != written) {
+                return;
+            }
+            Map<String, Long> archived = players.get(move.uuid);
+            if (archived != null) {
+                subtract(archived, move.times);
+                if (archived.isEmpty()) {
+                    players.remove(move.uuid);
+                }
+            }
+        }
+    }
+
+    // Times moved into (or, if restore, out of) the archive; before is the player's live totals
+    // of those duties before the move, as storage will still have them if it never wrote it
+    private static class Move {
+        final long id;
+        final UUID uuid;
+        final boolean restore;
+        final Map<String, Long> times;
+        final Map<String, Long> before;
+
+        Move(long id, UUID uuid, boolean restore, Map<String, Long> times, Map<String, Long> before) {
+            this.id = id;
+            this.uuid = uuid;
+            this.restore = restore;
+            this.times = times;
+            this.before = before;
+        }
+    }
+}
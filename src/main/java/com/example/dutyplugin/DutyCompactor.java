@@ -0,0 +1,588 @@
+package com.example.dutyplugin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps duty data from only ever growing. A pass runs on its own thread and walks the stored
+ * totals a batch of players at a time, pausing between batches and only holding the totals
+ * lock for one player at a time. Players who haven't been on duty for archiveAfterDays, and
+ * the times of duties that are no longer in config.yml, are moved to the DutyArchive; then
+ * storage deletes any zero totals. Archived times come back when the player next goes on duty,
+ * and /checktime reads them from the archive until then.
+ * The day each player was last on duty is kept in compaction.dat, with the load time of the
+ * last start that compacted anything, so the next start can say how much faster it loaded.
+ */
+class DutyCompactor {
+
+    private static final int STATE_VERSION = 1;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final File stateFile;
+    private final DutyArchive archive;
+    private final DutyTotals totals;
+    private final DutyStorage storage;
+    private final DutyRollups rollups;
+    private final WriteBehindPersister rollupPersister;
+    private final SessionRegistry sessions;
+    private final Supplier<Set<String>> dutyNames; // duties in the current config
+    private final Logger logger;
+    private final LatencyHistogram saveTimer;
+    private final LatencyHistogram passTimer;
+    private final int archiveAfterDays; // 0 never archives players
+    private final boolean archiveRemovedDuties;
+    private final boolean shared; // times are synced with other servers, so only zero totals are pruned
+    private final int batchSize;
+    private final long pauseMillis;
+    private final long reportDelayMillis;
+
+    // Guarded by this
+    private final Map<UUID, Integer> lastActiveDays = new HashMap<>(); // days since the epoch, UTC
+    private boolean activityChanged;
+    private long loadMillis;
+    private long loadMillisBefore = -1; // at the last start that compacted anything, -1 if none yet
+    private boolean compactedThisStart;
+
+    private volatile boolean closing;
+    private volatile List<String> lastReport = new ArrayList<>();
+    private volatile long archiveBytes;
+    private ScheduledThreadPoolExecutor executor;
+    private DutyDataTransfer transfers;
+
+    public DutyCompactor(File dataFolder, DutyTotals totals, DutyStorage storage, DutyRollups rollups,
+                         WriteBehindPersister rollupPersister, SessionRegistry sessions,
+                         Supplier<Set<String>> dutyNames, Logger logger, LatencyHistogram saveTimer, LatencyHistogram passTimer,
+                         int archiveAfterDays, boolean archiveRemovedDuties, boolean shared, int batchSize,
+                         long pauseMillis, long reportDelayMillis) {
+        this.stateFile = new File(dataFolder, "compaction.dat");
+        this.archive = new DutyArchive(new File(dataFolder, "archive"));
+        this.totals = totals;
+        this.storage = storage;
+        this.rollups = rollups;
+        this.rollupPersister = rollupPersister;
+        this.sessions = sessions;
+        this.dutyNames = dutyNames;
+        this.logger = logger;
+        this.saveTimer = saveTimer;
+        this.passTimer = passTimer;
+        this.archiveAfterDays = Math.max(0, archiveAfterDays);
+        this.archiveRemovedDuties = archiveRemovedDuties;
+        this.shared = shared;
+        this.batchSize = Math.max(1, batchSize);
+        this.pauseMillis = Math.max(0, pauseMillis);
+        this.reportDelayMillis = Math.max(1000L, reportDelayMillis);
+    }
+
+    // Reads compaction.dat. loadMillis is how long duty data took to load at this start.
+    public void load(long loadMillis) throws IOException {
+        synchronized (this) {
+            this.loadMillis = loadMillis;
+        }
+        // Before anything changes the totals, which are what storage has right now
+        try {
+            int settled = archive.recover(totals::storedTimes);
+            if (settled > 0) {
+                logger.info("Settled " + settled + " archive moves left unfinished when the server last stopped.");
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not settle the unfinished archive moves; trying again at the next start", e);
+        }
+        archiveBytes = archive.getBytes();
+        if (!stateFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            int version = in.readInt();
+            if (version != STATE_VERSION) {
+                throw new IOException("Unsupported " + stateFile.getName() + " version " + version);
+            }
+            synchronized (this) {
+                loadMillisBefore = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    lastActiveDays.put(new UUID(in.readLong(), in.readLong()), in.readInt());
+                }
+            }
+        }
+        if (loadMillisBefore >= 0) {
+            logger.info("Duty data loaded in " + loadMillis + "ms (" + loadMillisBefore + "ms at the start before the last compaction).");
+        }
+    }
+
+    // Exports and imports never run at the same time as a pass. An interval of 0 only compacts on request.
+    public void start(DutyDataTransfer transfers, long intervalMillis) {
+        this.transfers = transfers;
+        executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        if (intervalMillis > 0) {
+            // Not straight away, while the server is still starting up
+            long firstDelay = Math.min(intervalMillis, TimeUnit.MINUTES.toMillis(10));
+            executor.scheduleWithFixedDelay(this::runPass, firstDelay, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        executor.scheduleWithFixedDelay(this::saveQuietly, 5, 5, TimeUnit.MINUTES);
+    }
+
+    // Runs a pass now. Completes with null if an export or import was running.
+    public CompletableFuture<Pass> compactNow() {
+        return CompletableFuture.supplyAsync(this::runPass, executor);
+    }
+
+    // The player went on or off duty. Cheap enough for the main thread.
+    public synchronized void touch(UUID uuid) {
+        Integer today = today();
+        if (!today.equals(lastActiveDays.put(uuid, today))) {
+            activityChanged = true;
+        }
+    }
+
+    // Puts the player's archived times of configured duties back. Called off the main thread when they go on duty.
+    public void restore(UUID uuid) {
+        long id = ThreadLocalRandom.current().nextLong();
+        Map<String, Long> restored;
+        try {
+            restored = archive.restorable(uuid, dutyNames.get());
+            if (restored.isEmpty()) {
+                return;
+            }
+            // They stay archived until storage has written them back
+            Map<String, Long> before = totals.storedTimes(uuid);
+            before.keySet().retainAll(restored.keySet());
+            if (!archive.restoring(uuid, restored, before, id)) {
+                return;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read the archived duty times of " + uuid, e);
+            return;
+        }
+        // Added, not set, so a session that ended meanwhile is kept
+        List<UUID> uuids = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Long> newTotals = new ArrayList<>();
+        for (Map.Entry<String, Long> time : restored.entrySet()) {
+            uuids.add(uuid);
+            names.add(time.getKey());
+            newTotals.add(totals.add(uuid, totals.register(time.getKey()), time.getValue()));
+        }
+        storage.totalsSet(uuids, names, newTotals);
+        settleWhenWritten(id, Collections.singletonList(uuid));
+    }
+
+    // The player's archived time for a duty, 0 if none. Reads a file; call off the main thread.
+    public long archivedTime(UUID uuid, String dutyName) throws IOException {
+        return archive.get(uuid).getOrDefault(dutyName, 0L);
+    }
+
+    public List<String> describeStats() {
+        List<String> lines = new ArrayList<>(lastReport);
+        if (lines.isEmpty()) {
+            lines.add("Compaction: no pass since the server started; archive " + archiveBytes / 1024 + " KB");
+        }
+        synchronized (this) {
+            if (loadMillisBefore >= 0) {
+                lines.add("Load: " + loadMillis + "ms at this start, " + loadMillisBefore + "ms at the start before the last compaction");
+            }
+        }
+        return lines;
+    }
+
+    // Stops any pass at its next batch and saves when players were last on duty. Blocks.
+    public void close() {
+        closing = true;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        saveQuietly();
+    }
+
+    // What one pass did
+    static class Pass {
+        int playersArchived;
+        int removedDutyTimes; // times of duties no longer in the config, not counting those of archived players
+        int zeroTotals;
+        long archiveBytesWritten;
+        long storedBytesBefore;
+        long savesBefore;
+        long saveNanosBefore;
+        long savesAfter;
+        long saveNanosAfter;
+        long millis;
+
+        boolean changedAnything() {
+            return playersArchived > 0 || removedDutyTimes > 0 || zeroTotals > 0;
+        }
+    }
+
+    // On the compactor thread. Returns null if an export or import was running.
+    private Pass runPass() {
+        if (!transfers.tryStart()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Pass pass = new Pass();
+        try {
+            pass.savesBefore = saveTimer.getCount();
+            pass.saveNanosBefore = saveTimer.getSumNanos();
+            pass.storedBytesBefore = storage.getStoredBytes();
+            if (!shared) {
+                archiveAndDrop(pass);
+            }
+            pass.zeroTotals = storage.pruneZeroTotals();
+        } catch (InterruptedIOException e) {
+            logger.info("Stopped compacting duty data as the server is stopping.");
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not compact duty data", e);
+        } finally {
+            transfers.finish();
+        }
+        pass.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        passTimer.recordSince(start);
+        pass.savesAfter = saveTimer.getCount();
+        pass.saveNanosAfter = saveTimer.getSumNanos();
+
+        if (pass.changedAnything()) {
+            synchronized (this) {
+                compactedThisStart = true;
+                activityChanged = true;
+            }
+        }
+        saveQuietly();
+        // Sizes and save times only change once storage has written the changes
+        if (!closing) {
+            executor.schedule(() -> report(pass), reportDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return pass;
+    }
+
+    private void archiveAndDrop(Pass pass) throws IOException {
+        if (archiveAfterDays == 0 && !archiveRemovedDuties) {
+            return;
+        }
+        int today = today();
+        Walk walk = new Walk(pass, dutyNames.get(), today, archiveAfterDays > 0 ? today - archiveAfterDays : Integer.MIN_VALUE);
+        if (!storage.walkTotals(walk)) {
+            // Everyone is in memory; copied a player at a time so the lock is only held briefly
+            for (UUID uuid : totals.playerIds()) {
+                long[] times = totals.residentTimes(uuid);
+                if (times == null) {
+                    continue; // reset meanwhile
+                }
+                for (int ordinal = 0; ordinal < times.length; ordinal++) {
+                    if (times[ordinal] != 0) {
+                        walk.visit(uuid, totals.nameOf(ordinal), times[ordinal]);
+                    }
+                }
+            }
+        }
+        walk.archiveInactive();
+        dropRemovedDuties(walk.removedDuties, walk.withRemovedDuties, pass);
+
+        // Forget players with no time left, unless they are on duty now
+        synchronized (this) {
+            if (lastActiveDays.keySet().removeIf(uuid -> !walk.seen.contains(uuid) && sessions.get(uuid) == null)) {
+                activityChanged = true;
+            }
+        }
+    }
+
+    // Sorts the stored totals into players to archive and players with times of removed duties, a batch of players at a time
+    private class Walk implements DutyStorage.TotalVisitor {
+        final Pass pass;
+        final Set<String> configured;
+        final int today;
+        final int cutoff; // players last on duty before this day are archived
+        final Set<UUID> seen = new HashSet<>();
+        final List<UUID> inactive = new ArrayList<>();
+        final Set<String> removedDuties = new HashSet<>();
+        final Set<UUID> withRemovedDuties = new HashSet<>(); // active or not, as not every inactive player gets archived
+        UUID current;
+        boolean currentInactive;
+
+        Walk(Pass pass, Set<String> configured, int today, int cutoff) {
+            this.pass = pass;
+            this.configured = configured;
+            this.today = today;
+            this.cutoff = cutoff;
+        }
+
+        // A player's totals are visited one after another
+        @Override
+        public void visit(UUID uuid, String dutyName, long total) throws IOException {
+            if (!uuid.equals(current)) {
+                current = uuid;
+                currentInactive = seen.add(uuid) && isInactive(uuid, today, cutoff);
+                if (currentInactive) {
+                    inactive.add(uuid);
+                }
+                if (seen.size() % batchSize == 0) {
+                    archiveInactive();
+                    pause();
+                }
+            }
+            if (archiveRemovedDuties && !configured.contains(dutyName)) {
+                removedDuties.add(dutyName);
+                withRemovedDuties.add(uuid);
+            }
+        }
+
+        void archiveInactive() throws IOException {
+            if (!inactive.isEmpty()) {
+                archivePlayers(inactive, cutoff, pass);
+                inactive.clear();
+            }
+        }
+    }
+
+    // Players a pass sees for the first time are counted as active from today
+    private synchronized boolean isInactive(UUID uuid, int today, int cutoff) {
+        Integer day = lastActiveDays.get(uuid);
+        if (day == null) {
+            lastActiveDays.put(uuid, today);
+            activityChanged = true;
+            return false;
+        }
+        return day < cutoff;
+    }
+
+    private synchronized boolean stillInactive(UUID uuid, int cutoff) {
+        Integer day = lastActiveDays.get(uuid);
+        return day != null && day < cutoff;
+    }
+
+    // Archived before they leave the live totals, and pending until storage has dropped them,
+    // so a crash in between neither loses nor doubles their time
+    private void archivePlayers(List<UUID> batch, int cutoff, Pass pass) throws IOException {
+        Map<UUID, Map<String, Long>> times = new HashMap<>();
+        for (UUID uuid : batch) {
+            if (sessions.get(uuid) == null && stillInactive(uuid, cutoff)) {
+                Map<String, Long> stored = totals.storedTimes(uuid);
+                if (!stored.isEmpty()) {
+                    times.put(uuid, stored);
+                }
+            }
+        }
+        if (times.isEmpty()) {
+            return;
+        }
+        long id = ThreadLocalRandom.current().nextLong();
+        try {
+            pass.archiveBytesWritten += archive.add(times, id);
+        } catch (IOException e) {
+            settleQuietly(id, times.keySet(), false);
+            throw e;
+        }
+
+        List<UUID> taken = new ArrayList<>();
+        List<UUID> kept = new ArrayList<>();
+        for (Map.Entry<UUID, Map<String, Long>> player : times.entrySet()) {
+            UUID uuid = player.getKey();
+            // Checked again with the totals locked, so a session can't be credited between the check
+            // and the removal, and storage hears of the reset before any session credited after it
+            Map<String, Long> removed = totals.takeIf(uuid, current -> {
+                if (sessions.get(uuid) != null || !stillInactive(uuid, cutoff) || !current.equals(player.getValue())) {
+                    return false;
+                }
+                storage.playerReset(uuid);
+                return true;
+            });
+            (removed.isEmpty() ? kept : taken).add(uuid);
+        }
+        if (!taken.isEmpty()) {
+            settleWhenWritten(id, taken);
+        }
+        if (!kept.isEmpty()) {
+            archive.settle(id, kept, false);
+        }
+        synchronized (this) {
+            lastActiveDays.keySet().removeAll(taken);
+            activityChanged = true;
+        }
+        pass.playersArchived += taken.size();
+    }
+
+    // Archives and drops the duties that are still missing from the config, unless someone is on duty for one
+    private void dropRemovedDuties(Set<String> removedDuties, Set<UUID> players, Pass pass) throws IOException {
+        Set<String> removed = new HashSet<>(removedDuties);
+        removed.removeAll(dutyNames.get());
+        for (Map.Entry<UUID, DutySession> entry : sessions.entries()) {
+            removed.remove(entry.getValue().getDutyName());
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+
+        // Read now, not during the walk: with nobody on duty for them, nothing adds to these
+        // duties any more, so this is exactly what the reset drops. Players archived by this
+        // pass have nothing left to read.
+        Map<UUID, Map<String, Long>> archived = new HashMap<>();
+        int count = 0;
+        int read = 0;
+        for (UUID uuid : players) {
+            Map<String, Long> times = totals.storedTimes(uuid);
+            times.keySet().retainAll(removed);
+            if (!times.isEmpty()) {
+                archived.put(uuid, times);
+                count += times.size();
+            }
+            if (++read % batchSize == 0) {
+                pause();
+            }
+        }
+        long id = ThreadLocalRandom.current().nextLong();
+        try {
+            pass.archiveBytesWritten += archive.add(archived, id);
+        } catch (IOException e) {
+            settleQuietly(id, archived.keySet(), false);
+            throw e;
+        }
+        for (String dutyName : removed) {
+            int ordinal = totals.ordinalOf(dutyName);
+            totals.resetDuty(ordinal);
+            rollups.removeDutyAll(ordinal);
+            storage.dutyResetForAll(dutyName);
+        }
+        rollupPersister.markDirty();
+        settleWhenWritten(id, archived.keySet());
+        pass.removedDutyTimes = count;
+        logger.info("Archived " + count + " times of duties no longer in config.yml: " + String.join(", ", removed));
+    }
+
+    // Everything reported before this call includes the move's side of storage
+    private void settleWhenWritten(long id, Collection<UUID> uuids) {
+        List<UUID> players = new ArrayList<>(uuids);
+        storage.whenWritten().thenRun(() -> settleQuietly(id, players, true));
+    }
+
+    // A move left pending is settled at the next start instead
+    private void settleQuietly(long id, Collection<UUID> uuids, boolean written) {
+        try {
+            archive.settle(id, uuids, written);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not update the duty archive; it is settled at the next start", e);
+        }
+    }
+
+    // Gives the server a break between batches; also where a pass stops when the server does
+    private void pause() throws InterruptedIOException {
+        if (closing) {
+            throw new InterruptedIOException("Server stopping");
+        }
+        try {
+            Thread.sleep(pauseMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compacting");
+        }
+    }
+
+    // Logged once storage has had time to write what the pass changed
+    private void report(Pass pass) {
+        long bytesAfter;
+        try {
+            bytesAfter = storage.getStoredBytes();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not measure the stored duty data", e);
+            return;
+        }
+        archiveBytes = archive.getBytes();
+
+        List<String> lines = new ArrayList<>();
+        lines.add("Compaction: " + pass.playersArchived + " players archived, " + pass.removedDutyTimes +
+                  " times of removed duties archived, " + pass.zeroTotals + " zero totals deleted in " + pass.millis + "ms");
+        lines.add("Stored data: " + pass.storedBytesBefore / 1024 + " KB before, " + bytesAfter / 1024 + " KB after (" +
+                  Math.max(0, pass.storedBytesBefore - bytesAfter) / 1024 + " KB reclaimed); archive " + archiveBytes / 1024 + " KB");
+        long savesSince = saveTimer.getCount() - pass.savesAfter;
+        String before = pass.savesBefore == 0 ? "none"
+                : String.format("%.1fms", pass.saveNanosBefore / (double) pass.savesBefore / 1_000_000.0);
+        String after = savesSince == 0 ? "none yet"
+                : String.format("%.1fms", (saveTimer.getSumNanos() - pass.saveNanosAfter) / (double) savesSince / 1_000_000.0);
+        lines.add("Save time: avg " + before + " before, " + after + " after");
+        lastReport = lines;
+        if (pass.changedAnything()) {
+            for (String line : lines) {
+                logger.info(line);
+            }
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not save " + stateFile.getName(), e);
+        }
+    }
+
+    private void save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (this) {
+            if (!activityChanged) {
+                return;
+            }
+            out.writeInt(STATE_VERSION);
+            out.writeLong(compactedThisStart ? loadMillis : loadMillisBefore);
+            out.writeInt(lastActiveDays.size());
+            for (Map.Entry<UUID, Integer> entry : lastActiveDays.entrySet()) {
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                out.writeInt(entry.getValue());
+            }
+            activityChanged = false;
+        }
+        out.flush();
+        Path target = stateFile.toPath();
+        Path temp = target.resolveSibling(stateFile.getName() + ".tmp");
+        try {
+            Files.write(temp, bytes.toByteArray());
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                activityChanged = true; // try again next time
+            }
+            throw e;
+        }
+    }
+
+    private static int today() {
+        return (int) (System.currentTimeMillis() / DAY_MILLIS);
+    }
+}
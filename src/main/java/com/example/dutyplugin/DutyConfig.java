@@ -0,0 +1,130 @@
+package com.example.dutyplugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * One parsed and validated config.yml with its duty types. Never changed once built, so a
+ * reload can build the next one off the main thread and publish it with a single field
+ * write; commands see either the old config or the new one, never a mix.
+ */
+class DutyConfig {
+
+    private final FileConfiguration config;
+    private final Map<String, DutyType> dutyTypes;
+    private final MessageTemplates messages;
+    private final List<String> warnings;
+
+    private DutyConfig(FileConfiguration config, Map<String, DutyType> dutyTypes, MessageTemplates messages,
+                       List<String> warnings) {
+        this.config = config;
+        this.dutyTypes = Collections.unmodifiableMap(dutyTypes);
+        this.messages = messages;
+        this.warnings = Collections.unmodifiableList(warnings);
+    }
+
+    // Parses the file, falling back to the bundled defaults for missing keys. Throws if it isn't valid YAML.
+    public static DutyConfig load(File file, InputStream defaults, Predicate<String> groupExists)
+            throws IOException, InvalidConfigurationException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.load(file);
+        if (defaults != null) {
+            config.setDefaults(YamlConfiguration.loadConfiguration(new InputStreamReader(defaults, StandardCharsets.UTF_8)));
+        }
+        return fromConfiguration(config, groupExists);
+    }
+
+    // Reads the duty types and messages, skipping and warning about any that can't be used
+    public static DutyConfig fromConfiguration(FileConfiguration config, Predicate<String> groupExists) {
+        Map<String, DutyType> types = new LinkedHashMap<>();
+        List<String> warnings = new ArrayList<>();
+        Map<String, String> lowerCaseNames = new HashMap<>();
+
+        ConfigurationSection dutiesSection = config.getConfigurationSection("duties");
+        if (dutiesSection != null) {
+            for (String dutyName : dutiesSection.getKeys(false)) {
+                String permission = dutiesSection.getString(dutyName + ".permission");
+                String group = dutiesSection.getString(dutyName + ".group", "");
+
+                if (permission == null || permission.isEmpty()) {
+                    warnings.add("Duty " + dutyName + " has no permission and was skipped.");
+                    continue;
+                }
+                String clash = lowerCaseNames.put(dutyName.toLowerCase(Locale.ROOT), dutyName);
+                if (clash != null) {
+                    warnings.add("Duties " + clash + " and " + dutyName + " differ only in case.");
+                }
+                if (!group.isEmpty() && groupExists != null && !groupExists.test(group)) {
+                    warnings.add("Duty " + dutyName + " uses LuckPerms group " + group + ", which doesn't exist.");
+                }
+                types.put(dutyName, new DutyType(dutyName, permission, group));
+            }
+        }
+        if (types.isEmpty()) {
+            warnings.add("No usable duties are defined.");
+        }
+        MessageTemplates messages = MessageTemplates.compile(config.getConfigurationSection("messages"), warnings);
+        return new DutyConfig(config, types, messages, warnings);
+    }
+
+    public FileConfiguration getConfig() {
+        return config;
+    }
+
+    public Map<String, DutyType> getDutyTypes() {
+        return dutyTypes;
+    }
+
+    public MessageTemplates getMessages() {
+        return messages;
+    }
+
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    // What changes if this config is replaced by the newer one
+    public Diff diff(DutyConfig newer) {
+        Diff diff = new Diff();
+        for (DutyType type : dutyTypes.values()) {
+            DutyType replacement = newer.dutyTypes.get(type.getName());
+            if (replacement == null) {
+                diff.removed.put(type.getName(), type);
+            } else if (!type.sameAs(replacement)) {
+                diff.changed.put(type.getName(), type);
+            }
+        }
+        for (String name : newer.dutyTypes.keySet()) {
+            if (!dutyTypes.containsKey(name)) {
+                diff.added.add(name);
+            }
+        }
+        return diff;
+    }
+
+    static class Diff {
+        final List<String> added = new ArrayList<>();
+        final Map<String, DutyType> removed = new LinkedHashMap<>(); // old definitions
+        final Map<String, DutyType> changed = new LinkedHashMap<>(); // old definitions
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.example.dutyplugin;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Streams duty totals to and from CSV or NDJSON files in the plugin's exports folder.
+ * Runs on the caller's (background) thread and only ever holds one chunk of rows, however
+ * many players there are. Exports walk each duty's ranking, so rows come out best first
+ * (with sharded storage they walk the player files instead, one player at a time).
+ * A total that changes while an export runs may be written with its old value.
+ * Imports replace the totals they contain, and leave rollups and session history alone.
+ */
+class DutyDataTransfer {
+
+    private static final int CHUNK_SIZE = 500;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    enum Format {
+        CSV("csv"),
+        NDJSON("ndjson");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        static Format fromName(String name) {
+            String value = name.toLowerCase(Locale.ROOT);
+            for (Format format : values()) {
+                if (format.extension.equals(value)) {
+                    return format;
+                }
+            }
+            return value.equals("jsonl") || value.equals("json") ? NDJSON : null;
+        }
+    }
+
+    static class Result {
+        final File file;
+        final int rows;
+        final int skipped; // lines that could not be read, on import
+
+        Result(File file, int rows, int skipped) {
+            this.file = file;
+            this.rows = rows;
+            this.skipped = skipped;
+        }
+    }
+
+    private final File folder;
+    private final DutyTotals totals;
+    private final DutyStorage storage;
+    private final Function<UUID, String> names;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public DutyDataTransfer(File folder, DutyTotals totals, DutyStorage storage, Function<UUID, String> names) {
+        this.folder = folder;
+        this.totals = totals;
+        this.storage = storage;
+        this.names = names;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    // Only one export or import runs at a time; false if one already is
+    public boolean tryStart() {
+        return running.compareAndSet(false, true);
+    }
+
+    public void finish() {
+        running.set(false);
+    }
+
+    // Files in the exports folder, for tab completion
+    public List<String> listFiles() {
+        String[] files = folder.list((dir, name) -> Format.fromName(name.substring(name.lastIndexOf('.') + 1)) != null);
+        List<String> list = new ArrayList<>();
+        if (files != null) {
+            for (String file : files) {
+                list.add(file);
+            }
+        }
+        return list;
+    }
+
+    // Writes every total, or one duty's, to a new timestamped file
+    public Result export(Format format, String dutyFilter) throws IOException {
+        Files.createDirectories(folder.toPath());
+        String name = "dutytimes-" + LocalDateTime.now().format(FILE_TIME)
+                + (dutyFilter != null ? "-" + dutyFilter.replaceAll("[^A-Za-z0-9_-]", "_") : "")
+                + "." + format.extension;
+        File file = new File(folder, name);
+        Path temp = folder.toPath().resolve(name + ".tmp");
+
+        int[] rows = {0};
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            if (format == Format.CSV) {
+                writer.write("uuid,player,duty,total_ms\n");
+            }
+            StringBuilder line = new StringBuilder(128);
+            boolean walked = storage.walkTotals((uuid, dutyName, total) -> {
+                if (dutyFilter == null || dutyFilter.equals(dutyName)) {
+                    writeRow(writer, line, format, uuid, dutyName, total);
+                    rows[0]++;
+                }
+            });
+            for (int ordinal = 0; !walked && ordinal < totals.dutyCount(); ordinal++) {
+                String dutyName = totals.nameOf(ordinal);
+                if (dutyFilter != null && !dutyFilter.equals(dutyName)) {
+                    continue;
+                }
+                RankedLeaderboard.Entry cursor = null;
+                List<RankedLeaderboard.Entry> chunk;
+                do {
+                    chunk = totals.after(ordinal, cursor, CHUNK_SIZE);
+                    for (RankedLeaderboard.Entry entry : chunk) {
+                        writeRow(writer, line, format, entry.getUuid(), dutyName, entry.getTime());
+                        rows[0]++;
+                    }
+                    if (!chunk.isEmpty()) {
+                        cursor = chunk.get(chunk.size() - 1);
+                    }
+                } while (chunk.size() == CHUNK_SIZE);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new Result(file, rows[0], 0);
+    }
+
+    private void writeRow(BufferedWriter writer, StringBuilder line, Format format, UUID uuid, String dutyName,
+                          long total) throws IOException {
+        line.setLength(0);
+        String player = names.apply(uuid);
+        if (format == Format.CSV) {
+            line.append(uuid).append(',');
+            appendCsv(line, player != null ? player : "");
+            line.append(',');
+            appendCsv(line, dutyName);
+            line.append(',').append(total);
+        } else {
+            line.append("{\"uuid\":\"").append(uuid).append("\",\"player\":");
+            if (player != null) {
+                line.append('"');
+                WebhookDispatcher.appendEscaped(line, player);
+                line.append('"');
+            } else {
+                line.append("null");
+            }
+            line.append(",\"duty\":\"");
+            WebhookDispatcher.appendEscaped(line, dutyName);
+            line.append("\",\"total_ms\":").append(total).append('}');
+        }
+        writer.append(line).append('\n');
+    }
+
+    // Replaces the totals found in a file from the exports folder, or only those of one duty.
+    // Returns null if there is no such file. A total of 0 removes the player's time for the duty.
+    public Result importFile(String fileName, String dutyFilter) throws IOException {
+        File file = new File(folder, fileName);
+        // Only files directly inside the exports folder
+        if (!file.getCanonicalFile().getParentFile().equals(folder.getCanonicalFile()) || !file.isFile()) {
+            return null;
+        }
+        Format format = Format.fromName(fileName.substring(fileName.lastIndexOf('.') + 1));
+        if (format == null) {
+            format = Format.CSV;
+        }
+
+        int rows = 0;
+        int skipped = 0;
+        List<UUID> uuids = new ArrayList<>(CHUNK_SIZE);
+        List<String> dutyNames = new ArrayList<>(CHUNK_SIZE);
+        List<Long> times = new ArrayList<>(CHUNK_SIZE);
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            boolean first = true;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                if (first && format == Format.CSV && line.startsWith("uuid,")) {
+                    first = false;
+                    continue; // header
+                }
+                first = false;
+
+                Row row = format == Format.CSV ? parseCsv(line) : parseJson(line);
+                if (row == null) {
+                    skipped++;
+                    continue;
+                }
+                if (dutyFilter != null && !dutyFilter.equals(row.dutyName)) {
+                    continue;
+                }
+                uuids.add(row.uuid);
+                dutyNames.add(row.dutyName);
+                times.add(row.total);
+                if (uuids.size() == CHUNK_SIZE) {
+                    rows += apply(uuids, dutyNames, times);
+                }
+            }
+        }
+        rows += apply(uuids, dutyNames, times);
+        return new Result(file, rows, skipped);
+    }
+
+    // Applies one chunk to the totals and hands it to storage as one batch, then clears it
+    private int apply(List<UUID> uuids, List<String> dutyNames, List<Long> times) {
+        int count = uuids.size();
+        if (count == 0) {
+            return 0;
+        }
+        List<UUID> setUuids = new ArrayList<>(count);
+        List<String> setDutyNames = new ArrayList<>(count);
+        List<Long> setTimes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int ordinal = totals.register(dutyNames.get(i));
+            if (times.get(i) == 0) {
+                totals.reset(uuids.get(i), ordinal);
+                storage.totalReset(uuids.get(i), dutyNames.get(i));
+            } else {
+                totals.set(uuids.get(i), ordinal, times.get(i));
+                setUuids.add(uuids.get(i));
+                setDutyNames.add(dutyNames.get(i));
+                setTimes.add(times.get(i));
+            }
+        }
+        storage.totalsSet(setUuids, setDutyNames, setTimes);
+        uuids.clear();
+        dutyNames.clear();
+        times.clear();
+
+        // Let storage catch up so queued changes can't pile up without bound
+        try {
+            for (int waited = 0; storage.getPendingChanges() > CHUNK_SIZE * 4 && waited < 200; waited++) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return count;
+    }
+
+    private static void appendCsv(StringBuilder line, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            line.append(value);
+            return;
+        }
+        line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    private static Row parseCsv(String line) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        // uuid,player,duty,total_ms
+        if (fields.size() != 4) {
+            return null;
+        }
+        return Row.parse(fields.get(0), fields.get(2), fields.get(3).trim());
+    }
+
+    // Reads one flat JSON object; only string, number and null values are expected
+    private static Row parseJson(String line) {
+        Map<String, String> values = new HashMap<>();
+        int i = line.indexOf('{');
+        if (i < 0) {
+            return null;
+        }
+        i++;
+        StringBuilder token = new StringBuilder();
+        String key = null;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                token.setLength(0);
+                i++;
+                while (i < line.length() && line.charAt(i) != '"') {
+                    char d = line.charAt(i);
+                    if (d == '\\' && i + 1 < line.length()) {
+                        char e = line.charAt(++i);
+                        switch (e) {
+                            case 'n': token.append('\n'); break;
+                            case 'r': token.append('\r'); break;
+                            case 't': token.append('\t'); break;
+                            case 'u':
+                                if (i + 4 >= line.length()) {
+                                    return null;
+                                }
+                                try {
+                                    token.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                                } catch (NumberFormatException ex) {
+                                    return null;
+                                }
+                                i += 4;
+                                break;
+                            default: token.append(e);
+                        }
+                    } else {
+                        token.append(d);
+                    }
+                    i++;
+                }
+                if (key == null) {
+                    key = token.toString();
+                } else {
+                    values.put(key, token.toString());
+                    key = null;
+                }
+                i++;
+            } else if (key != null && (c == '-' || Character.isLetterOrDigit(c))) {
+                int start = i;
+                while (i < line.length() && (line.charAt(i) == '-' || Character.isLetterOrDigit(line.charAt(i)))) {
+                    i++;
+                }
+                values.put(key, line.substring(start, i));
+                key = null;
+            } else {
+                i++;
+            }
+        }
+        return Row.parse(values.get("uuid"), values.get("duty"), values.get("total_ms"));
+    }
+
+    private static class Row {
+        final UUID uuid;
+        final String dutyName;
+        final long total;
+
+        private Row(UUID uuid, String dutyName, long total) {
+            this.uuid = uuid;
+            this.dutyName = dutyName;
+            this.total = total;
+        }
+
+        // null if any field is missing or invalid
+        static Row parse(String uuid, String dutyName, String total) {
+            if (uuid == null || dutyName == null || dutyName.isEmpty() || total == null) {
+                return null;
+            }
+            try {
+                long time = Long.parseLong(total);
+                return time < 0 ? null : new Row(UUID.fromString(uuid), dutyName, time);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
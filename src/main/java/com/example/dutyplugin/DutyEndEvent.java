@@ -0,0 +1,62 @@
+package com.example.dutyplugin;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+/**
+ * Called when a player uses /duty to go off duty, before the session is ended and credited.
+ * Cancelling it keeps them on duty; telling them why is up to whoever cancels it.
+ */
+public class DutyEndEvent extends Event implements Cancellable {
+
+    private static final HandlerList HANDLERS = new HandlerList();
+
+    private final Player player;
+    private final String dutyName;
+    private final long sessionStart;
+    private boolean cancelled;
+
+    DutyEndEvent(Player player, String dutyName, long sessionStart) {
+        this.player = player;
+        this.dutyName = dutyName;
+        this.sessionStart = sessionStart;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    public String getDutyName() {
+        return dutyName;
+    }
+
+    public long getSessionStart() {
+        return sessionStart;
+    }
+
+    // How long the session has lasted so far, in milliseconds
+    public long getDuration() {
+        return System.currentTimeMillis() - sessionStart;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public HandlerList getHandlers() {
+        return HANDLERS;
+    }
+
+    public static HandlerList getHandlerList() {
+        return HANDLERS;
+    }
+}
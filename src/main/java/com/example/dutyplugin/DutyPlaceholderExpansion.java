@@ -0,0 +1,144 @@
+package com.example.dutyplugin;
+
+import me.clip.placeholderapi.expansion.PlaceholderExpansion;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * %duty_...% placeholders. Values are rendered at most once per player per second (or when
+ * their snapshot changes) and reused until then, so scoreboards and tab lists that ask every
+ * tick mostly get a string back from a map.
+ * <ul>
+ *   <li>on_duty - true or false</li>
+ *   <li>current - the duty the player is on, empty when off duty</li>
+ *   <li>session - how long the current session has lasted</li>
+ *   <li>total, total_&lt;duty&gt; - total time across every duty, or for one</li>
+ *   <li>hours, hours_&lt;duty&gt; - the same in hours, to one decimal place</li>
+ *   <li>count - how many players are on duty</li>
+ * </ul>
+ */
+class DutyPlaceholderExpansion extends PlaceholderExpansion implements Listener {
+
+    private final DutyPlugin plugin;
+    private final DutyService service;
+    private final Map<UUID, Rendered> rendered = new ConcurrentHashMap<>();
+
+    public DutyPlaceholderExpansion(DutyPlugin plugin, DutyService service) {
+        this.plugin = plugin;
+        this.service = service;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return "duty";
+    }
+
+    @Override
+    public String getAuthor() {
+        return String.join(", ", plugin.getDescription().getAuthors());
+    }
+
+    @Override
+    public String getVersion() {
+        return plugin.getDescription().getVersion();
+    }
+
+    @Override
+    public boolean persist() {
+        return true; // survive /papi reload, we aren't a downloadable expansion
+    }
+
+    @Override
+    public String onRequest(OfflinePlayer player, String params) {
+        if (params.equals("count")) {
+            return Integer.toString(service.getOnDutyCount());
+        }
+        if (player == null) {
+            return null;
+        }
+        UUID uuid = player.getUniqueId();
+        DutySnapshot snapshot = service.getSnapshot(uuid);
+        long second = System.currentTimeMillis() / 1000;
+        Rendered values = rendered.get(uuid);
+        if (values == null || values.snapshot != snapshot || values.second != second) {
+            values = new Rendered(snapshot, second);
+            if (player.isOnline()) {
+                rendered.put(uuid, values);
+            }
+        }
+        String value = values.values.get(params);
+        if (value == null) {
+            value = render(snapshot, params.toLowerCase(Locale.ROOT));
+            if (value == null) {
+                return null; // not one of ours
+            }
+            values.values.put(params, value);
+        }
+        return value;
+    }
+
+    private String render(DutySnapshot snapshot, String params) {
+        switch (params) {
+            case "on_duty":
+                return Boolean.toString(snapshot.isOnDuty());
+            case "current":
+                return snapshot.isOnDuty() ? snapshot.getDutyName() : "";
+            case "session":
+                return DutyPlugin.formatDuration(snapshot.getSessionTime());
+            case "total":
+                return DutyPlugin.formatDuration(snapshot.getTotalTime());
+            case "hours":
+                return hours(snapshot.getTotalTime());
+            default:
+                break;
+        }
+        if (params.startsWith("total_")) {
+            String duty = dutyName(params.substring("total_".length()));
+            return duty != null ? DutyPlugin.formatDuration(snapshot.getTotalTime(duty)) : null;
+        }
+        if (params.startsWith("hours_")) {
+            String duty = dutyName(params.substring("hours_".length()));
+            return duty != null ? hours(snapshot.getTotalTime(duty)) : null;
+        }
+        return null;
+    }
+
+    // Duty names are matched ignoring case, as placeholders are often typed by hand
+    private String dutyName(String name) {
+        for (String duty : service.getDutyNames()) {
+            if (duty.equalsIgnoreCase(name)) {
+                return duty;
+            }
+        }
+        return null;
+    }
+
+    private static String hours(long millis) {
+        return String.format(Locale.ROOT, "%.1f", millis / 3_600_000.0);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        rendered.remove(event.getPlayer().getUniqueId());
+    }
+
+    // One player's rendered values for one second of one snapshot
+    private static class Rendered {
+        final DutySnapshot snapshot;
+        final long second;
+        final Map<String, String> values = new ConcurrentHashMap<>();
+
+        Rendered(DutySnapshot snapshot, long second) {
+            this.snapshot = snapshot;
+            this.second = second;
+        }
+    }
+}
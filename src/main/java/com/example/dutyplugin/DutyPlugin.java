@@ -1,42 +1,70 @@
 package com.example.dutyplugin;
 
+import net.kyori.adventure.text.Component;
 import net.luckperms.api.LuckPerms;
-import net.luckperms.api.model.user.User;
-import net.luckperms.api.node.Node;
 import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.plugin.RegisteredServiceProvider;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
-import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.function.BiConsumer;
 
-public class DutyPlugin extends JavaPlugin {
+public class DutyPlugin extends JavaPlugin implements Listener {
     
-    private File dataFile;
-    private FileConfiguration dataConfig;
-    private Map<UUID, DutySession> activeSessions;
+    private final DutyTotals totals = new DutyTotals(); // in-memory totals, dutydata.yml is only the persisted form
+    private DutyStorage storage;
+    private DutyRollups rollups;
+    private WriteBehindPersister rollupPersister;
+    private SessionJournal journal;
+    private DutyToggles toggles; // starts and ends sessions
+    private PlayerNameIndex nameIndex;
+    private DutyTabCompleter tabCompleter;
+    private DutyDataTransfer dataTransfer;
+    private AfkTracker afkTracker;
+    private CachedDutyService dutyService;
+    private DutySync sync; // null unless cross-server sync is enabled
+    private DutyCompactor compactor;
+    private WriteBehindPersister namePersister;
+    private final Set<UUID> nameLookups = ConcurrentHashMap.newKeySet(); // names being looked up in the background
+    private final Map<UUID, Long> unknownNames = new ConcurrentHashMap<>(); // the server had no name either; retry after
+    private final SessionRegistry sessions = new SessionRegistry();
     private String webhookUrl;
-    private Map<String, DutyType> dutyTypes; // duty name -> DutyType object
+    private WebhookDispatcher webhookDispatcher;
+    private volatile DutyConfig dutyConfig; // config.yml and its duty types, replaced whole on reload
     private LuckPerms luckPerms;
     private boolean luckPermsEnabled = false;
+    private GroupMutationQueue groupQueue;
+    private static final int MAX_CACHED_PAGES = 512;
+    private final Map<String, CachedPage> pageCache = new ConcurrentHashMap<>(); // "duty:range@buckets:page" -> rendered /dutytimes page
+    private volatile long pageCacheMillis;
+    private TaskScheduler scheduler;
+    private final PluginMetrics metrics = new PluginMetrics();
+    private MetricsExporter metricsExporter;
     
     @Override
     public void onEnable() {
-        activeSessions = new HashMap<>();
-        dutyTypes = new HashMap<>();
+        // Classic scheduler on Paper, region schedulers on Folia
+        scheduler = TaskScheduler.create(this);
         
         // Create config
         saveDefaultConfig();
@@ -45,19 +73,70 @@ public class DutyPlugin extends JavaPlugin {
         // Hook into LuckPerms
         setupLuckPerms();
         
-        // Load data file
-        dataFile = new File(getDataFolder(), "dutydata.yml");
-        if (!dataFile.exists()) {
-            try {
-                dataFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        // Discord messages are queued and sent in batches from one background thread
+        WebhookDispatcher.OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = WebhookDispatcher.OverflowPolicy.valueOf(
+                    getConfig().getString("discord.overflow-policy", "SUMMARIZE").toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            getLogger().warning("Unknown discord.overflow-policy, using SUMMARIZE.");
+            overflowPolicy = WebhookDispatcher.OverflowPolicy.SUMMARIZE;
         }
-        dataConfig = YamlConfiguration.loadConfiguration(dataFile);
+        webhookDispatcher = new WebhookDispatcher(webhookUrl, getConfig().getInt("discord.queue-capacity", 500),
+                overflowPolicy, getLogger(), metrics.timer(PluginMetrics.Timer.WEBHOOK_SEND));
+        webhookDispatcher.start();
+        
+        // Load duty data; changes are written in the background
+        long loadStart = System.nanoTime();
+        totals.keepResident(sessions::isOnDuty);
+        totals.loadWith(scheduler::runAsync);
+        if (!openStorage()) {
+            // Running on empty totals would overwrite the data on the first save
+            getServer().getPluginManager().disablePlugin(this);
+            return;
+        }
+        setupSync();
+        loadRollups();
+        metrics.record(PluginMetrics.Timer.LOAD_DATA, loadStart);
+        setupCompactor(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStart));
+        
+        // Load our own UUID <-> name index so commands never look names up on the main thread
+        loadNameIndex();
+        
+        // Completions are answered on Paper's async tab-complete thread from in-memory indexes
+        dataTransfer = new DutyDataTransfer(new File(getDataFolder(), "exports"), totals, storage, nameIndex::getName);
+        tabCompleter = new DutyTabCompleter(nameIndex, dataTransfer);
+        updateTabCompleter();
+        
+        // Recover sessions left open by a crash
+        setupToggles();
+        recoverSessions();
+        getServer().getPluginManager().registerEvents(this, this);
+        getServer().getPluginManager().registerEvents(tabCompleter, this);
+        
+        // Old and unused duty data is archived in the background, a batch of players at a time
+        compactor.start(dataTransfer, getConfig().getBoolean("retention.enabled", true)
+                ? TimeUnit.HOURS.toMillis(getConfig().getLong("retention.interval-hours", 24)) : 0);
+        
+        // Idle players on duty are sampled every few seconds instead of watching every move
+        afkTracker = new AfkTracker(getServer(), sessions, scheduler);
+        updateAfkTracker();
+        getServer().getPluginManager().registerEvents(afkTracker, this);
+        AfkTracker.Handler afkHandler = toggles.afkHandler(afkTracker);
+        scheduler.runGlobalTimer(() -> afkTracker.tick(afkHandler), 20, 20);
+        
+        // Other plugins and placeholders read duty state from cached per-player snapshots
+        dutyService = new CachedDutyService(sessions, totals, this::dutyTypes, scheduler::runAsync);
+        getServer().getServicesManager().register(DutyService.class, dutyService, this, ServicePriority.Normal);
+        getServer().getPluginManager().registerEvents(dutyService, this);
+        if (getServer().getPluginManager().getPlugin("PlaceholderAPI") != null) {
+            registerPlaceholders();
+        }
+        
+        startMetrics();
         
         getLogger().info("DutyPlugin has been enabled!");
-        getLogger().info("Loaded " + dutyTypes.size() + " duty types from config.");
+        getLogger().info("Loaded " + dutyTypes().size() + " duty types from config.");
         if (luckPermsEnabled) {
             getLogger().info("LuckPerms integration enabled!");
         } else {
@@ -68,209 +147,734 @@ public class DutyPlugin extends JavaPlugin {
     @Override
     public void onDisable() {
         // End all active sessions
-        for (UUID uuid : activeSessions.keySet()) {
-            DutySession session = activeSessions.get(uuid);
-            endDutySession(uuid, session);
+        if (toggles != null) {
+            toggles.endAll();
+        }
+        if (metricsExporter != null) {
+            metricsExporter.shutdown();
+        }
+        if (scheduler != null) {
+            scheduler.cancelAll();
+        }
+        if (namePersister != null) {
+            namePersister.shutdown();
+        }
+        if (webhookDispatcher != null) {
+            webhookDispatcher.shutdown(5000);
+        }
+        if (groupQueue != null) {
+            groupQueue.shutdown(5000);
+        }
+        if (compactor != null) {
+            compactor.close();
+        }
+        if (storage != null) {
+            storage.close();
+        }
+        if (rollupPersister != null) {
+            rollupPersister.shutdown();
+        }
+        // After storage and the rollups, so the sessions ended above are known to be written
+        if (journal != null) {
+            journal.close();
         }
-        saveData();
         getLogger().info("DutyPlugin has been disabled!");
     }
     
+    // Returns false if no storage could be loaded
+    private boolean openStorage() {
+        File yamlFile = new File(getDataFolder(), "dutydata.yml");
+        long flushInterval = TimeUnit.SECONDS.toMillis(getConfig().getLong("persistence.flush-interval-seconds", 30));
+        int maxPendingWrites = getConfig().getInt("persistence.max-pending-writes", 100);
+        String type = getConfig().getString("storage.type", "yaml");
+        
+        if (type.equalsIgnoreCase("sqlite")) {
+            File databaseFile = new File(getDataFolder(), getConfig().getString("storage.sqlite.file", "dutydata.db"));
+            SqliteDutyStorage sqlite = new SqliteDutyStorage(databaseFile, getLogger(), flushInterval, maxPendingWrites,
+                    getConfig().getInt("storage.sqlite.pool-size", 4), metrics.timer(PluginMetrics.Timer.SAVE_DATA));
+            try {
+                sqlite.load(totals);
+                StorageMigrator.migrateYamlToSqlite(yamlFile, sqlite, totals, getLogger());
+                storage = sqlite;
+                return true;
+            } catch (IOException e) {
+                // dutydata.yml may already be migrated away, so running on it would lose data
+                getLogger().log(Level.SEVERE, "Could not open SQLite storage, disabling DutyPlugin so it isn't overwritten", e);
+                sqlite.close();
+                return false;
+            }
+        } else if (type.equalsIgnoreCase("sharded")) {
+            ShardedDutyStorage sharded = new ShardedDutyStorage(getDataFolder(), getLogger(), flushInterval, maxPendingWrites,
+                    getConfig().getInt("storage.sharded.max-resident-players", 2000),
+                    getConfig().getInt("storage.sharded.leaderboard-size", 1000), metrics.timer(PluginMetrics.Timer.SAVE_DATA));
+            try {
+                sharded.load(totals);
+                StorageMigrator.migrateYamlToShards(yamlFile, sharded, totals, getLogger());
+                storage = sharded;
+                return true;
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, "Could not open sharded storage, disabling DutyPlugin so it isn't overwritten", e);
+                sharded.close();
+                return false;
+            }
+        } else if (!type.equalsIgnoreCase("yaml")) {
+            getLogger().warning("Unknown storage.type '" + type + "', using yaml.");
+        }
+        
+        storage = new YamlDutyStorage(yamlFile, getLogger(), flushInterval, maxPendingWrites,
+                metrics.timer(PluginMetrics.Timer.SAVE_DATA));
+        try {
+            storage.load(totals);
+            return true;
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Could not load " + yamlFile.getName() + ", disabling DutyPlugin so it isn't overwritten", e);
+            return false;
+        }
+    }
+    
+    // Shares totals and who is on duty with the other servers by wrapping storage, which every change already goes through
+    private void setupSync() {
+        if (!getConfig().getBoolean("sync.enabled", false)) {
+            return;
+        }
+        String serverId = getConfig().getString("sync.server-id", "");
+        if (serverId.isEmpty()) {
+            getLogger().warning("sync.server-id is not set, so cross-server sync is disabled.");
+            return;
+        }
+        
+        SyncTransport transport;
+        String type = getConfig().getString("sync.transport", "tcp");
+        try {
+            if (type.equalsIgnoreCase("database")) {
+                String file = getConfig().getString("sync.database.file", "../DutyPluginSync/sync.db");
+                File target = new File(file);
+                if (!target.isAbsolute()) {
+                    target = new File(getDataFolder(), file);
+                }
+                transport = new DatabaseSyncTransport(target, getLogger());
+            } else if (type.equalsIgnoreCase("tcp")) {
+                // Anyone who can reach the port could otherwise feed us duty times
+                if (getConfig().getString("sync.tcp.secret", "").isEmpty()) {
+                    getLogger().warning("sync.tcp.secret is not set, so cross-server sync is disabled.");
+                    return;
+                }
+                transport = new TcpSyncTransport(getConfig().getString("sync.tcp.bind", "127.0.0.1:25590"),
+                        getConfig().getStringList("sync.tcp.peers"), getConfig().getString("sync.tcp.secret", ""), getLogger());
+            } else {
+                getLogger().warning("Unknown sync.transport '" + type + "', so cross-server sync is disabled.");
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            getLogger().warning("Invalid sync.tcp settings, so cross-server sync is disabled: " + e.getMessage());
+            return;
+        }
+        
+        DutySync started = new DutySync(serverId, transport, totals, storage, sessions, scheduler, syncHandler, getLogger(),
+                new File(getDataFolder(), "sync-state.dat"), getConfig().getLong("sync.batch-interval-millis", 250),
+                TimeUnit.SECONDS.toMillis(getConfig().getLong("sync.lease-seconds", 30)),
+                TimeUnit.SECONDS.toMillis(getConfig().getLong("persistence.flush-interval-seconds", 30)));
+        try {
+            started.start();
+        } catch (IOException e) {
+            // Not saving here, so a state file that could not be read is left as it was
+            getLogger().log(Level.SEVERE, "Could not start cross-server sync, duty times stay on this server", e);
+            transport.close();
+            return;
+        }
+        sync = started;
+        storage = new SyncedDutyStorage(storage, sync);
+        getLogger().info("Cross-server sync enabled as " + serverId + " (" + type.toLowerCase(Locale.ROOT) + ").");
+    }
+    
+    // Reads when each player was last on duty, which decides who is archived
+    private void setupCompactor(long loadMillis) {
+        compactor = new DutyCompactor(getDataFolder(), totals, storage, rollups, rollupPersister, sessions,
+                () -> dutyTypes().keySet(), getLogger(),
+                metrics.timer(PluginMetrics.Timer.SAVE_DATA), metrics.timer(PluginMetrics.Timer.COMPACT_DATA),
+                getConfig().getInt("retention.archive-after-days", 365),
+                getConfig().getBoolean("retention.archive-removed-duties", true), sync != null,
+                getConfig().getInt("retention.batch-size", 250), getConfig().getLong("retention.pause-millis", 50),
+                TimeUnit.SECONDS.toMillis(getConfig().getLong("persistence.flush-interval-seconds", 30) + 5));
+        try {
+            compactor.load(loadMillis);
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not read compaction.dat, players missing from it count as active from today", e);
+        }
+    }
+    
+    private void loadRollups() {
+        String timezone = getConfig().getString("rollups.timezone", "");
+        ZoneId zone;
+        try {
+            zone = timezone.isEmpty() ? ZoneId.systemDefault() : ZoneId.of(timezone);
+        } catch (DateTimeException e) {
+            getLogger().warning("Unknown rollups.timezone '" + timezone + "', using the server's timezone.");
+            zone = ZoneId.systemDefault();
+        }
+        rollups = new DutyRollups(totals, zone,
+                getConfig().getInt("rollups.retention-days", 90),
+                getConfig().getInt("rollups.retention-weeks", 26),
+                getConfig().getInt("rollups.retention-months", 24));
+        
+        File rollupsFile = new File(getDataFolder(), "rollups.yml");
+        if (rollupsFile.exists()) {
+            rollups.load(YamlConfiguration.loadConfiguration(rollupsFile));
+        }
+        rollupPersister = new WriteBehindPersister(rollupsFile, rollups::saveToString, getLogger(),
+                TimeUnit.SECONDS.toMillis(getConfig().getLong("persistence.flush-interval-seconds", 30)),
+                getConfig().getInt("persistence.max-pending-writes", 100), metrics.timer(PluginMetrics.Timer.SAVE_ROLLUPS));
+        rollupPersister.start();
+    }
+    
     private void setupLuckPerms() {
         RegisteredServiceProvider<LuckPerms> provider = Bukkit.getServicesManager().getRegistration(LuckPerms.class);
         if (provider != null) {
             luckPerms = provider.getProvider();
             luckPermsEnabled = true;
+            groupQueue = new GroupMutationQueue(this, scheduler, luckPerms, getConfig().getBoolean("luckperms.transient-groups", false),
+                    metrics.timer(PluginMetrics.Timer.LUCKPERMS_WRITE));
+            
+            // Periodically take duty groups off anyone who is no longer on duty
+            long reconcileInterval = getConfig().getLong("luckperms.reconcile-interval-seconds", 60);
+            if (reconcileInterval > 0) {
+                scheduler.runGlobalTimer(this::reconcileGroups, reconcileInterval * 20, reconcileInterval * 20);
+            }
         }
     }
     
-    private void loadConfig() {
-        reloadConfig();
-        webhookUrl = getConfig().getString("discord-webhook-url", "");
-        
-        // Load duty types from config
-        dutyTypes.clear();
-        ConfigurationSection dutiesSection = getConfig().getConfigurationSection("duties");
-        if (dutiesSection != null) {
-            Set<String> dutyNames = dutiesSection.getKeys(false);
-            for (String dutyName : dutyNames) {
-                String permission = dutiesSection.getString(dutyName + ".permission");
-                String group = dutiesSection.getString(dutyName + ".group", "");
-                
-                if (permission != null && !permission.isEmpty()) {
-                    dutyTypes.put(dutyName, new DutyType(dutyName, permission, group));
-                }
+    // Kept out of onEnable so PlaceholderAPI classes are only loaded when it is installed
+    private void registerPlaceholders() {
+        DutyPlaceholderExpansion expansion = new DutyPlaceholderExpansion(this, dutyService);
+        expansion.register();
+        getServer().getPluginManager().registerEvents(expansion, this);
+        getLogger().info("PlaceholderAPI integration enabled!");
+    }
+    
+    private void reconcileGroups() {
+        Set<String> dutyGroups = new HashSet<>();
+        for (DutyType dutyType : dutyTypes().values()) {
+            if (!dutyType.getGroup().isEmpty()) {
+                dutyGroups.add(dutyType.getGroup());
+            }
+        }
+        List<UUID> offDuty = new ArrayList<>();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            if (!sessions.isOnDuty(player.getUniqueId())) {
+                offDuty.add(player.getUniqueId());
             }
         }
+        if (!dutyGroups.isEmpty() && !offDuty.isEmpty()) {
+            scheduler.runAsync(() -> groupQueue.removeStrayGroups(offDuty, dutyGroups, sessions::isOnDuty));
+        }
     }
     
-    @Override
-    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-        if (command.getName().equalsIgnoreCase("duty")) {
-            if (args.length > 0 && args[0].equalsIgnoreCase("reload")) {
-                return handleReloadCommand(sender);
+    // The session journal and what starts and ends sessions through it, shared with the load simulation
+    private void setupToggles() {
+        long syncInterval = getConfig().getLong("session-journal.sync-interval-millis", 200);
+        long checkpointInterval = getConfig().getLong("session-journal.checkpoint-interval-seconds", 30);
+        int compactAfter = getConfig().getInt("session-journal.compact-after-records", 1000);
+        journal = new SessionJournal(getDataFolder(), storage, rollupPersister, getLogger(), syncInterval,
+                TimeUnit.SECONDS.toMillis(checkpointInterval), compactAfter);
+        toggles = new DutyToggles(getServer(), sessions, totals, rollups, rollupPersister, storage, journal, compactor,
+                nameIndex, tabCompleter, scheduler, groupQueue, sync, webhookDispatcher, () -> dutyConfig, this::getPlayerName);
+    }
+    
+    private void recoverSessions() {
+        boolean resume = getConfig().getString("session-journal.recovery", "credit").equalsIgnoreCase("resume");
+        
+        long start = System.nanoTime();
+        List<SessionJournal.RecoveredSession> orphaned;
+        try {
+            orphaned = journal.recover();
+        } catch (IOException e) {
+            getLogger().severe("Could not read session journal, open sessions from the last run are lost: " + e.getMessage());
+            orphaned = Collections.emptyList();
+        }
+        
+        // Ended before the crash, but storage or the rollups may never have written their time
+        List<SessionJournal.RecoveredSession> ended = new ArrayList<>();
+        for (SessionJournal.RecoveredSession recovered : orphaned) {
+            if (recovered.isEnded()) {
+                ended.add(recovered);
             }
-            
-            if (!(sender instanceof Player)) {
-                sender.sendMessage(ChatColor.RED + "Only players can use this command!");
-                return true;
+        }
+        toggles.creditRecovered(ended);
+        
+        List<SessionJournal.RecoveredSession> resumed = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (SessionJournal.RecoveredSession recovered : orphaned) {
+            if (recovered.isEnded()) {
+                continue;
             }
+            // Only the time up to the last checkpoint is known to have been spent on duty
+            long credited = Math.max(0, recovered.lastSeen - recovered.startTime);
+            DutyType dutyType = dutyTypes().get(recovered.dutyName);
             
-            Player player = (Player) sender;
-            return handleDutyCommand(player, args);
-            
-        } else if (command.getName().equalsIgnoreCase("checktime")) {
-            return handleCheckTimeCommand(sender, args);
-            
-        } else if (command.getName().equalsIgnoreCase("dutytimes")) {
-            return handleDutyTimesCommand(sender, args);
-            
-        } else if (command.getName().equalsIgnoreCase("resettime")) {
-            if (!(sender instanceof Player)) {
-                sender.sendMessage(ChatColor.RED + "Only players can use this command!");
-                return true;
+            if (resume && dutyType != null) {
+                DutySession session = new DutySession(recovered.dutyName, now - credited);
+                sessions.tryStart(recovered.uuid, session);
+                compactor.touch(recovered.uuid);
+                resumed.add(new SessionJournal.RecoveredSession(recovered.uuid, recovered.dutyName, session.getStartTime(), now));
+            } else {
+                // Kept in the journal as ended until storage has written it, so a second crash credits it again
+                toggles.credit(recovered.uuid, new DutySession(recovered.dutyName, recovered.startTime), recovered.lastSeen);
+                if (dutyType != null && !dutyType.getGroup().isEmpty()) {
+                    toggles.removeGroup(recovered.uuid, dutyType.getGroup());
+                }
             }
-            Player player = (Player) sender;
-            return handleResetTimeCommand(player, args);
+        }
+        try {
+            journal.open(resumed);
+        } catch (IOException e) {
+            getLogger().severe("Could not open session journal, sessions will not survive a crash: " + e.getMessage());
         }
         
-        return false;
+        if (!orphaned.isEmpty()) {
+            getLogger().info("Recovered " + orphaned.size() + " duty sessions from the last run (" + 
+                             resumed.size() + " resumed) in " + 
+                             TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms.");
+        }
     }
     
-    private boolean handleReloadCommand(CommandSender sender) {
-        if (!sender.hasPermission("duty.reload")) {
-            sender.sendMessage(ChatColor.RED + "You don't have permission to reload the config!");
-            return true;
+    private void loadNameIndex() {
+        File namesFile = new File(getDataFolder(), "names.yml");
+        nameIndex = new PlayerNameIndex(getConfig().getInt("name-index.max-entries", 50000));
+        if (namesFile.exists()) {
+            nameIndex.load(YamlConfiguration.loadConfiguration(namesFile).getConfigurationSection("names"));
         }
+        namePersister = new WriteBehindPersister(namesFile, nameIndex::saveToString, getLogger(),
+                TimeUnit.SECONDS.toMillis(60), 500, metrics.timer(PluginMetrics.Timer.SAVE_NAMES));
+        namePersister.start();
         
-        loadConfig();
-        sender.sendMessage(ChatColor.GREEN + "DutyPlugin config reloaded! Loaded " + 
-                         ChatColor.YELLOW + dutyTypes.size() + 
-                         ChatColor.GREEN + " duty types.");
-        return true;
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            rememberName(player.getUniqueId(), player.getName());
+        }
+        
+        // Fill in names for tracked players we haven't seen yet, off the main thread
+        List<UUID> unnamed = new ArrayList<>();
+        for (UUID uuid : totals.playerIds()) {
+            if (nameIndex.getName(uuid) == null) {
+                unnamed.add(uuid);
+            }
+        }
+        if (!unnamed.isEmpty()) {
+            scheduler.runAsync(() -> {
+                for (UUID uuid : unnamed) {
+                    rememberName(uuid, Bukkit.getOfflinePlayer(uuid).getName());
+                }
+            });
+        }
     }
     
-    private boolean handleDutyCommand(Player player, String[] args) {
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        Player player = event.getPlayer();
+        rememberName(player.getUniqueId(), player.getName());
+        // With sharded storage, have their times in memory before they are needed
         UUID uuid = player.getUniqueId();
+        scheduler.runAsync(() -> totals.preload(uuid));
+    }
+    
+    private void rememberName(UUID uuid, String name) {
+        if (nameIndex.put(uuid, name)) {
+            namePersister.markDirty();
+        }
+    }
+    
+    // Cached name for a UUID. Unknown names are looked up in the background for next time.
+    private String getPlayerName(UUID uuid) {
+        String name = nameIndex.getName(uuid);
+        if (name != null) {
+            return name;
+        }
+        // One lookup at a time per player, and players the server doesn't know aren't asked about again for a while
+        Long retryAt = unknownNames.get(uuid);
+        if ((retryAt == null || retryAt <= System.currentTimeMillis()) && nameLookups.add(uuid)) {
+            scheduler.runAsync(() -> {
+                try {
+                    String found = Bukkit.getOfflinePlayer(uuid).getName();
+                    if (found != null) {
+                        unknownNames.remove(uuid);
+                        rememberName(uuid, found);
+                    } else {
+                        if (unknownNames.size() >= 10000) {
+                            unknownNames.clear();
+                        }
+                        unknownNames.put(uuid, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10));
+                    }
+                } finally {
+                    nameLookups.remove(uuid);
+                }
+            });
+        }
+        return "Unknown";
+    }
+    
+    // Resolves a player name that isn't in the index off the main thread.
+    // The callback runs on the main thread (the global region on Folia) with nulls if the player has never joined.
+    private void lookupPlayerAsync(String name, BiConsumer<UUID, String> callback) {
+        scheduler.runAsync(() -> {
+            @SuppressWarnings("deprecation")
+            OfflinePlayer target = Bukkit.getOfflinePlayer(name);
+            boolean found = target != null && (target.hasPlayedBefore() || target.isOnline());
+            if (found) {
+                rememberName(target.getUniqueId(), target.getName() != null ? target.getName() : name);
+            }
+            
+            scheduler.runGlobal(() -> {
+                if (found) {
+                    callback.accept(target.getUniqueId(), target.getName() != null ? target.getName() : name);
+                } else {
+                    callback.accept(null, null);
+                }
+            });
+        });
+    }
+    
+    @Override
+    public FileConfiguration getConfig() {
+        DutyConfig current = dutyConfig;
+        return current != null ? current.getConfig() : super.getConfig();
+    }
+    
+    // Duty name -> DutyType from the current config. Read it once per command for a consistent view.
+    private Map<String, DutyType> dutyTypes() {
+        return dutyConfig.getDutyTypes();
+    }
+    
+    private MessageTemplates messages() {
+        return dutyConfig.getMessages();
+    }
+    
+    private void loadConfig() {
+        DutyConfig loaded;
+        try {
+            loaded = parseConfig();
+        } catch (IOException | InvalidConfigurationException e) {
+            getLogger().log(Level.SEVERE, "Could not load config.yml, using the defaults", e);
+            loaded = DutyConfig.fromConfiguration(super.getConfig(), null);
+        }
+        for (String warning : loaded.getWarnings()) {
+            getLogger().warning(warning);
+        }
+        applyConfig(loaded);
+    }
+    
+    // Safe to call off the main thread; touches nothing but the file
+    private DutyConfig parseConfig() throws IOException, InvalidConfigurationException {
+        long start = System.nanoTime();
+        try (InputStream defaults = getResource("config.yml")) {
+            DutyConfig loaded = DutyConfig.load(new File(getDataFolder(), "config.yml"), defaults, this::groupExists);
+            metrics.record(PluginMetrics.Timer.LOAD_CONFIG, start);
+            return loaded;
+        }
+    }
+    
+    private void updateTabCompleter() {
+        if (tabCompleter != null) {
+            tabCompleter.update(dutyTypes(), getConfig().getInt("tab-completion.max-results", 20));
+        }
+    }
+    
+    private void updateAfkTracker() {
+        if (afkTracker == null) {
+            return;
+        }
+        AfkTracker.Action action;
+        try {
+            action = AfkTracker.Action.valueOf(getConfig().getString("afk.action", "end").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            getLogger().warning("Unknown afk.action, using end.");
+            action = AfkTracker.Action.END;
+        }
+        long idleMillis = getConfig().getBoolean("afk.enabled", false)
+                ? (long) (getConfig().getDouble("afk.idle-minutes", 10) * 60000) : 0;
+        afkTracker.configure(idleMillis, getConfig().getLong("afk.sample-interval-seconds", 5) * 1000, action);
+    }
+    
+    private boolean groupExists(String group) {
+        return luckPerms == null || luckPerms.getGroupManager().getGroup(group) != null;
+    }
+    
+    // Publishes a parsed config, then deals with open sessions of duties it removed or changed
+    private ReloadOutcome applyConfig(DutyConfig loaded) {
+        for (String dutyName : loaded.getDutyTypes().keySet()) {
+            totals.register(dutyName);
+        }
+        DutyConfig previous = dutyConfig;
+        dutyConfig = loaded;
         
-        // Check if going off duty
-        if (args.length == 0) {
-            if (!activeSessions.containsKey(uuid)) {
-                player.sendMessage(ChatColor.RED + "You are not currently on duty!");
-                return true;
+        webhookUrl = getConfig().getString("discord-webhook-url", "");
+        if (webhookDispatcher != null) {
+            webhookDispatcher.setWebhookUrl(webhookUrl);
+        }
+        pageCacheMillis = getConfig().getLong("leaderboard.page-cache-millis", 0);
+        pageCache.clear();
+        updateTabCompleter();
+        updateAfkTracker();
+        
+        ReloadOutcome outcome = new ReloadOutcome(previous == null ? new DutyConfig.Diff() : previous.diff(loaded));
+        if (!outcome.diff.removed.isEmpty() || !outcome.diff.changed.isEmpty()) {
+            boolean migrate = !getConfig().getString("reload.changed-duty-policy", "migrate").equalsIgnoreCase("end");
+            updateAffectedSessions(outcome, loaded.getDutyTypes(), migrate);
+        }
+        return outcome;
+    }
+    
+    // Sessions of removed duties are ended and credited. Sessions of changed duties move to the
+    // new group, or are ended if the policy says so or the player lacks the new permission.
+    private void updateAffectedSessions(ReloadOutcome outcome, Map<String, DutyType> types, boolean migrate) {
+        for (Map.Entry<UUID, DutySession> entry : sessions.entries()) {
+            UUID uuid = entry.getKey();
+            DutySession session = entry.getValue();
+            String dutyName = session.getDutyName();
+            DutyType oldType = outcome.diff.removed.containsKey(dutyName) 
+                    ? outcome.diff.removed.get(dutyName) : outcome.diff.changed.get(dutyName);
+            if (oldType == null) {
+                continue;
             }
             
-            DutySession session = activeSessions.get(uuid);
-            endDutySession(uuid, session);
+            Player player = Bukkit.getPlayer(uuid);
+            DutyType newType = types.get(dutyName);
+            if (newType != null && migrate && player != null && player.hasPermission(newType.getPermission())) {
+                if (!oldType.getGroup().equals(newType.getGroup())) {
+                    if (!oldType.getGroup().isEmpty()) {
+                        toggles.removeGroup(uuid, oldType.getGroup());
+                    }
+                    if (!newType.getGroup().isEmpty() && luckPermsEnabled) {
+                        groupQueue.addGroup(uuid, newType.getGroup(), null, null);
+                    }
+                }
+                outcome.migrated++;
+                continue;
+            }
             
+            if (!sessions.end(uuid, session)) {
+                continue; // went off duty meanwhile
+            }
+            toggles.credit(uuid, session, System.currentTimeMillis());
+            if (!oldType.getGroup().isEmpty()) {
+                toggles.removeGroup(uuid, oldType.getGroup());
+            }
             long duration = System.currentTimeMillis() - session.getStartTime();
             String formattedTime = formatDuration(duration);
-            
-            // Remove LuckPerms group
-            DutyType dutyType = dutyTypes.get(session.getDutyName());
-            if (dutyType != null && !dutyType.getGroup().isEmpty()) {
-                removeGroup(player, dutyType.getGroup());
+            if (player != null) {
+                messages().send(player, Message.OFF_DUTY_RELOAD, new MessageArgs().duty(dutyName).duration(duration));
             }
-            
-            player.sendMessage(ChatColor.GREEN + "You have gone off duty for " + 
-                             ChatColor.YELLOW + session.getDutyName() + 
-                             ChatColor.GREEN + "! Duration: " + ChatColor.AQUA + formattedTime);
-            
-            // Send to Discord
-            sendDiscordMessage(player.getName() + " went OFF duty for **" + session.getDutyName() + 
-                             "** (Duration: " + formattedTime + ")", 15158332);
-            
-            activeSessions.remove(uuid);
-            saveData();
-            return true;
+            sendDiscordMessage(getPlayerName(uuid) + " went OFF duty for **" + dutyName + 
+                             "** after a config reload (Duration: " + formattedTime + ")", 15158332);
+            outcome.ended++;
         }
-        
-        // Going on duty
-        String dutyName = args[0];
-        
-        // Check if duty type exists in config
-        if (!dutyTypes.containsKey(dutyName)) {
-            player.sendMessage(ChatColor.RED + "Unknown duty type: " + dutyName);
-            player.sendMessage(ChatColor.YELLOW + "Available duties: " + String.join(", ", dutyTypes.keySet()));
-            return true;
+    }
+    
+    private void startMetrics() {
+        // Read from the exporter threads; a slightly stale size is fine for a gauge
+        metrics.gauge("dutyplugin_active_sessions", "Players currently on duty", sessions::size);
+        metrics.gauge("dutyplugin_idle_sessions", "Players on duty whose time is paused while idle", afkTracker::idleCount);
+        metrics.gauge("dutyplugin_tracked_players", "Players with stored duty time", totals::playerCount);
+        metrics.gauge("dutyplugin_known_names", "Players in the name index", nameIndex::size);
+        metrics.gauge("dutyplugin_storage_pending_changes", "Duty data changes not yet written", storage::getPendingChanges);
+        metrics.gauge("dutyplugin_webhook_queue_depth", "Discord messages waiting to be sent", webhookDispatcher::getQueueDepth);
+        metrics.counter("dutyplugin_webhook_delivered_total", "Discord messages delivered", webhookDispatcher::getDelivered);
+        metrics.counter("dutyplugin_webhook_dropped_total", "Discord messages dropped because the queue was full", webhookDispatcher::getDropped);
+        metrics.counter("dutyplugin_webhook_rate_limited_total", "Discord 429 responses", webhookDispatcher::getRateLimitHits);
+        if (luckPermsEnabled) {
+            metrics.gauge("dutyplugin_luckperms_pending_changes", "LuckPerms group changes not yet applied", groupQueue::getPendingCount);
+            metrics.counter("dutyplugin_luckperms_applied_total", "LuckPerms group changes applied", groupQueue::getApplied);
+            metrics.counter("dutyplugin_luckperms_coalesced_total", "LuckPerms group changes merged into another write", groupQueue::getCoalesced);
         }
         
-        DutyType dutyType = dutyTypes.get(dutyName);
-        
-        // Check permission
-        if (!player.hasPermission(dutyType.getPermission())) {
-            player.sendMessage(ChatColor.RED + "You don't have permission to go on duty for " + dutyName + "!");
-            player.sendMessage(ChatColor.GRAY + "Required permission: " + dutyType.getPermission());
-            return true;
+        metricsExporter = new MetricsExporter(metrics, getLogger());
+        String file = getConfig().getString("metrics.prometheus-file", "");
+        if (!file.isEmpty()) {
+            File target = new File(file);
+            if (!target.isAbsolute()) {
+                target = new File(getDataFolder(), file);
+            }
+            metricsExporter.startFile(target, TimeUnit.SECONDS.toMillis(getConfig().getLong("metrics.file-interval-seconds", 15)));
         }
-        
-        // Check if already on duty
-        if (activeSessions.containsKey(uuid)) {
-            DutySession currentSession = activeSessions.get(uuid);
-            player.sendMessage(ChatColor.RED + "You are already on duty for " + 
-                             ChatColor.YELLOW + currentSession.getDutyName() + 
-                             ChatColor.RED + "! Use /duty to go off duty first.");
-            return true;
+        int port = getConfig().getInt("metrics.http-port", 0);
+        if (port > 0) {
+            try {
+                metricsExporter.startHttp(port);
+                getLogger().info("Serving metrics on http://127.0.0.1:" + port + "/metrics");
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Could not start the metrics endpoint on port " + port, e);
+            }
         }
-        
-        // Start duty session
-        DutySession session = new DutySession(dutyName, System.currentTimeMillis());
-        activeSessions.put(uuid, session);
-        
-        // Add LuckPerms group
-        if (!dutyType.getGroup().isEmpty()) {
-            addGroup(player, dutyType.getGroup());
+    }
+    
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        // The timer is picked per branch so timing needs no allocation or lookups
+        long start = System.nanoTime();
+        PluginMetrics.Timer timer = null;
+        try {
+            if (command.getName().equalsIgnoreCase("duty")) {
+                if (args.length > 0 && args[0].equalsIgnoreCase("reload")) {
+                    timer = PluginMetrics.Timer.COMMAND_DUTY_RELOAD;
+                    return handleReloadCommand(sender);
+                }
+                
+                if (args.length > 0 && args[0].equalsIgnoreCase("stats")) {
+                    timer = PluginMetrics.Timer.COMMAND_DUTY_STATS;
+                    return handleStatsCommand(sender);
+                }
+                
+                timer = PluginMetrics.Timer.COMMAND_DUTY;
+                if (!(sender instanceof Player)) {
+                    messages().send(sender, Message.ONLY_PLAYERS);
+                    return true;
+                }
+                
+                Player player = (Player) sender;
+                return handleDutyCommand(player, args);
+                
+            } else if (command.getName().equalsIgnoreCase("checktime")) {
+                timer = PluginMetrics.Timer.COMMAND_CHECKTIME;
+                return handleCheckTimeCommand(sender, args);
+                
+            } else if (command.getName().equalsIgnoreCase("dutytimes")) {
+                timer = PluginMetrics.Timer.COMMAND_DUTYTIMES;
+                return handleDutyTimesCommand(sender, args);
+                
+            } else if (command.getName().equalsIgnoreCase("resettime")) {
+                timer = PluginMetrics.Timer.COMMAND_RESETTIME;
+                return handleResetTimeCommand(sender, args);
+                
+            } else if (command.getName().equalsIgnoreCase("dutydata")) {
+                timer = PluginMetrics.Timer.COMMAND_DUTYDATA;
+                return handleDutyDataCommand(sender, args);
+            }
+            
+            return false;
+        } finally {
+            if (timer != null) {
+                metrics.record(timer, start);
+            }
+        }
+    }
+    
+    // Fallback for senders Paper doesn't complete asynchronously; the same in-memory lookups
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        if (tabCompleter == null) {
+            return Collections.emptyList();
+        }
+        List<String> completions = tabCompleter.complete(sender, command.getName().toLowerCase(Locale.ROOT), args);
+        return completions != null ? completions : Collections.emptyList();
+    }
+    
+    private boolean handleReloadCommand(CommandSender sender) {
+        if (!sender.hasPermission("duty.reload")) {
+            messages().send(sender, Message.NO_PERMISSION_RELOAD);
+            return true;
         }
         
-        player.sendMessage(ChatColor.GREEN + "You are now on duty for " + 
-                         ChatColor.YELLOW + dutyName + ChatColor.GREEN + "!");
-        
-        // Send to Discord
-        sendDiscordMessage(player.getName() + " went ON duty for **" + dutyName + "**", 3066993);
-        
+        // Parse and validate off the main thread, then swap the result in on it
+        long start = System.nanoTime();
+        scheduler.runAsync(() -> {
+            DutyConfig loaded;
+            try {
+                loaded = parseConfig();
+            } catch (IOException | InvalidConfigurationException e) {
+                scheduler.runGlobal(() -> messages().send(sender, Message.RELOAD_FAILED, new MessageArgs().input(e.getMessage())));
+                return;
+            }
+            long parseNanos = System.nanoTime() - start;
+            
+            scheduler.runGlobal(() -> {
+                long applyStart = System.nanoTime();
+                ReloadOutcome outcome = applyConfig(loaded);
+                long applyNanos = System.nanoTime() - applyStart;
+                
+                MessageTemplates messages = loaded.getMessages();
+                messages.send(sender, Message.RELOADED,
+                        new MessageArgs().count(loaded.getDutyTypes().size()).timings(parseNanos, applyNanos));
+                if (!outcome.diff.isEmpty()) {
+                    messages.send(sender, Message.RELOAD_CHANGES, new MessageArgs().changes(outcome.diff.added,
+                            outcome.diff.removed.keySet(), outcome.diff.changed.keySet()));
+                }
+                if (outcome.ended > 0 || outcome.migrated > 0) {
+                    messages.send(sender, Message.RELOAD_SESSIONS, new MessageArgs().count(outcome.ended).kept(outcome.migrated));
+                }
+                for (String warning : loaded.getWarnings()) {
+                    messages.send(sender, Message.RELOAD_WARNING, new MessageArgs().input(warning));
+                }
+            });
+        });
         return true;
     }
     
-    private void addGroup(Player player, String groupName) {
-        if (!luckPermsEnabled) return;
-        
-        User user = luckPerms.getUserManager().getUser(player.getUniqueId());
-        if (user == null) return;
-        
-        Node node = Node.builder("group." + groupName).build();
-        user.data().add(node);
-        luckPerms.getUserManager().saveUser(user);
+    private boolean handleStatsCommand(CommandSender sender) {
+        if (!sender.hasPermission("duty.stats")) {
+            messages().send(sender, Message.NO_PERMISSION_STATS);
+            return true;
+        }
         
-        player.sendMessage(ChatColor.GRAY + "Added to group: " + ChatColor.YELLOW + groupName);
+        MessageTemplates messages = messages();
+        List<String> lines = new ArrayList<>(storage.describeStats());
+        lines.addAll(compactor.describeStats());
+        if (luckPermsEnabled) {
+            lines.add("LuckPerms: " + groupQueue.getApplied() + " group changes in " + groupQueue.getStorageWrites() +
+                      " writes (avg " + String.format("%.1f", groupQueue.getAverageWriteMillis()) + "ms), " +
+                      groupQueue.getCoalesced() + " coalesced, " + groupQueue.getPendingCount() + " pending");
+        }
+        lines.add("Discord: " + webhookDispatcher.getDelivered() + " delivered in " + webhookDispatcher.getRequests() +
+                  " requests, " + webhookDispatcher.getQueueDepth() + " queued, " + webhookDispatcher.getDropped() +
+                  " dropped, " + webhookDispatcher.getRateLimitHits() + " rate limited");
+        lines.add("Discord latency: avg " + String.format("%.0f", webhookDispatcher.getAverageLatencyMillis()) +
+                  "ms, max " + webhookDispatcher.getMaxLatencyMillis() + "ms");
+        
+        messages.send(sender, Message.STATS_HEADER);
+        for (String line : lines) {
+            messages.send(sender, Message.STATS_LINE, new MessageArgs().input(line));
+        }
+        messages.send(sender, Message.STATS_TIMINGS);
+        for (String line : metrics.describe()) {
+            messages.send(sender, Message.STATS_LINE, new MessageArgs().input(line));
+        }
+        return true;
     }
     
-    private void removeGroup(Player player, String groupName) {
-        if (!luckPermsEnabled) return;
-        
-        User user = luckPerms.getUserManager().getUser(player.getUniqueId());
-        if (user == null) return;
-        
-        Node node = Node.builder("group." + groupName).build();
-        user.data().remove(node);
-        luckPerms.getUserManager().saveUser(user);
-        
-        player.sendMessage(ChatColor.GRAY + "Removed from group: " + ChatColor.YELLOW + groupName);
+    private boolean handleDutyCommand(Player player, String[] args) {
+        if (args.length == 0) {
+            toggles.stop(player);
+        } else {
+            toggles.start(player, args[0]);
+        }
+        return true;
     }
     
     private boolean handleCheckTimeCommand(CommandSender sender, String[] args) {
-        // /checktime <duty_name> - check your own time
-        // /checktime <player> <duty_name> - check another player's time (requires permission)
+        // /checktime <duty_name> [range] - check your own time
+        // /checktime <player> <duty_name> [range] - check another player's time (requires permission)
         
         if (args.length == 0) {
-            sender.sendMessage(ChatColor.RED + "Usage: /checktime <duty_name> or /checktime <player> <duty_name>");
-            sender.sendMessage(ChatColor.YELLOW + "Available duties: " + String.join(", ", dutyTypes.keySet()));
+            messages().send(sender, Message.CHECKTIME_USAGE);
+            messages().send(sender, Message.AVAILABLE_DUTIES, new MessageArgs().duties(dutyTypes().keySet()));
             return true;
         }
         
+        // A trailing range argument limits the time to that window
+        DutyRollups.Window window = null;
+        if (args.length == 3 || (args.length == 2 && dutyTypes().containsKey(args[0]))) {
+            window = rollups.parseWindow(args[args.length - 1], System.currentTimeMillis());
+            if (window == null && args.length == 3) {
+                messages().send(sender, Message.INVALID_RANGE, new MessageArgs().input(args[2]));
+                return true;
+            }
+            if (window != null) {
+                args = Arrays.copyOf(args, args.length - 1);
+            }
+        }
+        DutyRollups.Window range = window;
+        
         if (args.length == 1) {
             // Check own time
             if (!(sender instanceof Player)) {
-                sender.sendMessage(ChatColor.RED + "Console must specify a player: /checktime <player> <duty_name>");
+                messages().send(sender, Message.CONSOLE_NEEDS_PLAYER);
                 return true;
             }
             
@@ -278,151 +882,294 @@ public class DutyPlugin extends JavaPlugin {
             String dutyName = args[0];
             UUID uuid = player.getUniqueId();
             
-            long totalTime = getTotalTime(uuid, dutyName);
-            String formattedTime = formatDuration(totalTime);
+            if (range != null) {
+                messages().send(player, Message.OWN_TIME_RANGE, new MessageArgs().duty(dutyName)
+                        .range(range.getLabel()).duration(getWindowTime(uuid, dutyName, range)));
+                return true;
+            }
             
-            player.sendMessage(ChatColor.GREEN + "Your total time for " + 
-                             ChatColor.YELLOW + dutyName + 
-                             ChatColor.GREEN + ": " + ChatColor.AQUA + formattedTime);
+            whenLoaded(uuid, () -> {
+                long total = getTotalTime(uuid, dutyName);
+                if (total == 0) {
+                    sendArchivedTime(player, uuid, null, dutyName);
+                    return;
+                }
+                int rank = getRank(uuid, dutyName);
+                messages().send(player, rank < 1 ? Message.OWN_TIME_UNRANKED : Message.OWN_TIME, 
+                        new MessageArgs().duty(dutyName).duration(total).rank(rank));
+            });
             return true;
         }
         
         // Check another player's time
         if (!sender.hasPermission("duty.checkothers")) {
-            sender.sendMessage(ChatColor.RED + "You don't have permission to check other players' times!");
+            messages().send(sender, Message.NO_PERMISSION_CHECKOTHERS);
             return true;
         }
         
         String targetName = args[0];
         String dutyName = args[1];
         
-        @SuppressWarnings("deprecation")
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
-        
-        if (target == null || (!target.hasPlayedBefore() && !target.isOnline())) {
-            sender.sendMessage(ChatColor.RED + "Player not found: " + targetName);
+        UUID targetUuid = nameIndex.getUuid(targetName);
+        if (targetUuid != null) {
+            sendOtherPlayerTime(sender, targetUuid, nameIndex.getName(targetUuid), dutyName, range);
             return true;
         }
         
-        UUID targetUuid = target.getUniqueId();
-        long totalTime = getTotalTime(targetUuid, dutyName);
-        String formattedTime = formatDuration(totalTime);
-        
-        sender.sendMessage(ChatColor.GREEN + target.getName() + "'s total time for " + 
-                         ChatColor.YELLOW + dutyName + 
-                         ChatColor.GREEN + ": " + ChatColor.AQUA + formattedTime);
+        // Not in the index; look it up in the background and reply when done
+        lookupPlayerAsync(targetName, (uuid, name) -> {
+            if (uuid == null) {
+                messages().send(sender, Message.PLAYER_NOT_FOUND, new MessageArgs().player(targetName));
+                return;
+            }
+            sendOtherPlayerTime(sender, uuid, name, dutyName, range);
+        });
         
         return true;
     }
     
+    private void sendOtherPlayerTime(CommandSender sender, UUID targetUuid, String targetName, String dutyName,
+                                     DutyRollups.Window range) {
+        if (range != null) {
+            messages().send(sender, Message.OTHER_TIME_RANGE, new MessageArgs().player(targetName).duty(dutyName)
+                    .range(range.getLabel()).duration(getWindowTime(targetUuid, dutyName, range)));
+            return;
+        }
+        
+        // An offline player's shard is read in the background before answering
+        whenLoaded(targetUuid, () -> {
+            long total = getTotalTime(targetUuid, dutyName);
+            if (total == 0) {
+                sendArchivedTime(sender, targetUuid, targetName, dutyName);
+                return;
+            }
+            int rank = getRank(targetUuid, dutyName);
+            messages().send(sender, rank < 1 ? Message.OTHER_TIME_UNRANKED : Message.OTHER_TIME, 
+                    new MessageArgs().player(targetName).duty(dutyName).duration(total).rank(rank));
+        });
+    }
+    
+    // A player with no time may have archived time, which is read in the background. targetName is null for the sender's own.
+    private void sendArchivedTime(CommandSender sender, UUID uuid, String targetName, String dutyName) {
+        scheduler.runAsync(() -> {
+            long archived = 0;
+            try {
+                archived = compactor.archivedTime(uuid, dutyName);
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Could not read the archived duty times of " + uuid, e);
+            }
+            MessageArgs args = new MessageArgs().duty(dutyName).duration(archived);
+            if (targetName == null) {
+                messages().send(sender, archived > 0 ? Message.OWN_TIME_ARCHIVED : Message.OWN_TIME_UNRANKED, args);
+            } else {
+                messages().send(sender, archived > 0 ? Message.OTHER_TIME_ARCHIVED : Message.OTHER_TIME_UNRANKED, args.player(targetName));
+            }
+        });
+    }
+    
     private boolean handleDutyTimesCommand(CommandSender sender, String[] args) {
-        // /dutytimes <duty_name> [page]
+        // /dutytimes <duty_name> [range] [page]
         
         if (!sender.hasPermission("duty.viewall")) {
-            sender.sendMessage(ChatColor.RED + "You don't have permission to view all duty times!");
+            messages().send(sender, Message.NO_PERMISSION_VIEWALL);
             return true;
         }
         
         if (args.length == 0) {
-            sender.sendMessage(ChatColor.RED + "Usage: /dutytimes <duty_name> [page]");
-            sender.sendMessage(ChatColor.YELLOW + "Available duties: " + String.join(", ", dutyTypes.keySet()));
+            messages().send(sender, Message.DUTYTIMES_USAGE);
+            messages().send(sender, Message.AVAILABLE_DUTIES, new MessageArgs().duties(dutyTypes().keySet()));
             return true;
         }
         
         String dutyName = args[0];
         int page = 1;
         
+        DutyRollups.Window window = null;
         if (args.length > 1) {
+            window = rollups.parseWindow(args[1], System.currentTimeMillis());
+        }
+        int pageArg = window != null ? 2 : 1;
+        
+        if (args.length > pageArg) {
             try {
-                page = Integer.parseInt(args[1]);
+                page = Integer.parseInt(args[pageArg]);
                 if (page < 1) page = 1;
             } catch (NumberFormatException e) {
-                sender.sendMessage(ChatColor.RED + "Invalid page number!");
+                messages().send(sender, Message.INVALID_PAGE);
                 return true;
             }
         }
         
-        // Collect all players and their times
-        List<PlayerTimeEntry> entries = new ArrayList<>();
-        ConfigurationSection playersSection = dataConfig.getConfigurationSection("players");
+        int ordinal = totals.ordinalOf(dutyName);
+        int entriesPerPage = 10;
         
-        if (playersSection != null) {
-            for (String uuidStr : playersSection.getKeys(false)) {
-                try {
-                    UUID uuid = UUID.fromString(uuidStr);
-                    long time = getTotalTime(uuid, dutyName);
-                    
-                    if (time > 0) {
-                        @SuppressWarnings("deprecation")
-                        OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
-                        String playerName = player.getName() != null ? player.getName() : "Unknown";
-                        entries.add(new PlayerTimeEntry(playerName, time));
-                    }
-                } catch (IllegalArgumentException ignored) {}
-            }
+        // Serve an already rendered page if the ranking hasn't changed since. Pages are only
+        // stored under their real number, so a page past the end misses and is clamped below.
+        // Ranges are keyed by the buckets they resolved to, so a new day doesn't serve yesterday's.
+        String rangeArg = window != null ? args[1] : "";
+        String cachePrefix = dutyName + ":" + (window != null ? rangeArg + "@" + window.getKey() : "") + ":";
+        long version = getDataVersion();
+        if (sendCachedPage(sender, cachePrefix + page, version)) {
+            return true;
         }
         
-        // Sort by time (descending)
-        entries.sort((a, b) -> Long.compare(b.time, a.time));
+        // Open sessions are merged into the stored ranking at query time
+        Map<UUID, Long> live = null;
+        List<RankedLeaderboard.Entry> windowRanking = null;
+        int rankedCount;
+        if (window != null) {
+            windowRanking = getWindowRanking(dutyName, window);
+            rankedCount = windowRanking.size();
+        } else {
+            live = getLiveTotals(dutyName);
+            rankedCount = totals.rankedCount(ordinal, live);
+        }
         
-        if (entries.isEmpty()) {
-            sender.sendMessage(ChatColor.YELLOW + "No recorded times for " + dutyName);
+        MessageTemplates messages = messages();
+        String rangeLabel = window != null ? window.getLabel() : null;
+        if (rankedCount == 0) {
+            messages.send(sender, Message.LEADERBOARD_EMPTY, new MessageArgs().duty(dutyName).range(rangeLabel));
             return true;
         }
         
         // Pagination
-        int entriesPerPage = 10;
-        int totalPages = (int) Math.ceil((double) entries.size() / entriesPerPage);
+        int totalPages = (int) Math.ceil((double) rankedCount / entriesPerPage);
         
-        if (page > totalPages) page = totalPages;
+        if (page > totalPages) {
+            page = totalPages;
+            if (sendCachedPage(sender, cachePrefix + page, version)) {
+                return true;
+            }
+        }
         
         int startIndex = (page - 1) * entriesPerPage;
-        int endIndex = Math.min(startIndex + entriesPerPage, entries.size());
+        List<RankedLeaderboard.Entry> entries = window != null
+                ? windowRanking.subList(startIndex, Math.min(startIndex + entriesPerPage, rankedCount))
+                : totals.page(ordinal, startIndex, entriesPerPage, live);
+        List<Component> lines = new ArrayList<>(entriesPerPage + 5);
         
         // Display header
-        sender.sendMessage(ChatColor.GOLD + "═══════════════════════════════════════");
-        sender.sendMessage(ChatColor.YELLOW + "Duty Times for " + ChatColor.AQUA + dutyName + 
-                         ChatColor.GRAY + " (Page " + page + "/" + totalPages + ")");
-        sender.sendMessage(ChatColor.GOLD + "═══════════════════════════════════════");
+        Component border = messages.get(Message.LEADERBOARD_BORDER).render(null);
+        lines.add(border);
+        lines.add(messages.get(Message.LEADERBOARD_HEADER).render(new MessageArgs().duty(dutyName)
+                .range(rangeLabel).page(page, totalPages)));
+        lines.add(border);
         
         // Display entries
-        for (int i = startIndex; i < endIndex; i++) {
-            PlayerTimeEntry entry = entries.get(i);
-            int rank = i + 1;
-            String rankColor = getRankColor(rank);
-            
-            sender.sendMessage(rankColor + "#" + rank + ". " + 
-                             ChatColor.WHITE + entry.playerName + 
-                             ChatColor.GRAY + " - " + 
-                             ChatColor.AQUA + formatDuration(entry.time));
+        MessageTemplate entryTemplate = messages.get(Message.LEADERBOARD_ENTRY);
+        for (int i = 0; i < entries.size(); i++) {
+            RankedLeaderboard.Entry entry = entries.get(i);
+            lines.add(entryTemplate.render(new MessageArgs().rank(startIndex + i + 1)
+                    .player(getPlayerName(entry.getUuid())).duration(entry.getTime())));
         }
         
         // Display footer
-        sender.sendMessage(ChatColor.GOLD + "═══════════════════════════════════════");
+        lines.add(border);
         if (page < totalPages) {
-            sender.sendMessage(ChatColor.GRAY + "Use " + ChatColor.YELLOW + "/dutytimes " + dutyName + " " + (page + 1) + 
-                             ChatColor.GRAY + " for next page");
+            lines.add(messages.get(Message.LEADERBOARD_NEXT_PAGE).render(new MessageArgs().command(
+                    "/dutytimes " + dutyName + " " + (window != null ? rangeArg + " " : "") + (page + 1))));
+        }
+        
+        for (Component line : lines) {
+            sender.sendMessage(line);
+        }
+        // Pages with open sessions would never be served again with page-cache-millis at 0
+        boolean livePage = hasOpenSession(dutyName);
+        if (!livePage || pageCacheMillis > 0) {
+            if (pageCache.size() >= MAX_CACHED_PAGES) {
+                pageCache.values().removeIf(stale -> stale.version != version);
+                if (pageCache.size() >= MAX_CACHED_PAGES) {
+                    pageCache.clear();
+                }
+            }
+            pageCache.put(cachePrefix + page, new CachedPage(lines, version, livePage, System.currentTimeMillis()));
         }
         
         return true;
     }
     
-    private String getRankColor(int rank) {
-        switch (rank) {
-            case 1: return ChatColor.GOLD.toString();
-            case 2: return ChatColor.GRAY.toString();
-            case 3: return ChatColor.YELLOW.toString();
-            default: return ChatColor.WHITE.toString();
+    private boolean sendCachedPage(CommandSender sender, String cacheKey, long version) {
+        CachedPage cached = pageCache.get(cacheKey);
+        if (cached == null || cached.version != version 
+                || (cached.live && cached.renderedAt + pageCacheMillis <= System.currentTimeMillis())) {
+            return false;
+        }
+        for (Component line : cached.lines) {
+            sender.sendMessage(line);
         }
+        return true;
+    }
+    
+    // Changes whenever stored totals, rollups or open sessions change, used to invalidate cached pages
+    private long getDataVersion() {
+        return totals.getVersion() + rollups.getVersion() + sessions.getVersion();
+    }
+    
+    // Pages of a duty with open sessions go stale as those sessions run
+    private boolean hasOpenSession(String dutyName) {
+        for (Map.Entry<UUID, DutySession> entry : sessions.entries()) {
+            if (entry.getValue().getDutyName().equals(dutyName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Time inside a window, including the part of an open session that falls in it
+    private long getWindowTime(UUID uuid, String dutyName, DutyRollups.Window window) {
+        long time = rollups.sum(uuid, totals.ordinalOf(dutyName), window);
+        DutySession session = sessions.get(uuid);
+        if (session != null && session.getDutyName().equals(dutyName)) {
+            time += rollups.overlap(window, session.getStartTime(), System.currentTimeMillis());
+        }
+        return time;
+    }
+    
+    // Ranking for a window. Only players with time in the window are touched, so sorting them is cheap.
+    private List<RankedLeaderboard.Entry> getWindowRanking(String dutyName, DutyRollups.Window window) {
+        Map<UUID, Long> sums = rollups.sumAll(totals.ordinalOf(dutyName), window);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<UUID, DutySession> entry : sessions.entries()) {
+            if (entry.getValue().getDutyName().equals(dutyName)) {
+                long overlap = rollups.overlap(window, entry.getValue().getStartTime(), now);
+                if (overlap > 0) {
+                    sums.merge(entry.getKey(), overlap, Long::sum);
+                }
+            }
+        }
+        
+        List<RankedLeaderboard.Entry> ranking = new ArrayList<>(sums.size());
+        for (Map.Entry<UUID, Long> entry : sums.entrySet()) {
+            ranking.add(new RankedLeaderboard.Entry(entry.getKey(), entry.getValue()));
+        }
+        ranking.sort((a, b) -> a.getTime() != b.getTime() 
+                ? Long.compare(b.getTime(), a.getTime()) 
+                : a.getUuid().compareTo(b.getUuid()));
+        return ranking;
+    }
+    
+    // Stored + open session time for every player currently on duty for the given duty
+    private Map<UUID, Long> getLiveTotals(String dutyName) {
+        Map<UUID, Long> live = new HashMap<>();
+        for (Map.Entry<UUID, DutySession> entry : sessions.entries()) {
+            if (entry.getValue().getDutyName().equals(dutyName)) {
+                live.put(entry.getKey(), getTotalTime(entry.getKey(), dutyName));
+            }
+        }
+        return live;
+    }
+    
+    // 1-based rank including open sessions, or 0 if the player has no time
+    private int getRank(UUID uuid, String dutyName) {
+        return totals.rank(uuid, totals.ordinalOf(dutyName), getLiveTotals(dutyName));
     }
     
     private long getTotalTime(UUID uuid, String dutyName) {
-        String path = "players." + uuid.toString() + "." + dutyName;
-        long totalTime = dataConfig.getLong(path, 0);
+        long totalTime = totals.get(uuid, totals.ordinalOf(dutyName));
         
         // Add current session time if on duty for this
-        if (activeSessions.containsKey(uuid)) {
-            DutySession session = activeSessions.get(uuid);
+        DutySession session = sessions.get(uuid);
+        if (session != null) {
             if (session.getDutyName().equals(dutyName)) {
                 totalTime += System.currentTimeMillis() - session.getStartTime();
             }
@@ -431,135 +1178,273 @@ public class DutyPlugin extends JavaPlugin {
         return totalTime;
     }
     
-    private boolean handleResetTimeCommand(Player player, String[] args) {
-        if (!player.hasPermission("duty.reset")) {
-            player.sendMessage(ChatColor.RED + "You don't have permission to reset duty time!");
+    private boolean handleResetTimeCommand(CommandSender sender, String[] args) {
+        // /resettime <duty_name|ALL> - your own times
+        // /resettime <duty_name|ALL> <player> - another player's (duty.reset.others)
+        // /resettime <duty_name|ALL> * confirm - everyone's (duty.reset.everyone)
+        if (!sender.hasPermission("duty.reset")) {
+            messages().send(sender, Message.NO_PERMISSION_RESET);
             return true;
         }
         
         if (args.length == 0) {
-            player.sendMessage(ChatColor.RED + "Usage: /resettime <duty_name|ALL>");
+            messages().send(sender, Message.RESETTIME_USAGE);
             return true;
         }
         
         String target = args[0];
-        UUID uuid = player.getUniqueId();
+        boolean all = target.equalsIgnoreCase("ALL");
+        // Removed duties still have times to reset, so only a name nothing knows is refused
+        if (!all && totals.ordinalOf(target) < 0 && !dutyTypes().containsKey(target)) {
+            messages().send(sender, Message.UNKNOWN_DUTY, new MessageArgs().duty(target));
+            messages().send(sender, Message.AVAILABLE_DUTIES, new MessageArgs().duties(dutyTypes().keySet()));
+            return true;
+        }
         
-        if (target.equalsIgnoreCase("ALL")) {
-            dataConfig.set("players." + uuid.toString(), null);
-            saveData();
-            player.sendMessage(ChatColor.GREEN + "All duty times have been reset!");
-        } else {
-            String path = "players." + uuid.toString() + "." + target;
-            dataConfig.set(path, 0);
-            saveData();
-            player.sendMessage(ChatColor.GREEN + "Duty time for " + 
-                             ChatColor.YELLOW + target + 
-                             ChatColor.GREEN + " has been reset!");
+        if (args.length == 1) {
+            if (!(sender instanceof Player)) {
+                messages().send(sender, Message.ONLY_PLAYERS);
+                return true;
+            }
+            resetPlayer(((Player) sender).getUniqueId(), all ? null : target, () -> 
+                    messages().send(sender, all ? Message.RESET_ALL : Message.RESET_DUTY, new MessageArgs().duty(target)));
+            return true;
+        }
+        
+        if (args[1].equals("*")) {
+            if (!sender.hasPermission("duty.reset.everyone")) {
+                messages().send(sender, Message.NO_PERMISSION_RESET_EVERYONE);
+                return true;
+            }
+            if (args.length < 3 || !args[2].equalsIgnoreCase("confirm")) {
+                messages().send(sender, Message.RESET_CONFIRM, new MessageArgs()
+                        .duty(all ? "all duties" : target).command("/resettime " + target + " * confirm"));
+                return true;
+            }
+            int players = resetEveryone(all ? null : target);
+            messages().send(sender, all ? Message.RESET_EVERYONE_ALL : Message.RESET_EVERYONE_DUTY, 
+                    new MessageArgs().duty(target).count(players));
+            return true;
         }
         
+        if (!sender.hasPermission("duty.reset.others")) {
+            messages().send(sender, Message.NO_PERMISSION_RESET_OTHERS);
+            return true;
+        }
+        String targetName = args[1];
+        UUID targetUuid = nameIndex.getUuid(targetName);
+        BiConsumer<UUID, String> reset = (uuid, name) -> {
+            if (uuid == null) {
+                messages().send(sender, Message.PLAYER_NOT_FOUND, new MessageArgs().player(targetName));
+                return;
+            }
+            resetPlayer(uuid, all ? null : target, () -> 
+                    messages().send(sender, all ? Message.RESET_OTHER_ALL : Message.RESET_OTHER_DUTY, 
+                            new MessageArgs().player(name).duty(target)));
+        };
+        if (targetUuid != null) {
+            reset.accept(targetUuid, nameIndex.getName(targetUuid));
+        } else {
+            lookupPlayerAsync(targetName, reset);
+        }
         return true;
     }
     
-    private void endDutySession(UUID uuid, DutySession session) {
-        long duration = System.currentTimeMillis() - session.getStartTime();
-        String path = "players." + uuid.toString() + "." + session.getDutyName();
-        long currentTotal = dataConfig.getLong(path, 0);
-        dataConfig.set(path, currentTotal + duration);
+    // Resets one player's time for a duty, or all their time if dutyName is null, then runs done.
+    // Resetting one duty needs the player's other times, so they are loaded first if need be.
+    private void resetPlayer(UUID uuid, String dutyName, Runnable done) {
+        if (dutyName == null) {
+            totals.remove(uuid);
+            rollups.removePlayer(uuid);
+            storage.playerReset(uuid);
+            rollupPersister.markDirty();
+            done.run();
+            return;
+        }
+        whenLoaded(uuid, () -> {
+            int ordinal = totals.ordinalOf(dutyName);
+            totals.reset(uuid, ordinal);
+            rollups.removeDuty(uuid, ordinal);
+            storage.totalReset(uuid, dutyName);
+            rollupPersister.markDirty();
+            done.run();
+        });
     }
     
-    private void saveData() {
-        try {
-            dataConfig.save(dataFile);
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Runs action on the main thread with the player's times in memory. With sharded storage a
+    // player who isn't resident is loaded in the background first, so no shard is read on the main thread.
+    private void whenLoaded(UUID uuid, Runnable action) {
+        if (totals.isResident(uuid)) {
+            action.run();
+            return;
         }
+        scheduler.runAsync(() -> {
+            totals.preload(uuid);
+            scheduler.runGlobal(action);
+        });
     }
     
-    private String formatDuration(long millis) {
-        long hours = TimeUnit.MILLISECONDS.toHours(millis);
-        long minutes = TimeUnit.MILLISECONDS.toMinutes(millis) % 60;
-        long seconds = TimeUnit.MILLISECONDS.toSeconds(millis) % 60;
-        
-        return String.format("%dh %dm %ds", hours, minutes, seconds);
+    // Resets a duty, or everything if dutyName is null, for every player as one change each to
+    // the totals, the rollups and storage. Returns how many players had time.
+    private int resetEveryone(String dutyName) {
+        int players;
+        if (dutyName == null) {
+            players = totals.clear();
+            rollups.clear();
+            storage.allReset();
+        } else {
+            int ordinal = totals.ordinalOf(dutyName);
+            players = totals.resetDuty(ordinal);
+            rollups.removeDutyAll(ordinal);
+            storage.dutyResetForAll(dutyName);
+        }
+        rollupPersister.markDirty();
+        return players;
     }
     
-    private void sendDiscordMessage(String message, int color) {
-        if (webhookUrl.isEmpty()) {
-            return;
+    private boolean handleDutyDataCommand(CommandSender sender, String[] args) {
+        // /dutydata export <csv|ndjson> [duty_name]
+        // /dutydata import <file> [duty_name]
+        // /dutydata compact
+        if (!sender.hasPermission("duty.data")) {
+            messages().send(sender, Message.NO_PERMISSION_DATA);
+            return true;
+        }
+        
+        if (args.length == 1 && args[0].equalsIgnoreCase("compact")) {
+            messages().send(sender, Message.COMPACT_STARTED);
+            compactor.compactNow().whenComplete((pass, error) -> {
+                if (error != null) {
+                    getLogger().log(Level.SEVERE, "Duty data compaction failed", error);
+                    messages().send(sender, Message.DATA_FAILED, new MessageArgs().input("compaction"));
+                } else if (pass == null) {
+                    messages().send(sender, Message.DATA_BUSY);
+                } else {
+                    messages().send(sender, Message.COMPACT_DONE, new MessageArgs().count(pass.playersArchived));
+                }
+            });
+            return true;
         }
         
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+        boolean export = args.length >= 2 && args[0].equalsIgnoreCase("export");
+        boolean restore = args.length >= 2 && args[0].equalsIgnoreCase("import");
+        DutyDataTransfer.Format format = export ? DutyDataTransfer.Format.fromName(args[1]) : null;
+        if ((!export && !restore) || (export && format == null)) {
+            messages().send(sender, Message.DUTYDATA_USAGE);
+            return true;
+        }
+        String dutyFilter = args.length >= 3 ? args[2] : null;
+        
+        if (!dataTransfer.tryStart()) {
+            messages().send(sender, Message.DATA_BUSY);
+            return true;
+        }
+        String what = export ? "export" : "import";
+        scheduler.runAsync(() -> {
+            long start = System.nanoTime();
             try {
-                URL url = new URL(webhookUrl);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Content-Type", "application/json");
-                conn.setDoOutput(true);
-                
-                String json = String.format(
-                    "{\"embeds\":[{\"description\":\"%s\",\"color\":%d,\"timestamp\":\"%s\"}]}",
-                    message, color, java.time.Instant.now().toString()
-                );
-                
-                conn.getOutputStream().write(json.getBytes(StandardCharsets.UTF_8));
-                conn.getResponseCode();
-                conn.disconnect();
-            } catch (Exception e) {
-                e.printStackTrace();
+                if (export) {
+                    DutyDataTransfer.Result result = dataTransfer.export(format, dutyFilter);
+                    metrics.record(PluginMetrics.Timer.EXPORT_DATA, start);
+                    messages().send(sender, Message.EXPORT_DONE, new MessageArgs()
+                            .count(result.rows).file(result.file.getName()));
+                    return;
+                }
+                DutyDataTransfer.Result result = dataTransfer.importFile(args[1], dutyFilter);
+                if (result == null) {
+                    messages().send(sender, Message.DATA_FILE_NOT_FOUND, new MessageArgs().file(args[1]));
+                    return;
+                }
+                metrics.record(PluginMetrics.Timer.IMPORT_DATA, start);
+                messages().send(sender, Message.IMPORT_DONE, new MessageArgs()
+                        .count(result.rows).file(result.file.getName()));
+                if (result.skipped > 0) {
+                    messages().send(sender, Message.IMPORT_SKIPPED, new MessageArgs().count(result.skipped));
+                }
+            } catch (IOException | RuntimeException e) {
+                getLogger().log(Level.SEVERE, "Duty data " + what + " failed", e);
+                messages().send(sender, Message.DATA_FAILED, new MessageArgs().input(what));
+            } finally {
+                dataTransfer.finish();
             }
         });
+        return true;
     }
     
-    private static class DutySession {
-        private final String dutyName;
-        private final long startTime;
-        
-        public DutySession(String dutyName, long startTime) {
-            this.dutyName = dutyName;
-            this.startTime = startTime;
+    private final DutySync.Handler syncHandler = new DutySync.Handler() {
+        // Both servers started a session before hearing of the other; the one that started later ends
+        @Override
+        public void endedElsewhere(UUID uuid, DutySession session, String server) {
+            if (!sessions.end(uuid, session)) {
+                return;
+            }
+            long duration = endRemoteSession(uuid, session);
+            Player player = Bukkit.getPlayer(uuid);
+            if (player != null) {
+                messages().send(player, Message.ENDED_ELSEWHERE,
+                        new MessageArgs().duty(session.getDutyName()).server(server).duration(duration));
+            }
         }
         
-        public String getDutyName() {
-            return dutyName;
+        // The player used /duty on another server
+        @Override
+        public void endRequested(UUID uuid, String server) {
+            DutySession session = sessions.end(uuid);
+            if (session == null) {
+                return;
+            }
+            long duration = endRemoteSession(uuid, session);
+            sendDiscordMessage(getPlayerName(uuid) + " went OFF duty for **" + session.getDutyName() + 
+                             "** from " + server + " (Duration: " + formatDuration(duration) + ")", 15158332);
         }
-        
-        public long getStartTime() {
-            return startTime;
+    };
+    
+    // Credits a session that was ended because of another server and removes its group. Returns its duration.
+    private long endRemoteSession(UUID uuid, DutySession session) {
+        toggles.credit(uuid, session, System.currentTimeMillis());
+        nameIndex.touch(uuid);
+        DutyType dutyType = dutyTypes().get(session.getDutyName());
+        if (dutyType != null && !dutyType.getGroup().isEmpty()) {
+            toggles.removeGroup(uuid, dutyType.getGroup());
         }
+        return System.currentTimeMillis() - session.getStartTime();
     }
     
-    private static class PlayerTimeEntry {
-        String playerName;
-        long time;
-        
-        public PlayerTimeEntry(String playerName, long time) {
-            this.playerName = playerName;
-            this.time = time;
-        }
+    // "1h 2m 3s". Called for every leaderboard line, so it builds the string directly instead of using String.format.
+    static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        return new StringBuilder(16)
+                .append(seconds / 3600).append("h ")
+                .append(seconds / 60 % 60).append("m ")
+                .append(seconds % 60).append('s')
+                .toString();
     }
     
-    private static class DutyType {
-        private final String name;
-        private final String permission;
-        private final String group;
-        
-        public DutyType(String name, String permission, String group) {
-            this.name = name;
-            this.permission = permission;
-            this.group = group;
-        }
-        
-        public String getName() {
-            return name;
-        }
+    private void sendDiscordMessage(String message, int color) {
+        webhookDispatcher.enqueue(message, color);
+    }
+    
+    private static class ReloadOutcome {
+        final DutyConfig.Diff diff;
+        int ended;
+        int migrated;
         
-        public String getPermission() {
-            return permission;
+        ReloadOutcome(DutyConfig.Diff diff) {
+            this.diff = diff;
         }
-        
-        public String getGroup() {
-            return group;
+    }
+    
+    private static class CachedPage {
+        final List<Component> lines;
+        final long version;
+        final boolean live; // included open sessions, so it is only reused for page-cache-millis
+        final long renderedAt;
+        
+        public CachedPage(List<Component> lines, long version, boolean live, long renderedAt) {
+            this.lines = lines;
+            this.version = version;
+            this.live = live;
+            this.renderedAt = renderedAt;
         }
     }
 }
@@ -0,0 +1,374 @@
+package com.example.dutyplugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Pre-aggregated duty time per player in day, week and month buckets, so "this week" or
+ * "last 30 days" is answered by summing a handful of buckets instead of scanning sessions.
+ * Sessions that cross a bucket boundary are split between the buckets. Buckets older than
+ * the configured retention are evicted. Duty names are shared with DutyTotals' ordinals.
+ * The start of each player's last recorded session is saved with the buckets, so a session
+ * credited again after a crash is only recorded once.
+ */
+class DutyRollups {
+
+    public enum Granularity {
+        DAY, WEEK, MONTH
+    }
+
+    // A range of whole buckets of one granularity, both ends inclusive
+    public static class Window {
+        private final Granularity granularity;
+        private final long fromKey;
+        private final long toKey;
+        private final String label;
+
+        Window(Granularity granularity, long fromKey, long toKey, String label) {
+            this.granularity = granularity;
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        // The buckets it covers, which move on for ranges like 7d as days roll over
+        public String getKey() {
+            return granularity + ":" + fromKey + "-" + toKey;
+        }
+    }
+
+    private final DutyTotals totals;
+    private final ZoneId zone;
+    private final EnumMap<Granularity, Integer> retention = new EnumMap<>(Granularity.class);
+    // granularity -> bucket key -> player -> time per duty ordinal
+    private final EnumMap<Granularity, TreeMap<Long, Map<UUID, long[]>>> buckets = new EnumMap<>(Granularity.class);
+    // A player is on duty once at a time, so their sessions are recorded in order of start
+    private final Map<UUID, Long> lastRecorded = new HashMap<>();
+    private long prunedDay = Long.MIN_VALUE;
+    private long version;
+
+    public DutyRollups(DutyTotals totals, ZoneId zone, int retentionDays, int retentionWeeks, int retentionMonths) {
+        this.totals = totals;
+        this.zone = zone;
+        retention.put(Granularity.DAY, Math.max(1, retentionDays));
+        retention.put(Granularity.WEEK, Math.max(1, retentionWeeks));
+        retention.put(Granularity.MONTH, Math.max(1, retentionMonths));
+        for (Granularity granularity : Granularity.values()) {
+            buckets.put(granularity, new TreeMap<>());
+        }
+    }
+
+    /**
+     * Parses a range argument: day/today, week, month for the current bucket, or
+     * 7d, 4w, 3m for the last N days, weeks or months including the current one.
+     * Returns null if the argument isn't a range.
+     */
+    public Window parseWindow(String arg, long now) {
+        String value = arg.toLowerCase(Locale.ROOT);
+        switch (value) {
+            case "day":
+            case "today":
+                return window(Granularity.DAY, 1, now, "today");
+            case "week":
+                return window(Granularity.WEEK, 1, now, "this week");
+            case "month":
+                return window(Granularity.MONTH, 1, now, "this month");
+            default:
+                break;
+        }
+
+        if (value.length() < 2) {
+            return null;
+        }
+        Granularity granularity;
+        String unit;
+        switch (value.charAt(value.length() - 1)) {
+            case 'd': granularity = Granularity.DAY; unit = "days"; break;
+            case 'w': granularity = Granularity.WEEK; unit = "weeks"; break;
+            case 'm': granularity = Granularity.MONTH; unit = "months"; break;
+            default: return null;
+        }
+        int count;
+        try {
+            count = Integer.parseInt(value.substring(0, value.length() - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (count < 1) {
+            return null;
+        }
+        count = Math.min(count, retention.get(granularity));
+        return window(granularity, count, now, "the last " + count + " " + unit);
+    }
+
+    private Window window(Granularity granularity, int count, long now, String label) {
+        long current = key(granularity, now);
+        return new Window(granularity, current - count + 1, current, label);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // Credits [start, end) to every granularity, splitting it at bucket boundaries. Does nothing
+    // for a session that doesn't start after the player's last recorded one.
+    public synchronized void record(UUID uuid, int ordinal, long start, long end) {
+        Long last = lastRecorded.get(uuid);
+        if (last != null && start <= last) {
+            return;
+        }
+        lastRecorded.put(uuid, start);
+        for (Granularity granularity : Granularity.values()) {
+            TreeMap<Long, Map<UUID, long[]>> byKey = buckets.get(granularity);
+            long from = start;
+            while (from < end) {
+                long key = key(granularity, from);
+                long to = Math.min(end, bucketStart(granularity, key + 1));
+                long[] times = byKey.computeIfAbsent(key, k -> new HashMap<>()).get(uuid);
+                if (times == null || ordinal >= times.length) {
+                    long[] grown = new long[Math.max(totals.dutyCount(), ordinal + 1)];
+                    if (times != null) {
+                        System.arraycopy(times, 0, grown, 0, times.length);
+                    }
+                    times = grown;
+                    byKey.get(key).put(uuid, times);
+                }
+                times[ordinal] += to - from;
+                from = to;
+            }
+        }
+        evictExpired(end);
+        version++;
+    }
+
+    // Time within the window; costs one lookup per bucket in it
+    public synchronized long sum(UUID uuid, int ordinal, Window window) {
+        if (ordinal < 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (Map<UUID, long[]> players : range(window).values()) {
+            long[] times = players.get(uuid);
+            if (times != null && ordinal < times.length) {
+                sum += times[ordinal];
+            }
+        }
+        return sum;
+    }
+
+    // Time within the window for every player with any, for windowed leaderboards
+    public synchronized Map<UUID, Long> sumAll(int ordinal, Window window) {
+        Map<UUID, Long> sums = new HashMap<>();
+        if (ordinal < 0) {
+            return sums;
+        }
+        for (Map<UUID, long[]> players : range(window).values()) {
+            for (Map.Entry<UUID, long[]> entry : players.entrySet()) {
+                long[] times = entry.getValue();
+                if (ordinal < times.length && times[ordinal] != 0) {
+                    sums.merge(entry.getKey(), times[ordinal], Long::sum);
+                }
+            }
+        }
+        return sums;
+    }
+
+    // Portion of [start, end) that falls inside the window, used for open sessions
+    public long overlap(Window window, long start, long end) {
+        long windowStart = bucketStart(window.granularity, window.fromKey);
+        long windowEnd = bucketStart(window.granularity, window.toKey + 1);
+        return Math.max(0, Math.min(end, windowEnd) - Math.max(start, windowStart));
+    }
+
+    public synchronized void removePlayer(UUID uuid) {
+        for (TreeMap<Long, Map<UUID, long[]>> byKey : buckets.values()) {
+            for (Map<UUID, long[]> players : byKey.values()) {
+                players.remove(uuid);
+            }
+        }
+        version++;
+    }
+
+    public synchronized void removeDuty(UUID uuid, int ordinal) {
+        if (ordinal < 0) {
+            return;
+        }
+        for (TreeMap<Long, Map<UUID, long[]>> byKey : buckets.values()) {
+            for (Map<UUID, long[]> players : byKey.values()) {
+                long[] times = players.get(uuid);
+                if (times != null && ordinal < times.length) {
+                    times[ordinal] = 0;
+                }
+            }
+        }
+        version++;
+    }
+
+    // One duty for every player, for admin resets
+    public synchronized void removeDutyAll(int ordinal) {
+        if (ordinal < 0) {
+            return;
+        }
+        for (TreeMap<Long, Map<UUID, long[]>> byKey : buckets.values()) {
+            for (Map<UUID, long[]> players : byKey.values()) {
+                for (long[] times : players.values()) {
+                    if (ordinal < times.length) {
+                        times[ordinal] = 0;
+                    }
+                }
+            }
+        }
+        version++;
+    }
+
+    public synchronized void clear() {
+        for (TreeMap<Long, Map<UUID, long[]>> byKey : buckets.values()) {
+            byKey.clear();
+        }
+        version++;
+    }
+
+    public synchronized void evictExpired(long now) {
+        for (Granularity granularity : Granularity.values()) {
+            long oldestKept = key(granularity, now) - retention.get(granularity) + 1;
+            buckets.get(granularity).headMap(oldestKept, false).clear();
+        }
+        // A session that started before the oldest day kept is long out of the session journal
+        long today = key(Granularity.DAY, now);
+        if (today != prunedDay) {
+            prunedDay = today;
+            long oldestDay = bucketStart(Granularity.DAY, today - retention.get(Granularity.DAY) + 1);
+            lastRecorded.values().removeIf(start -> start < oldestDay);
+        }
+    }
+
+    private NavigableMap<Long, Map<UUID, long[]>> range(Window window) {
+        return buckets.get(window.granularity).subMap(window.fromKey, true, window.toKey, true);
+    }
+
+    // Days since the epoch; weeks since the first Monday after the epoch; months since year 0
+    private long key(Granularity granularity, long millis) {
+        LocalDate date = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+        switch (granularity) {
+            case DAY:
+                return date.toEpochDay();
+            case WEEK:
+                return Math.floorDiv(date.toEpochDay() - 4, 7);
+            default:
+                return date.getYear() * 12L + date.getMonthValue() - 1;
+        }
+    }
+
+    private long bucketStart(Granularity granularity, long key) {
+        LocalDate date;
+        switch (granularity) {
+            case DAY:
+                date = LocalDate.ofEpochDay(key);
+                break;
+            case WEEK:
+                date = LocalDate.ofEpochDay(key * 7 + 4);
+                break;
+            default:
+                date = LocalDate.of((int) Math.floorDiv(key, 12), (int) Math.floorMod(key, 12) + 1, 1);
+                break;
+        }
+        return date.atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    public synchronized void load(ConfigurationSection section) {
+        if (section == null) {
+            return;
+        }
+        for (Granularity granularity : Granularity.values()) {
+            ConfigurationSection granularitySection = section.getConfigurationSection(granularity.name().toLowerCase(Locale.ROOT));
+            if (granularitySection == null) {
+                continue;
+            }
+            TreeMap<Long, Map<UUID, long[]>> byKey = buckets.get(granularity);
+            for (String keyStr : granularitySection.getKeys(false)) {
+                ConfigurationSection bucketSection = granularitySection.getConfigurationSection(keyStr);
+                if (bucketSection == null) {
+                    continue;
+                }
+                Map<UUID, long[]> players = new HashMap<>();
+                for (String uuidStr : bucketSection.getKeys(false)) {
+                    ConfigurationSection playerSection = bucketSection.getConfigurationSection(uuidStr);
+                    if (playerSection == null) {
+                        continue;
+                    }
+                    try {
+                        UUID uuid = UUID.fromString(uuidStr);
+                        long[] times = new long[totals.dutyCount()];
+                        for (String dutyName : playerSection.getKeys(false)) {
+                            int ordinal = totals.register(dutyName);
+                            if (ordinal >= times.length) {
+                                long[] grown = new long[ordinal + 1];
+                                System.arraycopy(times, 0, grown, 0, times.length);
+                                times = grown;
+                            }
+                            times[ordinal] = playerSection.getLong(dutyName, 0);
+                        }
+                        players.put(uuid, times);
+                    } catch (IllegalArgumentException ignored) {}
+                }
+                try {
+                    byKey.put(Long.parseLong(keyStr), players);
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        ConfigurationSection recordedSection = section.getConfigurationSection("last-recorded");
+        if (recordedSection != null) {
+            for (String uuidStr : recordedSection.getKeys(false)) {
+                try {
+                    lastRecorded.put(UUID.fromString(uuidStr), recordedSection.getLong(uuidStr));
+                } catch (IllegalArgumentException ignored) {}
+            }
+        }
+        evictExpired(System.currentTimeMillis());
+        version++;
+    }
+
+    public String saveToString() {
+        YamlConfiguration yaml = new YamlConfiguration();
+        synchronized (this) {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < totals.dutyCount(); i++) {
+                names.add(totals.nameOf(i));
+            }
+            for (Map.Entry<Granularity, TreeMap<Long, Map<UUID, long[]>>> byKey : buckets.entrySet()) {
+                String prefix = byKey.getKey().name().toLowerCase(Locale.ROOT) + ".";
+                for (Map.Entry<Long, Map<UUID, long[]>> bucket : byKey.getValue().entrySet()) {
+                    for (Map.Entry<UUID, long[]> player : bucket.getValue().entrySet()) {
+                        long[] times = player.getValue();
+                        for (int ordinal = 0; ordinal < times.length && ordinal < names.size(); ordinal++) {
+                            if (times[ordinal] != 0) {
+                                yaml.set(prefix + bucket.getKey() + "." + player.getKey() + "." + names.get(ordinal), times[ordinal]);
+                            }
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<UUID, Long> recorded : lastRecorded.entrySet()) {
+                yaml.set("last-recorded." + recorded.getKey(), recorded.getValue());
+            }
+        }
+        return yaml.saveToString();
+    }
+}
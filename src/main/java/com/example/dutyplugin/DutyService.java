@@ -0,0 +1,40 @@
+package com.example.dutyplugin;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Duty state for other plugins (scoreboards, tab lists, staff chat...), registered with
+ * Bukkit's ServicesManager:
+ * <pre>
+ * DutyService duty = Bukkit.getServicesManager().load(DutyService.class);
+ * boolean onDuty = duty.isOnDuty(player.getUniqueId());
+ * </pre>
+ * Answers come from per-player snapshots that are refreshed when the player goes on or off
+ * duty, and at least once a second otherwise (every thirty seconds for offline players), so
+ * every method is cheap enough to call every tick and safe to call from any thread.
+ */
+public interface DutyService {
+
+    // The player's current state; never null, even for players who have never been on duty
+    DutySnapshot getSnapshot(UUID uuid);
+
+    default boolean isOnDuty(UUID uuid) {
+        return getSnapshot(uuid).isOnDuty();
+    }
+
+    // The duty the player is on, or null if they are off duty
+    default String getCurrentDuty(UUID uuid) {
+        return getSnapshot(uuid).getDutyName();
+    }
+
+    // Total time for one duty in milliseconds, including the session in progress
+    default long getTotalTime(UUID uuid, String dutyName) {
+        return getSnapshot(uuid).getTotalTime(dutyName);
+    }
+
+    int getOnDutyCount();
+
+    // The duties defined in the config
+    Set<String> getDutyNames();
+}
@@ -0,0 +1,22 @@
+package com.example.dutyplugin;
+
+/**
+ * An open duty session. Immutable, so it can be handed between threads freely.
+ */
+class DutySession {
+    private final String dutyName;
+    private final long startTime;
+
+    public DutySession(String dutyName, long startTime) {
+        this.dutyName = dutyName;
+        this.startTime = startTime;
+    }
+
+    public String getDutyName() {
+        return dutyName;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+}
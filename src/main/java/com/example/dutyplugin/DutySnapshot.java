@@ -0,0 +1,73 @@
+package com.example.dutyplugin;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * One player's duty state at a point in time. Immutable; times of the session in progress
+ * are worked out from its start whenever they are asked for, so they are never stale.
+ */
+public final class DutySnapshot {
+
+    private final UUID uuid;
+    private final String dutyName; // null when off duty
+    private final long sessionStart;
+    private final Map<String, Long> storedTotals;
+    private final long takenAt;
+    final DutySession session; // the session it was taken for, to spot a start or end
+
+    DutySnapshot(UUID uuid, DutySession session, Map<String, Long> storedTotals, long takenAt) {
+        this.uuid = uuid;
+        this.session = session;
+        this.dutyName = session != null ? session.getDutyName() : null;
+        this.sessionStart = session != null ? session.getStartTime() : 0;
+        this.storedTotals = Collections.unmodifiableMap(storedTotals);
+        this.takenAt = takenAt;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public boolean isOnDuty() {
+        return dutyName != null;
+    }
+
+    public String getDutyName() {
+        return dutyName;
+    }
+
+    // When the session in progress started, or 0 if off duty
+    public long getSessionStart() {
+        return sessionStart;
+    }
+
+    public long getSessionTime() {
+        return dutyName != null ? Math.max(0, System.currentTimeMillis() - sessionStart) : 0;
+    }
+
+    // Total time for one duty in milliseconds, including the session in progress
+    public long getTotalTime(String dutyName) {
+        long stored = storedTotals.getOrDefault(dutyName, 0L);
+        return dutyName.equals(this.dutyName) ? stored + getSessionTime() : stored;
+    }
+
+    // Total time across every duty, including the session in progress
+    public long getTotalTime() {
+        long total = 0;
+        for (long time : storedTotals.values()) {
+            total += time;
+        }
+        return total + getSessionTime();
+    }
+
+    // Saved totals by duty name, not counting the session in progress
+    public Map<String, Long> getStoredTotals() {
+        return storedTotals;
+    }
+
+    public long getTakenAt() {
+        return takenAt;
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.dutyplugin;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+/**
+ * Called when a player uses /duty to go on duty, after their permission is checked and
+ * before the session starts. Cancelling it keeps them off duty; telling them why is up to
+ * whoever cancels it.
+ */
+public class DutyStartEvent extends Event implements Cancellable {
+
+    private static final HandlerList HANDLERS = new HandlerList();
+
+    private final Player player;
+    private final String dutyName;
+    private boolean cancelled;
+
+    DutyStartEvent(Player player, String dutyName) {
+        this.player = player;
+        this.dutyName = dutyName;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    public String getDutyName() {
+        return dutyName;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public HandlerList getHandlers() {
+        return HANDLERS;
+    }
+
+    public static HandlerList getHandlerList() {
+        return HANDLERS;
+    }
+}
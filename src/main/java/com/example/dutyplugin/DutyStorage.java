@@ -0,0 +1,101 @@
+package com.example.dutyplugin;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where duty times are persisted. The plugin answers queries from the in-memory DutyTotals,
+ * which is filled from storage once on enable (or, for sharded storage, a player at a time
+ * as they are needed); every change is then reported to storage, which is free to batch and
+ * write it in the background.
+ */
+interface DutyStorage {
+
+    // Fills the in-memory totals from storage. Called once on enable.
+    void load(DutyTotals totals) throws IOException;
+
+    // A session has been credited; newTotal is the player's total for the duty afterwards
+    void sessionEnded(UUID uuid, String dutyName, long startTime, long endTime, long newTotal);
+
+    void totalReset(UUID uuid, String dutyName);
+
+    void playerReset(UUID uuid);
+
+    // One duty reset for every player, reported as a single change
+    void dutyResetForAll(String dutyName);
+
+    // Every total reset, reported as a single change
+    void allReset();
+
+    // Totals replaced in bulk, e.g. by an import; the lists are parallel
+    void totalsSet(List<UUID> uuids, List<String> dutyNames, List<Long> totals);
+
+    CompletableFuture<Long> queryTotal(UUID uuid, String dutyName);
+
+    // Visits every stored total, for backends whose totals aren't all in memory. Returns false
+    // without visiting anything when DutyTotals holds them all and can be walked instead.
+    default boolean walkTotals(TotalVisitor visitor) throws IOException {
+        return false;
+    }
+
+    // Deletes stored totals that are zero and returns how many there were. Only some backends
+    // ever store a zero. Blocks; call off the main thread.
+    default int pruneZeroTotals() throws IOException {
+        return 0;
+    }
+
+    // Bytes the stored totals take up, for compaction reports. Blocks; call off the main thread.
+    long getStoredBytes() throws IOException;
+
+    // Past sessions that started within [from, to), oldest first. Empty if the backend keeps no history.
+    CompletableFuture<List<SessionRecord>> querySessions(UUID uuid, String dutyName, long from, long to);
+
+    // Completes once every change reported before the call has been written. Doesn't write any
+    // sooner; the session journal uses it to keep ended sessions until their time is on disk.
+    CompletableFuture<Void> whenWritten();
+
+    // Changes reported but not yet written, for metrics
+    int getPendingChanges();
+
+    // Short human readable status lines for /duty stats
+    List<String> describeStats();
+
+    // Writes everything still pending and releases resources. Blocks.
+    void close();
+
+    interface TotalVisitor {
+        void visit(UUID uuid, String dutyName, long total) throws IOException;
+    }
+
+    class SessionRecord {
+        private final UUID uuid;
+        private final String dutyName;
+        private final long startTime;
+        private final long endTime;
+
+        public SessionRecord(UUID uuid, String dutyName, long startTime, long endTime) {
+            this.uuid = uuid;
+            this.dutyName = dutyName;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public String getDutyName() {
+            return dutyName;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+    }
+}
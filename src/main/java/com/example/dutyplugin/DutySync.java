@@ -0,0 +1,852 @@
+package com.example.dutyplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Shares duty times and who is on duty between the servers behind a proxy. Every server
+ * keeps a full replica, so commands and leaderboards never wait on the network.
+ * <p>
+ * A total is one counter per server: a server only ever adds to its own, and merging keeps
+ * the largest value seen from each server, so batches can arrive late, twice or out of
+ * order and every server still ends up with the same sum. A reset starts a new epoch (a
+ * timestamp tagged with the server that reset), which drops the counters of older epochs.
+ * <p>
+ * Being on duty is a lease, renewed by the server the player is on duty on and released
+ * when the session ends. Two servers that start a session before hearing from each other
+ * keep the one that started first, and the other server ends its own. Changes are batched,
+ * compressed and handed to the transport by one background thread.
+ * <p>
+ * Incoming batches are merged into the replica under its lock, which the main thread also
+ * takes; the merged totals are then applied to DutyTotals and storage outside it, a slice at
+ * a time, so a peer's full state never holds up /duty. The replica keeps a counter for every
+ * player and duty with time on any server, in memory, whatever the storage type: roughly
+ * 150 bytes each plus 20 per server that added to it. It isn't bounded, since dropping a
+ * counter would lose that player's time on every server.
+ */
+class DutySync implements SyncTransport.Receiver {
+
+    interface Handler {
+        // Another server holds the player's lease, so this server's session has to end. Runs on the global thread.
+        void endedElsewhere(UUID uuid, DutySession session, String server);
+
+        // The player asked to go off duty on another server. Runs on the global thread.
+        void endRequested(UUID uuid, String server);
+    }
+
+    private static final int FORMAT_VERSION = 1;
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_COUNTER = 1;
+    private static final byte RECORD_LEASE = 2;
+    private static final byte RECORD_END_REQUEST = 3;
+    private static final int MAX_RECORDS_PER_BATCH = 5000;
+    private static final int APPLY_SLICE = 500;
+    private static final String SEEDED_MARKER = "sync-seeded"; // next to the state file, once local totals were shared
+
+    private final String serverId;
+    private final int serverTag;
+    private final SyncTransport transport;
+    private final DutyTotals totals;
+    private final DutyStorage storage; // the real storage, told about totals changed by other servers
+    private final SessionRegistry sessions;
+    private final TaskScheduler scheduler;
+    private final Handler handler;
+    private final Logger logger;
+    private final File stateFile;
+    private final long batchIntervalMillis;
+    private final long leaseMillis;
+    private final long saveIntervalMillis;
+
+    // Guarded by this
+    private final Map<UUID, Map<String, Counter>> counters = new HashMap<>();
+    private final Map<UUID, Lease> leases = new HashMap<>();
+    private final Map<UUID, Set<String>> dirtyCounters = new HashMap<>();
+    private final Set<UUID> dirtyLeases = new HashSet<>();
+    private final List<EndRequest> endRequests = new ArrayList<>();
+    private boolean unsaved;
+    private final Object applying = new Object(); // one merge applies its totals at a time; never taken with this held
+
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong batchesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong rawBytesSent = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private ScheduledExecutorService executor;
+    private long lastSave; // only touched by the sync thread
+
+    public DutySync(String serverId, SyncTransport transport, DutyTotals totals, DutyStorage storage,
+                    SessionRegistry sessions, TaskScheduler scheduler, Handler handler, Logger logger,
+                    File stateFile, long batchIntervalMillis, long leaseMillis, long saveIntervalMillis) {
+        this.serverId = serverId;
+        this.serverTag = serverId.hashCode() & 0xFFFF;
+        this.transport = transport;
+        this.totals = totals;
+        this.storage = storage;
+        this.sessions = sessions;
+        this.scheduler = scheduler;
+        this.handler = handler;
+        this.logger = logger;
+        this.stateFile = stateFile;
+        this.batchIntervalMillis = Math.max(50, batchIntervalMillis);
+        this.leaseMillis = Math.max(5000, leaseMillis);
+        this.saveIntervalMillis = Math.max(1000, saveIntervalMillis);
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    // Loads the replica, or starts one from this server's own totals the first time, then connects
+    public void start() throws IOException {
+        if (stateFile.exists()) {
+            for (byte[] batch : unframe(Files.readAllBytes(stateFile.toPath()))) {
+                merge(batch, false);
+            }
+        } else {
+            recoverOrSeed();
+        }
+        File seededMarker = new File(stateFile.getParentFile(), SEEDED_MARKER);
+        if (!seededMarker.exists()) {
+            Files.write(seededMarker.toPath(), serverId.getBytes(StandardCharsets.UTF_8));
+        }
+        transport.open(serverId, this);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::tickQuietly, batchIntervalMillis, batchIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Without sync-state.dat the local totals may already be every server's sum, and seeding
+    // them as this server's counter would add the others' times again. So this server's
+    // counters are rebuilt from the transport if it has them, and seeding only happens if
+    // this folder's totals were never shared.
+    private void recoverOrSeed() throws IOException {
+        List<byte[]> previous = transport.previousState(serverId);
+        if (!previous.isEmpty()) {
+            for (byte[] batch : previous) {
+                merge(batch, false);
+            }
+            synchronized (this) {
+                unsaved = true;
+            }
+            logger.warning(stateFile.getName() + " was missing, so this server's sync state was rebuilt from the transport.");
+        } else if (new File(stateFile.getParentFile(), SEEDED_MARKER).exists()) {
+            throw new IOException(stateFile.getName() + " is missing, but this server's times were already shared with the "
+                    + "other servers (see " + SEEDED_MARKER + ") and the transport has no copy of it. "
+                    + "Restore " + stateFile.getName() + " from a backup: starting sync without it would add this "
+                    + "server's totals to every other server again.");
+        } else {
+            seed();
+        }
+    }
+
+    // Each server's times so far become its own counters, so the first sync adds them up
+    private void seed() throws IOException {
+        synchronized (this) {
+            DutyStorage.TotalVisitor visitor = (uuid, dutyName, total) -> {
+                if (total != 0) {
+                    counter(uuid, dutyName).put(serverId, total);
+                    markDirty(uuid, dutyName);
+                }
+            };
+            if (!storage.walkTotals(visitor)) {
+                for (UUID uuid : totals.playerIds()) {
+                    for (int ordinal = 0; ordinal < totals.dutyCount(); ordinal++) {
+                        visitor.visit(uuid, totals.nameOf(ordinal), totals.get(uuid, ordinal));
+                    }
+                }
+            }
+            unsaved = true;
+            logger.info("Started cross-server sync for " + counters.size() + " players with times on this server.");
+        }
+    }
+
+    // Local changes. Totals and storage have already been updated by the caller.
+
+    public synchronized long add(UUID uuid, String dutyName, long delta) {
+        Counter counter = counter(uuid, dutyName);
+        counter.put(serverId, counter.get(serverId) + delta);
+        markDirty(uuid, dutyName);
+        return applyTotal(uuid, dutyName, counter.sum());
+    }
+
+    public synchronized void set(UUID uuid, String dutyName, long value) {
+        Counter counter = counter(uuid, dutyName);
+        counter.restart(nextEpoch(counter.epoch));
+        if (value != 0) {
+            counter.put(serverId, value);
+        }
+        markDirty(uuid, dutyName);
+    }
+
+    public synchronized void reset(UUID uuid, String dutyName) {
+        set(uuid, dutyName, 0);
+    }
+
+    public synchronized void resetPlayer(UUID uuid) {
+        Map<String, Counter> byDuty = counters.get(uuid);
+        if (byDuty != null) {
+            for (String dutyName : new ArrayList<>(byDuty.keySet())) {
+                set(uuid, dutyName, 0);
+            }
+        }
+    }
+
+    public synchronized void resetDuty(String dutyName) {
+        for (Map.Entry<UUID, Map<String, Counter>> entry : counters.entrySet()) {
+            if (entry.getValue().containsKey(dutyName)) {
+                set(entry.getKey(), dutyName, 0);
+            }
+        }
+    }
+
+    public synchronized void resetAll() {
+        for (UUID uuid : new ArrayList<>(counters.keySet())) {
+            resetPlayer(uuid);
+        }
+    }
+
+    // The lease of a player on duty on another server, or null
+    public synchronized Lease leaseElsewhere(UUID uuid) {
+        Lease lease = leases.get(uuid);
+        return lease != null && lease.isLive(System.currentTimeMillis()) && !lease.server.equals(serverId) ? lease : null;
+    }
+
+    // Asks the server holding the player's lease to take them off duty
+    public synchronized void requestEnd(UUID uuid, String server) {
+        endRequests.add(new EndRequest(uuid, server));
+    }
+
+    private Counter counter(UUID uuid, String dutyName) {
+        return counters.computeIfAbsent(uuid, k -> new HashMap<>(4)).computeIfAbsent(dutyName, k -> new Counter());
+    }
+
+    private void markDirty(UUID uuid, String dutyName) {
+        dirtyCounters.computeIfAbsent(uuid, k -> new HashSet<>(4)).add(dutyName);
+        unsaved = true;
+    }
+
+    // A new epoch, later than the given one and tagged with this server to break ties
+    private long nextEpoch(long after) {
+        long millis = Math.max(System.currentTimeMillis(), (after >>> 16) + 1);
+        return millis << 16 | serverTag;
+    }
+
+    // Makes the in-memory total match the replica. Returns the total.
+    private long applyTotal(UUID uuid, String dutyName, long sum) {
+        int ordinal = totals.register(dutyName);
+        if (totals.get(uuid, ordinal) != sum) {
+            totals.set(uuid, ordinal, sum);
+        }
+        return sum;
+    }
+
+    @Override
+    public void received(byte[] batch) {
+        try {
+            merge(batch, true);
+            batchesReceived.incrementAndGet();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Ignored a sync batch that could not be read", e);
+        }
+    }
+
+    // Merges a batch from another server, or from our own saved state when starting
+    private void merge(byte[] batch, boolean fromPeer) throws IOException {
+        List<TotalChange> changed = new ArrayList<>();
+        List<Runnable> callbacks = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(batch)))) {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unknown sync format " + version);
+            }
+            String from = in.readUTF();
+            synchronized (this) {
+                for (byte type = in.readByte(); type != RECORD_END; type = in.readByte()) {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    switch (type) {
+                        case RECORD_COUNTER: {
+                            String dutyName = in.readUTF();
+                            long epoch = in.readLong();
+                            int count = in.readUnsignedShort();
+                            String[] servers = new String[count];
+                            long[] values = new long[count];
+                            for (int i = 0; i < count; i++) {
+                                servers[i] = in.readUTF();
+                                values[i] = in.readLong();
+                            }
+                            if (counter(uuid, dutyName).merge(epoch, servers, values)) {
+                                unsaved = true;
+                                changed.add(new TotalChange(uuid, dutyName));
+                            }
+                            break;
+                        }
+                        case RECORD_LEASE: {
+                            Lease incoming = new Lease(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readBoolean());
+                            Lease current = leases.get(uuid);
+                            Lease kept = Lease.merge(current, incoming, now);
+                            if (kept == current) {
+                                if (fromPeer && current != null && current.server.equals(serverId) && incoming.isLive(now)) {
+                                    dirtyLeases.add(uuid); // make sure they hear that we hold it
+                                }
+                                break;
+                            }
+                            leases.put(uuid, kept);
+                            unsaved = true;
+                            if (fromPeer && current != null && current.server.equals(serverId) && current.isLive(now)
+                                    && !kept.server.equals(serverId)) {
+                                DutySession session = sessions.get(uuid);
+                                if (session != null) {
+                                    conflicts.incrementAndGet();
+                                    callbacks.add(() -> handler.endedElsewhere(uuid, session, kept.server));
+                                }
+                            }
+                            break;
+                        }
+                        case RECORD_END_REQUEST: {
+                            String target = in.readUTF();
+                            if (fromPeer && target.equals(serverId)) {
+                                callbacks.add(() -> handler.endRequested(uuid, from));
+                            }
+                            break;
+                        }
+                        default:
+                            throw new IOException("Unknown sync record " + type);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated sync batch", e);
+        }
+
+        for (Runnable callback : callbacks) {
+            scheduler.runGlobal(callback);
+        }
+        apply(changed);
+    }
+
+    // Brings the totals and storage in line with merged counters, a slice at a time without
+    // holding the replica's lock, as totals may have to load players from disk
+    private void apply(List<TotalChange> changes) {
+        synchronized (applying) {
+            for (int start = 0; start < changes.size(); start += APPLY_SLICE) {
+                List<TotalChange> slice = changes.subList(start, Math.min(changes.size(), start + APPLY_SLICE));
+                while (!slice.isEmpty()) {
+                    slice = applySlice(slice);
+                }
+            }
+        }
+    }
+
+    // Returns the changes whose counter moved on while they were applied (a local session end
+    // or another merge), which are applied again so the latest sum is the one left behind
+    private List<TotalChange> applySlice(List<TotalChange> slice) {
+        synchronized (this) {
+            for (TotalChange change : slice) {
+                change.sum = sumOf(change);
+            }
+        }
+        List<UUID> setUuids = new ArrayList<>();
+        List<String> setDutyNames = new ArrayList<>();
+        List<Long> setTimes = new ArrayList<>();
+        for (TotalChange change : slice) {
+            int ordinal = totals.register(change.dutyName);
+            if (totals.storedTotal(change.uuid, ordinal) == change.sum) {
+                continue;
+            }
+            if (change.sum == 0) {
+                totals.reset(change.uuid, ordinal);
+                storage.totalReset(change.uuid, change.dutyName);
+            } else {
+                totals.set(change.uuid, ordinal, change.sum);
+                setUuids.add(change.uuid);
+                setDutyNames.add(change.dutyName);
+                setTimes.add(change.sum);
+            }
+        }
+        storage.totalsSet(setUuids, setDutyNames, setTimes);
+
+        List<TotalChange> again = new ArrayList<>();
+        synchronized (this) {
+            for (TotalChange change : slice) {
+                if (sumOf(change) != change.sum) {
+                    again.add(change);
+                }
+            }
+        }
+        return again;
+    }
+
+    private long sumOf(TotalChange change) {
+        Map<String, Counter> byDuty = counters.get(change.uuid);
+        Counter counter = byDuty != null ? byDuty.get(change.dutyName) : null;
+        return counter != null ? counter.sum() : 0;
+    }
+
+    private void tickQuietly() {
+        try {
+            tick();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Cross-server sync failed", e);
+        }
+    }
+
+    // Runs on the sync thread every batch interval
+    private void tick() {
+        long now = System.currentTimeMillis();
+        renewLeases(now);
+        transport.poll();
+        for (byte[] batch : drain()) {
+            transport.publish(batch);
+        }
+        if (now - lastSave >= saveIntervalMillis) {
+            save(now);
+        }
+    }
+
+    // Takes leases for sessions on this server, renews them a third of the way through and releases ended ones
+    private void renewLeases(long now) {
+        List<Runnable> callbacks = new ArrayList<>();
+        synchronized (this) {
+            Set<UUID> onDuty = new HashSet<>();
+            for (Map.Entry<UUID, DutySession> entry : sessions.entries()) {
+                UUID uuid = entry.getKey();
+                DutySession session = entry.getValue();
+                onDuty.add(uuid);
+                Lease current = leases.get(uuid);
+                boolean ours = current != null && current.server.equals(serverId) && current.isLive(now);
+                if (ours && current.expires - now > leaseMillis * 2 / 3 && current.duty.equals(session.getDutyName())) {
+                    continue;
+                }
+                Lease mine = new Lease(serverId, session.getDutyName(), ours ? current.since : session.getStartTime(),
+                        now + leaseMillis, false);
+                Lease kept = Lease.merge(current, mine, now);
+                if (kept == mine) {
+                    leases.put(uuid, mine);
+                    dirtyLeases.add(uuid);
+                } else {
+                    // Someone started earlier on another server and it just hasn't reached them yet
+                    conflicts.incrementAndGet();
+                    callbacks.add(() -> handler.endedElsewhere(uuid, session, kept.server));
+                }
+            }
+
+            Iterator<Map.Entry<UUID, Lease>> it = leases.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<UUID, Lease> entry = it.next();
+                Lease lease = entry.getValue();
+                if (lease.server.equals(serverId) && lease.isLive(now) && !onDuty.contains(entry.getKey())) {
+                    entry.setValue(lease.release(now));
+                    dirtyLeases.add(entry.getKey());
+                } else if (!lease.isLive(now) && now - lease.expires > leaseMillis * 10) {
+                    it.remove(); // long over, nobody needs to hear about it again
+                }
+            }
+        }
+        for (Runnable callback : callbacks) {
+            scheduler.runGlobal(callback);
+        }
+    }
+
+    // Encodes everything changed since the last batch
+    private List<byte[]> drain() {
+        synchronized (this) {
+            if (dirtyCounters.isEmpty() && dirtyLeases.isEmpty() && endRequests.isEmpty()) {
+                return List.of();
+            }
+            BatchWriter writer = new BatchWriter();
+            try {
+                for (Map.Entry<UUID, Set<String>> entry : dirtyCounters.entrySet()) {
+                    Map<String, Counter> byDuty = counters.get(entry.getKey());
+                    for (String dutyName : entry.getValue()) {
+                        writer.counter(entry.getKey(), dutyName, byDuty.get(dutyName));
+                    }
+                }
+                for (UUID uuid : dirtyLeases) {
+                    Lease lease = leases.get(uuid);
+                    if (lease != null) {
+                        writer.lease(uuid, lease);
+                    }
+                }
+                for (EndRequest request : endRequests) {
+                    writer.endRequest(request);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // only writes to memory
+            }
+            dirtyCounters.clear();
+            dirtyLeases.clear();
+            endRequests.clear();
+            List<byte[]> batches = writer.finish();
+            batchesSent.addAndGet(batches.size());
+            rawBytesSent.addAndGet(writer.rawBytes);
+            for (byte[] batch : batches) {
+                bytesSent.addAndGet(batch.length);
+            }
+            return batches;
+        }
+    }
+
+    @Override
+    public synchronized List<byte[]> fullState() {
+        BatchWriter writer = new BatchWriter();
+        try {
+            for (Map.Entry<UUID, Map<String, Counter>> entry : counters.entrySet()) {
+                for (Map.Entry<String, Counter> duty : entry.getValue().entrySet()) {
+                    writer.counter(entry.getKey(), duty.getKey(), duty.getValue());
+                }
+            }
+            for (Map.Entry<UUID, Lease> entry : leases.entrySet()) {
+                writer.lease(entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return writer.finish();
+    }
+
+    private void save(long now) {
+        List<byte[]> state;
+        synchronized (this) {
+            if (!unsaved) {
+                return;
+            }
+            unsaved = false;
+            state = fullState();
+        }
+        lastSave = now;
+        Path target = stateFile.toPath();
+        Path temp = target.resolveSibling(stateFile.getName() + ".tmp");
+        try {
+            Files.write(temp, frame(state));
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                unsaved = true;
+            }
+            logger.log(Level.WARNING, "Could not save " + stateFile.getName(), e);
+        }
+    }
+
+    public List<String> describeStats() {
+        List<String> lines = new ArrayList<>();
+        int players;
+        int leased = 0;
+        synchronized (this) {
+            players = counters.size();
+            long now = System.currentTimeMillis();
+            for (Lease lease : leases.values()) {
+                if (lease.isLive(now)) {
+                    leased++;
+                }
+            }
+        }
+        lines.add("Sync: server " + serverId + " over " + transport.describe());
+        lines.add("Sync replica: " + players + " players, " + leased + " on duty network-wide, " +
+                  conflicts.get() + " double sessions resolved");
+        lines.add("Sync batches: " + batchesSent.get() + " sent (" + bytesSent.get() / 1024 + " KB, " +
+                  rawBytesSent.get() / 1024 + " KB uncompressed), " + batchesReceived.get() + " received");
+        return lines;
+    }
+
+    // Releases this server's leases and sends and saves everything still pending. Blocks.
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            tickQuietly(); // sessions have all ended by now, so this releases every lease
+        }
+        save(System.currentTimeMillis());
+        transport.close();
+    }
+
+    // Batches as one blob: each is an int length and its bytes
+    static byte[] frame(List<byte[]> batches) {
+        int size = 0;
+        for (byte[] batch : batches) {
+            size += 4 + batch.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] batch : batches) {
+            buffer.putInt(batch.length).put(batch);
+        }
+        return buffer.array();
+    }
+
+    static List<byte[]> unframe(byte[] blob) throws IOException {
+        List<byte[]> batches = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(blob);
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Truncated sync state");
+            }
+            byte[] batch = new byte[length];
+            buffer.get(batch);
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    // Writes records into compressed batches of at most MAX_RECORDS_PER_BATCH records
+    private class BatchWriter {
+        private final List<byte[]> batches = new ArrayList<>();
+        private ByteArrayOutputStream bytes;
+        private DataOutputStream out;
+        private int records;
+        long rawBytes;
+
+        void counter(UUID uuid, String dutyName, Counter counter) throws IOException {
+            begin(RECORD_COUNTER, uuid);
+            out.writeUTF(dutyName);
+            out.writeLong(counter.epoch);
+            out.writeShort(counter.servers.length);
+            for (int i = 0; i < counter.servers.length; i++) {
+                out.writeUTF(counter.servers[i]);
+                out.writeLong(counter.values[i]);
+            }
+        }
+
+        void lease(UUID uuid, Lease lease) throws IOException {
+            begin(RECORD_LEASE, uuid);
+            out.writeUTF(lease.server);
+            out.writeUTF(lease.duty);
+            out.writeLong(lease.since);
+            out.writeLong(lease.expires);
+            out.writeBoolean(lease.released);
+        }
+
+        void endRequest(EndRequest request) throws IOException {
+            begin(RECORD_END_REQUEST, request.uuid);
+            out.writeUTF(request.server);
+        }
+
+        private void begin(byte type, UUID uuid) throws IOException {
+            if (records >= MAX_RECORDS_PER_BATCH) {
+                flushBatch();
+            }
+            if (out == null) {
+                bytes = new ByteArrayOutputStream();
+                out = new DataOutputStream(bytes);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(serverId);
+            }
+            out.writeByte(type);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            records++;
+        }
+
+        List<byte[]> finish() {
+            flushBatch();
+            return batches;
+        }
+
+        private void flushBatch() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeByte(RECORD_END);
+                out.flush();
+                byte[] raw = bytes.toByteArray();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+                try (DeflaterOutputStream deflater = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_SPEED))) {
+                    deflater.write(raw);
+                }
+                batches.add(compressed.toByteArray());
+                rawBytes += raw.length;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            bytes = null;
+            out = null;
+            records = 0;
+        }
+    }
+
+    // A merged counter still to be applied; sum is what was last applied
+    private static class TotalChange {
+        final UUID uuid;
+        final String dutyName;
+        long sum;
+
+        TotalChange(UUID uuid, String dutyName) {
+            this.uuid = uuid;
+            this.dutyName = dutyName;
+        }
+    }
+
+    // One player's time for one duty: a counter per server within the current epoch
+    private static class Counter {
+        long epoch;
+        String[] servers = new String[0];
+        long[] values = new long[0];
+
+        long get(String server) {
+            for (int i = 0; i < servers.length; i++) {
+                if (servers[i].equals(server)) {
+                    return values[i];
+                }
+            }
+            return 0;
+        }
+
+        void put(String server, long value) {
+            for (int i = 0; i < servers.length; i++) {
+                if (servers[i].equals(server)) {
+                    values[i] = value;
+                    return;
+                }
+            }
+            servers = Arrays.copyOf(servers, servers.length + 1);
+            values = Arrays.copyOf(values, values.length + 1);
+            servers[servers.length - 1] = server;
+            values[values.length - 1] = value;
+        }
+
+        void restart(long epoch) {
+            this.epoch = epoch;
+            servers = new String[0];
+            values = new long[0];
+        }
+
+        long sum() {
+            long sum = 0;
+            for (long value : values) {
+                sum += value;
+            }
+            return sum;
+        }
+
+        // Returns whether anything changed
+        boolean merge(long epoch, String[] servers, long[] values) {
+            if (epoch < this.epoch) {
+                return false;
+            }
+            boolean changed = false;
+            if (epoch > this.epoch) {
+                restart(epoch);
+                changed = true;
+            }
+            for (int i = 0; i < servers.length; i++) {
+                if (values[i] > get(servers[i])) {
+                    put(servers[i], values[i]);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+    }
+
+    // Which server a player is on duty on, until when
+    static final class Lease {
+        final String server;
+        final String duty;
+        final long since;
+        final long expires; // when it was released, for released leases
+        final boolean released;
+
+        Lease(String server, String duty, long since, long expires, boolean released) {
+            this.server = server;
+            this.duty = duty;
+            this.since = since;
+            this.expires = expires;
+            this.released = released;
+        }
+
+        String getServer() {
+            return server;
+        }
+
+        String getDuty() {
+            return duty;
+        }
+
+        boolean isLive(long now) {
+            return !released && expires > now;
+        }
+
+        Lease release(long now) {
+            return new Lease(server, duty, since, now, true);
+        }
+
+        // The lease every server agrees to keep, whichever order they see them in
+        static Lease merge(Lease a, Lease b, long now) {
+            if (a == null) {
+                return b;
+            }
+            if (a.server.equals(b.server) && a.since == b.since) {
+                // The same session: once released it stays released, otherwise the latest renewal
+                if (a.released != b.released) {
+                    return a.released ? a : b;
+                }
+                return b.expires > a.expires ? b : a;
+            }
+            boolean aLive = a.isLive(now);
+            boolean bLive = b.isLive(now);
+            if (aLive != bLive) {
+                return aLive ? a : b;
+            }
+            if (aLive) {
+                // Both on duty: the session that started first wins
+                if (a.since != b.since) {
+                    return a.since < b.since ? a : b;
+                }
+                return a.server.compareTo(b.server) <= 0 ? a : b;
+            }
+            return b.expires > a.expires ? b : a;
+        }
+    }
+
+    private static class EndRequest {
+        final UUID uuid;
+        final String server;
+
+        EndRequest(UUID uuid, String server) {
+            this.uuid = uuid;
+            this.server = server;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.dutyplugin;
+
+import com.destroystokyo.paper.event.server.AsyncTabCompleteEvent;
+import org.bukkit.command.CommandSender;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tab completion for /duty, /checktime, /dutytimes, /resettime and /dutydata. Paper asks for
+ * it on its async tab-complete thread, and everything here comes from in-memory prefix tries
+ * (duty names and the player name index), so completing never waits on the main thread or
+ * storage.
+ * Duties and players are offered most recently active first.
+ */
+class DutyTabCompleter implements Listener {
+
+    private static final List<String> RANGES = Arrays.asList("today", "week", "month", "7d", "4w", "3m");
+
+    private final PlayerNameIndex names;
+    private final DutyDataTransfer dataTransfer;
+    private final PrefixTrie<String> duties = new PrefixTrie<>(); // scored by when they were last used
+    private volatile Map<String, DutyType> dutyTypes = Collections.emptyMap();
+    private volatile int limit = 20;
+
+    public DutyTabCompleter(PlayerNameIndex names, DutyDataTransfer dataTransfer) {
+        this.names = names;
+        this.dataTransfer = dataTransfer;
+    }
+
+    // Called when the config is (re)loaded; duties that still exist keep their activity
+    public void update(Map<String, DutyType> types, int limit) {
+        synchronized (duties) {
+            for (String name : dutyTypes.keySet()) {
+                if (!types.containsKey(name)) {
+                    duties.remove(name);
+                }
+            }
+            for (String name : types.keySet()) {
+                if (!dutyTypes.containsKey(name)) {
+                    duties.put(name, name, 0);
+                }
+            }
+            dutyTypes = types;
+        }
+        this.limit = Math.max(1, limit);
+    }
+
+    public void dutyUsed(String dutyName) {
+        synchronized (duties) {
+            duties.touch(dutyName, System.currentTimeMillis());
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onAsyncTabComplete(AsyncTabCompleteEvent event) {
+        if (event.isHandled() || !event.isCommand()) {
+            return;
+        }
+        String buffer = event.getBuffer();
+        int space = buffer.indexOf(' ');
+        if (space < 0) {
+            return; // still typing the command itself
+        }
+        String label = buffer.substring(buffer.startsWith("/") ? 1 : 0, space).toLowerCase(Locale.ROOT);
+        if (label.startsWith("dutyplugin:")) {
+            label = label.substring("dutyplugin:".length());
+        } else if (label.indexOf(':') >= 0) {
+            return; // another plugin's command of the same name
+        }
+        String[] args = buffer.substring(space + 1).split(" ", -1);
+        List<String> completions = complete(event.getSender(), label, args);
+        if (completions != null) {
+            event.setCompletions(completions);
+            event.setHandled(true);
+        }
+    }
+
+    // Completions for the last argument, or null if the command isn't one of ours
+    public List<String> complete(CommandSender sender, String command, String[] args) {
+        if (args.length == 0) {
+            return Collections.emptyList();
+        }
+        Map<String, DutyType> types = dutyTypes;
+        String last = args[args.length - 1];
+        List<String> completions = new ArrayList<>();
+
+        switch (command) {
+            case "duty":
+                if (args.length == 1) {
+                    addDuties(completions, last, sender, true);
+                    addIfAllowed(completions, last, "reload", sender, "duty.reload");
+                    addIfAllowed(completions, last, "stats", sender, "duty.stats");
+                }
+                return completions;
+            case "checktime":
+                boolean others = sender.hasPermission("duty.checkothers");
+                if (args.length == 1) {
+                    addDuties(completions, last, sender, false);
+                    if (others) {
+                        addPlayers(completions, last);
+                    }
+                } else if (args.length == 2 && types.containsKey(args[0])) {
+                    addRanges(completions, last);
+                } else if (args.length == 2 && others) {
+                    addDuties(completions, last, sender, false);
+                } else if (args.length == 3 && others && !types.containsKey(args[0])) {
+                    addRanges(completions, last);
+                }
+                return completions;
+            case "dutytimes":
+                if (!sender.hasPermission("duty.viewall")) {
+                    return completions;
+                }
+                if (args.length == 1) {
+                    addDuties(completions, last, sender, false);
+                } else if (args.length == 2) {
+                    addRanges(completions, last);
+                }
+                return completions;
+            case "resettime":
+                if (!sender.hasPermission("duty.reset")) {
+                    return completions;
+                }
+                if (args.length == 1) {
+                    addDuties(completions, last, sender, false);
+                    addIfAllowed(completions, last, "ALL", sender, null);
+                } else if (args.length == 2) {
+                    addIfAllowed(completions, last, "*", sender, "duty.reset.everyone");
+                    if (sender.hasPermission("duty.reset.others")) {
+                        addPlayers(completions, last);
+                    }
+                } else if (args.length == 3 && args[1].equals("*")) {
+                    addIfAllowed(completions, last, "confirm", sender, "duty.reset.everyone");
+                }
+                return completions;
+            case "dutydata":
+                if (!sender.hasPermission("duty.data")) {
+                    return completions;
+                }
+                if (args.length == 1) {
+                    addIfAllowed(completions, last, "export", sender, null);
+                    addIfAllowed(completions, last, "import", sender, null);
+                    addIfAllowed(completions, last, "compact", sender, null);
+                } else if (args.length == 2 && args[0].equalsIgnoreCase("export")) {
+                    addIfAllowed(completions, last, "csv", sender, null);
+                    addIfAllowed(completions, last, "ndjson", sender, null);
+                } else if (args.length == 2 && args[0].equalsIgnoreCase("import")) {
+                    for (String file : dataTransfer.listFiles()) {
+                        addIfAllowed(completions, last, file, sender, null);
+                    }
+                } else if (args.length == 3) {
+                    addDuties(completions, last, sender, false);
+                }
+                return completions;
+            default:
+                return null;
+        }
+    }
+
+    // Only duties the sender may go on duty for, if onlyPermitted
+    private void addDuties(List<String> completions, String prefix, CommandSender sender, boolean onlyPermitted) {
+        Map<String, DutyType> types = dutyTypes;
+        List<String> matches;
+        synchronized (duties) {
+            matches = duties.complete(prefix, limit - completions.size(), onlyPermitted ? name -> {
+                DutyType type = types.get(name);
+                return type != null && sender.hasPermission(type.getPermission());
+            } : null);
+        }
+        completions.addAll(matches);
+    }
+
+    private void addPlayers(List<String> completions, String prefix) {
+        if (completions.size() < limit) {
+            completions.addAll(names.complete(prefix, limit - completions.size()));
+        }
+    }
+
+    private void addRanges(List<String> completions, String prefix) {
+        for (String range : RANGES) {
+            addIfAllowed(completions, prefix, range, null, null);
+        }
+    }
+
+    private void addIfAllowed(List<String> completions, String prefix, String option, CommandSender sender,
+                              String permission) {
+        if (completions.size() < limit && option.regionMatches(true, 0, prefix, 0, prefix.length())
+                && (permission == null || sender.hasPermission(permission))) {
+            completions.add(option);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.dutyplugin;
+
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Starts and ends duty sessions: /duty itself, and the crediting every other path that ends a
+ * session goes through (AFK, cross-server sync, config reloads, shutdown, crash recovery).
+ * Kept out of DutyPlugin so the load simulation runs the same code as the server instead of
+ * a copy of it.
+ */
+class DutyToggles {
+
+    private final Server server;
+    private final SessionRegistry sessions;
+    private final DutyTotals totals;
+    private final DutyRollups rollups;
+    private final WriteBehindPersister rollupPersister;
+    private final DutyStorage storage;
+    private final SessionJournal journal;
+    private final DutyCompactor compactor;
+    private final PlayerNameIndex nameIndex;
+    private final DutyTabCompleter tabCompleter;
+    private final TaskScheduler scheduler;
+    private final GroupMutationQueue groupQueue; // null without LuckPerms
+    private final DutySync sync; // null unless cross-server sync is enabled
+    private final WebhookDispatcher webhookDispatcher;
+    private final Supplier<DutyConfig> config; // replaced whole on reload
+    private final Function<UUID, String> names;
+    private final Map<UUID, DutySession> paused = new ConcurrentHashMap<>(); // sessions restarted when their player went idle
+
+    public DutyToggles(Server server, SessionRegistry sessions, DutyTotals totals, DutyRollups rollups,
+                       WriteBehindPersister rollupPersister, DutyStorage storage, SessionJournal journal,
+                       DutyCompactor compactor, PlayerNameIndex nameIndex, DutyTabCompleter tabCompleter,
+                       TaskScheduler scheduler, GroupMutationQueue groupQueue, DutySync sync,
+                       WebhookDispatcher webhookDispatcher, Supplier<DutyConfig> config, Function<UUID, String> names) {
+        this.server = server;
+        this.sessions = sessions;
+        this.totals = totals;
+        this.rollups = rollups;
+        this.rollupPersister = rollupPersister;
+        this.storage = storage;
+        this.journal = journal;
+        this.compactor = compactor;
+        this.nameIndex = nameIndex;
+        this.tabCompleter = tabCompleter;
+        this.scheduler = scheduler;
+        this.groupQueue = groupQueue;
+        this.sync = sync;
+        this.webhookDispatcher = webhookDispatcher;
+        this.config = config;
+        this.names = names;
+    }
+
+    // /duty <name>. Returns the session started, or null if the player was told why not.
+    public DutySession start(Player player, String dutyName) {
+        UUID uuid = player.getUniqueId();
+        Map<String, DutyType> types = config.get().getDutyTypes();
+        MessageTemplates messages = config.get().getMessages();
+
+        // Check if duty type exists in config
+        DutyType dutyType = types.get(dutyName);
+        if (dutyType == null) {
+            messages.send(player, Message.UNKNOWN_DUTY, new MessageArgs().duty(dutyName));
+            messages.send(player, Message.AVAILABLE_DUTIES, new MessageArgs().duties(types.keySet()));
+            return null;
+        }
+
+        // Check permission
+        if (!player.hasPermission(dutyType.getPermission())) {
+            messages.send(player, Message.NO_PERMISSION_DUTY, new MessageArgs().duty(dutyName));
+            messages.send(player, Message.REQUIRED_PERMISSION, new MessageArgs().permission(dutyType.getPermission()));
+            return null;
+        }
+
+        DutySession existing = sessions.get(uuid);
+        if (existing != null) {
+            messages.send(player, Message.ALREADY_ON_DUTY, new MessageArgs().duty(existing.getDutyName()));
+            return null;
+        }
+        DutySync.Lease elsewhere = sync != null ? sync.leaseElsewhere(uuid) : null;
+        if (elsewhere != null) {
+            messages.send(player, Message.ALREADY_ON_DUTY_ELSEWHERE,
+                    new MessageArgs().duty(elsewhere.getDuty()).server(elsewhere.getServer()));
+            return null;
+        }
+
+        // Other plugins may keep the player off duty; they tell them why
+        DutyStartEvent startEvent = new DutyStartEvent(player, dutyName);
+        server.getPluginManager().callEvent(startEvent);
+        if (startEvent.isCancelled()) {
+            return null;
+        }
+
+        // Start duty session, unless already on duty; the check and the start are one atomic step
+        DutySession session = new DutySession(dutyName, System.currentTimeMillis());
+        DutySession currentSession = sessions.tryStart(uuid, session);
+        if (currentSession != null) {
+            messages.send(player, Message.ALREADY_ON_DUTY, new MessageArgs().duty(currentSession.getDutyName()));
+            return null;
+        }
+        // Published first; if an AFK or sync end beats this, the journal already has the session as ended
+        journal.recordStart(uuid, dutyName, session.getStartTime());
+        nameIndex.touch(uuid);
+        tabCompleter.dutyUsed(dutyName);
+        // Times archived while they were away come back
+        compactor.touch(uuid);
+        scheduler.runAsync(() -> {
+            // On duty players stay resident, so the session end never has to read their shard
+            totals.preload(uuid);
+            compactor.restore(uuid);
+        });
+
+        // Add LuckPerms group
+        if (!dutyType.getGroup().isEmpty()) {
+            addGroup(player, dutyType.getGroup());
+        }
+
+        messages.send(player, Message.ON_DUTY, new MessageArgs().duty(dutyName));
+
+        // Send to Discord
+        webhookDispatcher.enqueue(player.getName() + " went ON duty for **" + dutyName + "**", 3066993);
+        return session;
+    }
+
+    // /duty with no arguments. Returns the session ended, or null if the player was told why not.
+    public DutySession stop(Player player) {
+        UUID uuid = player.getUniqueId();
+        MessageTemplates messages = config.get().getMessages();
+
+        DutySession current = sessions.get(uuid);
+        if (current == null) {
+            DutySync.Lease elsewhere = sync != null ? sync.leaseElsewhere(uuid) : null;
+            if (elsewhere != null) {
+                // On duty on another server; that server ends it
+                sync.requestEnd(uuid, elsewhere.getServer());
+                messages.send(player, Message.OFF_DUTY_ELSEWHERE,
+                        new MessageArgs().duty(elsewhere.getDuty()).server(elsewhere.getServer()));
+                return null;
+            }
+            messages.send(player, Message.NOT_ON_DUTY);
+            return null;
+        }
+
+        // Other plugins may keep the player on duty; they tell them why
+        DutyEndEvent endEvent = new DutyEndEvent(player, current.getDutyName(), current.getStartTime());
+        server.getPluginManager().callEvent(endEvent);
+        if (endEvent.isCancelled()) {
+            return null;
+        }
+
+        // Ending is atomic, so a second /duty racing this one finds nothing to end
+        DutySession session = sessions.end(uuid);
+        if (session == null) {
+            messages.send(player, Message.NOT_ON_DUTY);
+            return null;
+        }
+
+        credit(uuid, session, System.currentTimeMillis());
+        nameIndex.touch(uuid);
+
+        long duration = System.currentTimeMillis() - session.getStartTime();
+        String formattedTime = DutyPlugin.formatDuration(duration);
+
+        // Remove LuckPerms group
+        DutyType dutyType = config.get().getDutyTypes().get(session.getDutyName());
+        if (dutyType != null && !dutyType.getGroup().isEmpty()) {
+            removeGroup(player, dutyType.getGroup());
+        }
+
+        messages.send(player, Message.OFF_DUTY, new MessageArgs().duty(session.getDutyName()).duration(duration));
+
+        // Send to Discord
+        webhookDispatcher.enqueue(player.getName() + " went OFF duty for **" + session.getDutyName() +
+                                  "** (Duration: " + formattedTime + ")", 15158332);
+        return session;
+    }
+
+    // Adds an ended session's time to the totals, rollups, storage and journal
+    public void credit(UUID uuid, DutySession session, long endTime) {
+        if (paused.remove(uuid, session)) {
+            endTime = session.getStartTime(); // ended while idle, so none of it counts
+        }
+        compactor.touch(uuid); // before the total changes, so a compaction pass running now leaves the player alone
+        int ordinal = totals.register(session.getDutyName());
+        long newTotal = totals.add(uuid, ordinal, Math.max(0, endTime - session.getStartTime()));
+        rollups.record(uuid, ordinal, session.getStartTime(), endTime);
+        rollupPersister.markDirty();
+        storage.sessionEnded(uuid, session.getDutyName(), session.getStartTime(), endTime, newTotal);
+        journal.recordEnd(uuid, session.getDutyName(), session.getStartTime(), endTime, newTotal);
+    }
+
+    // Credits sessions that ended before a crash, in the order they ended, skipping the time of
+    // those storage already wrote. A player's sessions of one duty are credited in order, so
+    // storage holding the total one of them left means it has that one and every one before.
+    // The rollups skip the sessions they already have themselves. Call before anything else
+    // changes the totals.
+    public void creditRecovered(List<SessionJournal.RecoveredSession> ended) {
+        Map<String, Integer> lastWritten = new HashMap<>();
+        for (int i = 0; i < ended.size(); i++) {
+            SessionJournal.RecoveredSession session = ended.get(i);
+            if (session.newTotal >= 0 && session.newTotal == totals.storedTimes(session.uuid).getOrDefault(session.dutyName, 0L)) {
+                lastWritten.put(session.uuid + "/" + session.dutyName, i);
+            }
+        }
+        for (int i = 0; i < ended.size(); i++) {
+            SessionJournal.RecoveredSession session = ended.get(i);
+            Integer written = lastWritten.get(session.uuid + "/" + session.dutyName);
+            if (written == null || i > written) {
+                credit(session.uuid, new DutySession(session.dutyName, session.startTime), session.endTime);
+                continue;
+            }
+            // Kept in the journal until the rollups have it too
+            int ordinal = totals.register(session.dutyName);
+            rollups.record(session.uuid, ordinal, session.startTime, session.endTime);
+            rollupPersister.markDirty();
+            journal.recordEnd(session.uuid, session.dutyName, session.startTime, session.endTime, session.newTotal);
+        }
+    }
+
+    // Ends and credits every open session, for shutdown
+    public void endAll() {
+        for (Map.Entry<UUID, DutySession> entry : sessions.endAll()) {
+            credit(entry.getKey(), entry.getValue(), System.currentTimeMillis());
+        }
+    }
+
+    // Group changes are applied off the main thread; the player is told once they are saved
+    private void addGroup(Player player, String groupName) {
+        if (groupQueue == null) return;
+
+        MessageTemplates messages = config.get().getMessages();
+        groupQueue.addGroup(player.getUniqueId(), groupName, () -> {
+            if (player.isOnline()) {
+                messages.send(player, Message.GROUP_ADDED, new MessageArgs().group(groupName));
+            }
+        }, () -> {
+            if (player.isOnline()) {
+                messages.send(player, Message.GROUP_ADD_FAILED, new MessageArgs().group(groupName));
+            }
+        });
+    }
+
+    private void removeGroup(Player player, String groupName) {
+        if (groupQueue == null) return;
+
+        MessageTemplates messages = config.get().getMessages();
+        groupQueue.removeGroup(player.getUniqueId(), groupName, () -> {
+            if (player.isOnline()) {
+                messages.send(player, Message.GROUP_REMOVED, new MessageArgs().group(groupName));
+            }
+        }, () -> {
+            if (player.isOnline()) {
+                messages.send(player, Message.GROUP_REMOVE_FAILED, new MessageArgs().group(groupName));
+            }
+        });
+    }
+
+    // Used for players who may be offline, such as sessions recovered after a crash
+    public void removeGroup(UUID uuid, String groupName) {
+        if (groupQueue == null) return;
+
+        groupQueue.removeGroup(uuid, groupName, null, null);
+    }
+
+    // Ends or pauses the sessions of idle players, as afk.action says
+    public AfkTracker.Handler afkHandler(AfkTracker afkTracker) {
+        return new AfkTracker.Handler() {
+            // Runs on the global thread for every sample the player stays idle
+            @Override
+            public DutySession idle(UUID uuid, DutySession session, long lastActive, boolean first) {
+                String dutyName = session.getDutyName();
+                long activeUntil = Math.max(lastActive, session.getStartTime());
+                Player player = server.getPlayer(uuid);
+                MessageTemplates messages = config.get().getMessages();
+
+                if (afkTracker.getAction() == AfkTracker.Action.END) {
+                    if (!sessions.end(uuid, session)) {
+                        return null; // went off duty meanwhile
+                    }
+                    credit(uuid, session, activeUntil);
+                    DutyType dutyType = config.get().getDutyTypes().get(dutyName);
+                    if (dutyType != null && !dutyType.getGroup().isEmpty()) {
+                        removeGroup(uuid, dutyType.getGroup());
+                    }
+                    long duration = activeUntil - session.getStartTime();
+                    if (player != null) {
+                        messages.send(player, Message.AFK_OFF_DUTY, new MessageArgs().duty(dutyName).duration(duration));
+                    }
+                    webhookDispatcher.enqueue(names.apply(uuid) + " went OFF duty for **" + dutyName + "** after being idle for " +
+                                              DutyPlugin.formatDuration(System.currentTimeMillis() - activeUntil) +
+                                              " (Duration: " + DutyPlugin.formatDuration(duration) + ")", 15158332);
+                    return null;
+                }
+
+                // Credit up to the last activity and restart the session once; it stays paused,
+                // and is restarted again when the player is active, so idle time never counts
+                if (!first) {
+                    return session;
+                }
+                DutySession restarted = new DutySession(dutyName, System.currentTimeMillis());
+                if (!sessions.replace(uuid, session, restarted)) {
+                    return null;
+                }
+                paused.put(uuid, restarted);
+                if (activeUntil > session.getStartTime()) {
+                    credit(uuid, session, activeUntil);
+                }
+                journal.recordStart(uuid, dutyName, restarted.getStartTime());
+                if (player != null) {
+                    messages.send(player, Message.AFK_PAUSED, new MessageArgs().duty(dutyName));
+                }
+                return restarted;
+            }
+
+            @Override
+            public void activeAgain(UUID uuid, DutySession session) {
+                if (paused.get(uuid) == session) {
+                    DutySession resumed = new DutySession(session.getDutyName(), System.currentTimeMillis());
+                    if (!sessions.replace(uuid, session, resumed)) {
+                        return; // went off duty meanwhile
+                    }
+                    paused.remove(uuid, session);
+                    journal.recordStart(uuid, resumed.getDutyName(), resumed.getStartTime());
+                }
+                Player player = server.getPlayer(uuid);
+                if (player != null) {
+                    config.get().getMessages().send(player, Message.AFK_RESUMED, new MessageArgs().duty(session.getDutyName()));
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,593 @@
+package com.example.dutyplugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * In-memory duty time totals, one long[] per player indexed by duty ordinal.
+ * Duty names get a dense ordinal the first time they are seen (from the config or the
+ * data file) and keep it for the life of the server, so lookups never build strings.
+ * dutydata.yml is only read on load and written from snapshots.
+ * Each duty also keeps a RankedLeaderboard that is updated whenever a total changes.
+ * With a Backing (sharded storage) only a bounded, least recently used set of players is
+ * resident; the rest are loaded from the backing when asked for, changed players are handed
+ * back to it to be written, and the leaderboards only keep the top of each ranking. The backing
+ * is never read with the lock held, so a slow shard read doesn't hold up the main thread.
+ */
+class DutyTotals {
+
+    // Where players who aren't resident are kept
+    interface Backing {
+        // The player's stored times by ordinal, or null if they have none. Throws
+        // UncheckedIOException if they can't be read, so nothing overwrites them.
+        long[] load(UUID uuid);
+
+        // Queues the player's times to be written, or their data to be deleted if times is null.
+        // Called with the totals locked; a load of the same player running meanwhile is retried.
+        void stage(UUID uuid, long[] times);
+
+        // Every stored total of one duty (or of every duty if ordinal is -1) is now zero.
+        // Called with the totals locked, before the resident players are reset.
+        void resetForAll(int ordinal);
+    }
+
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<String> dutyNames = new ArrayList<>();
+    private Map<UUID, long[]> totals = new HashMap<>();
+    private final List<RankedLeaderboard> leaderboards = new ArrayList<>();
+    private long version; // bumped on every change, used to invalidate cached pages
+    // Only used with a backing
+    private Backing backing;
+    private int maxResident;
+    private int leaderboardSize;
+    private final Set<UUID> dirty = new HashSet<>(); // resident players changed since they were last staged
+    private final Map<UUID, Integer> reading = new HashMap<>(); // players being read from the backing, and by how many
+    private final Set<UUID> staleReads = new HashSet<>(); // of those, the ones staged since, whose reads may be older
+    private Predicate<UUID> pinned = uuid -> false;
+    private Consumer<Runnable> async = Runnable::run;
+    private final Set<UUID> loading = new HashSet<>(); // queued to load because get() missed them
+    private long loads;
+    private long evictions;
+
+    // Keeps at most maxResident players in memory, and the top leaderboardSize of each duty's
+    // ranking. A null backing goes back to keeping everyone.
+    public synchronized void useBacking(Backing backing, int maxResident, int leaderboardSize) {
+        this.backing = backing;
+        this.maxResident = Math.max(1, maxResident);
+        this.leaderboardSize = Math.max(1, leaderboardSize);
+        Map<UUID, long[]> resident = backing != null
+                ? new LinkedHashMap<>(16, 0.75f, true) // iterates least recently used first
+                : new HashMap<>();
+        resident.putAll(totals);
+        totals = resident;
+        dirty.clear();
+    }
+
+    // Players the predicate holds for are never evicted, e.g. those on duty, whose session end
+    // must not have to load them
+    public synchronized void keepResident(Predicate<UUID> pinned) {
+        this.pinned = pinned;
+    }
+
+    // Where get() loads the players it misses
+    public synchronized void loadWith(Consumer<Runnable> async) {
+        this.async = async;
+    }
+
+    public synchronized int register(String dutyName) {
+        Integer ordinal = ordinals.get(dutyName);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        int next = dutyNames.size();
+        ordinals.put(dutyName, next);
+        dutyNames.add(dutyName);
+        leaderboards.add(new RankedLeaderboard());
+        return next;
+    }
+
+    // Returns -1 for a duty that has never been seen
+    public synchronized int ordinalOf(String dutyName) {
+        Integer ordinal = ordinals.get(dutyName);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    public synchronized String nameOf(int ordinal) {
+        return dutyNames.get(ordinal);
+    }
+
+    public synchronized int dutyCount() {
+        return dutyNames.size();
+    }
+
+    // Players in memory, which is everyone with time unless there is a backing
+    public synchronized int playerCount() {
+        return totals.size();
+    }
+
+    public synchronized List<UUID> playerIds() {
+        return new ArrayList<>(totals.keySet());
+    }
+
+    // Never reads the backing, so it is safe on the main thread: a player who isn't resident
+    // counts as 0 for now and is loaded in the background. Use storedTotal off the main thread
+    // where the stored value is needed.
+    public synchronized long get(UUID uuid, int ordinal) {
+        if (ordinal < 0) {
+            return 0;
+        }
+        long[] times = totals.get(uuid);
+        if (times == null) {
+            if (backing != null && loading.add(uuid)) {
+                async.accept(() -> {
+                    try {
+                        preload(uuid);
+                    } finally {
+                        synchronized (this) {
+                            loading.remove(uuid);
+                        }
+                    }
+                });
+            }
+            return 0;
+        }
+        return ordinal < times.length ? times[ordinal] : 0;
+    }
+
+    // One stored total, reading the backing if the player isn't resident. Call off the main thread.
+    public long storedTotal(UUID uuid, int ordinal) {
+        if (ordinal < 0) {
+            return 0;
+        }
+        return withPlayer(uuid, true, times -> times != null && ordinal < times.length ? times[ordinal] : 0L);
+    }
+
+    // A player's non-zero times by duty name, loading them if they aren't resident
+    public Map<String, Long> timesByName(UUID uuid) {
+        return withPlayer(uuid, true, this::byName);
+    }
+
+    // A player's non-zero times by duty name without loading them into memory. Reads the
+    // backing if they aren't resident, so call off the main thread.
+    public Map<String, Long> storedTimes(UUID uuid) {
+        return withPlayer(uuid, false, this::byName);
+    }
+
+    // A player's times as far as the leaderboards know them. Never loads; with a backing only
+    // the top of each ranking is kept, so lower ranked times are missing.
+    public synchronized Map<String, Long> rankedTimes(UUID uuid) {
+        Map<String, Long> byName = new HashMap<>();
+        for (int ordinal = 0; ordinal < leaderboards.size(); ordinal++) {
+            long time = leaderboards.get(ordinal).timeOf(uuid);
+            if (time != 0) {
+                byName.put(dutyNames.get(ordinal), time);
+            }
+        }
+        return byName;
+    }
+
+    // Whether the player can be looked up without reading the backing
+    public synchronized boolean isResident(UUID uuid) {
+        return backing == null || totals.containsKey(uuid);
+    }
+
+    // A copy of a resident player's times, or null if they aren't resident. Never loads.
+    public synchronized long[] residentTimes(UUID uuid) {
+        long[] times = totals.get(uuid);
+        return times != null ? times.clone() : null;
+    }
+
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // Loads a player ahead of use. Call off the main thread.
+    public void preload(UUID uuid) {
+        withPlayer(uuid, true, times -> null);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public long add(UUID uuid, int ordinal, long delta) {
+        return withPlayer(uuid, true, current -> {
+            long[] times = timesFor(uuid, ordinal, current);
+            times[ordinal] += delta;
+            rank(ordinal, uuid, times[ordinal]);
+            changed(uuid);
+            return times[ordinal];
+        });
+    }
+
+    public void set(UUID uuid, int ordinal, long value) {
+        if (ordinal < 0) {
+            return;
+        }
+        withPlayer(uuid, true, current -> {
+            if (value != 0 || current != null) {
+                timesFor(uuid, ordinal, current)[ordinal] = value;
+                rank(ordinal, uuid, value);
+                changed(uuid);
+            }
+            return null;
+        });
+    }
+
+    public synchronized void remove(UUID uuid) {
+        if (totals.remove(uuid) != null || backing != null) {
+            for (RankedLeaderboard leaderboard : leaderboards) {
+                leaderboard.remove(uuid);
+            }
+            dropped(uuid);
+            version++;
+        }
+    }
+
+    // Removes a player and returns their non-zero times by name if when accepts them, otherwise
+    // returns nothing. when runs under the lock, so a change it reports to storage is ordered
+    // before any later one to the player. A player who isn't resident is read from the backing
+    // without being loaded in.
+    public Map<String, Long> takeIf(UUID uuid, Predicate<Map<String, Long>> when) {
+        return withPlayer(uuid, false, times -> {
+            Map<String, Long> byName = byName(times);
+            if (byName.isEmpty() || !when.test(byName)) {
+                return new HashMap<>();
+            }
+            remove(uuid);
+            return byName;
+        });
+    }
+
+    // Drops one duty's total, and the player with it if nothing else is left
+    public void reset(UUID uuid, int ordinal) {
+        if (ordinal < 0) {
+            return;
+        }
+        withPlayer(uuid, true, times -> {
+            if (times == null) {
+                return null;
+            }
+            if (ordinal < times.length) {
+                times[ordinal] = 0;
+                leaderboards.get(ordinal).remove(uuid);
+            }
+            if (isEmpty(times)) {
+                totals.remove(uuid);
+                dropped(uuid);
+            } else {
+                changed(uuid);
+            }
+            version++;
+            return null;
+        });
+    }
+
+    // Drops one duty's totals for every player under a single lock; returns how many had time
+    // (with a backing, how many were resident or ranked, as the rest are never looked at)
+    public synchronized int resetDuty(int ordinal) {
+        if (ordinal < 0) {
+            return 0;
+        }
+        if (backing != null) {
+            backing.resetForAll(ordinal);
+        }
+        int reset = 0;
+        Iterator<Map.Entry<UUID, long[]>> iterator = totals.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<UUID, long[]> entry = iterator.next();
+            long[] times = entry.getValue();
+            if (ordinal < times.length && times[ordinal] != 0) {
+                times[ordinal] = 0;
+                reset++;
+                if (backing != null) {
+                    dirty.add(entry.getKey());
+                }
+            }
+            if (isEmpty(times)) {
+                iterator.remove();
+                dropped(entry.getKey());
+            }
+        }
+        reset = Math.max(reset, leaderboards.get(ordinal).size());
+        leaderboards.get(ordinal).clear();
+        version++;
+        return reset;
+    }
+
+    // Drops every total; returns how many players had time (see resetDuty)
+    public synchronized int clear() {
+        int players = totals.size();
+        if (backing != null) {
+            backing.resetForAll(-1);
+            dirty.clear();
+            for (RankedLeaderboard leaderboard : leaderboards) {
+                players = Math.max(players, leaderboard.size());
+            }
+        }
+        totals.clear();
+        for (RankedLeaderboard leaderboard : leaderboards) {
+            leaderboard.clear();
+        }
+        version++;
+        return players;
+    }
+
+    // Hands every changed resident player to the backing to be written
+    public synchronized int stageDirty() {
+        int count = dirty.size();
+        for (UUID uuid : dirty) {
+            long[] times = totals.get(uuid);
+            stage(uuid, times != null ? times.clone() : null);
+        }
+        dirty.clear();
+        return count;
+    }
+
+    // A ranked total read from the leaderboard summary or a walk of the backing. Ignored for
+    // resident players, whose own times are already ranked and may be newer.
+    public synchronized void rankStored(UUID uuid, int ordinal, long time) {
+        if (!totals.containsKey(uuid)) {
+            rank(ordinal, uuid, time);
+            version++;
+        }
+    }
+
+    private static boolean isEmpty(long[] times) {
+        for (long time : times) {
+            if (time != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The live maps below hold stored + open session time for players on duty for that duty
+
+    public synchronized int rankedCount(int ordinal, Map<UUID, Long> live) {
+        if (ordinal < 0) {
+            return 0;
+        }
+        return leaderboards.get(ordinal).size(live);
+    }
+
+    public synchronized int rank(UUID uuid, int ordinal, Map<UUID, Long> live) {
+        if (ordinal < 0) {
+            return -1;
+        }
+        return leaderboards.get(ordinal).rank(uuid, live);
+    }
+
+    public synchronized List<RankedLeaderboard.Entry> page(int ordinal, int offset, int limit, Map<UUID, Long> live) {
+        if (ordinal < 0) {
+            return new ArrayList<>();
+        }
+        return leaderboards.get(ordinal).page(offset, limit, live);
+    }
+
+    // Up to limit stored totals ranked after the given entry (from the top if after is null).
+    // Lets an export walk a whole ranking in chunks without copying it.
+    public synchronized List<RankedLeaderboard.Entry> after(int ordinal, RankedLeaderboard.Entry after, int limit) {
+        if (ordinal < 0 || ordinal >= leaderboards.size()) {
+            return new ArrayList<>();
+        }
+        return leaderboards.get(ordinal).after(after, limit);
+    }
+
+    // Runs action with the lock held and the player's times, or null if they have none. A player
+    // who isn't resident is read from the backing first, without the lock; if they were staged
+    // while being read the copy may be older than what was staged, so they are read again. With
+    // admit false the read isn't kept resident.
+    private <T> T withPlayer(UUID uuid, boolean admit, Function<long[], T> action) {
+        long[] read = null;
+        boolean haveRead = false;
+        while (true) {
+            Backing source;
+            synchronized (this) {
+                boolean stale = haveRead && finishRead(uuid);
+                long[] times = totals.get(uuid);
+                if (times != null || backing == null) {
+                    return action.apply(times);
+                }
+                if (haveRead && !stale) {
+                    return action.apply(read != null && admit ? admit(uuid, read) : read);
+                }
+                source = backing;
+                reading.merge(uuid, 1, Integer::sum);
+            }
+            try {
+                read = source.load(uuid);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    finishRead(uuid);
+                }
+                throw e;
+            }
+            haveRead = true;
+        }
+    }
+
+    // Returns whether the player was staged during the read
+    private boolean finishRead(UUID uuid) {
+        boolean stale = staleReads.contains(uuid);
+        int left = reading.get(uuid) - 1;
+        if (left == 0) {
+            reading.remove(uuid);
+            staleReads.remove(uuid);
+        } else {
+            reading.put(uuid, left);
+        }
+        return stale;
+    }
+
+    private Map<String, Long> byName(long[] times) {
+        Map<String, Long> byName = new HashMap<>();
+        if (times != null) {
+            for (int ordinal = 0; ordinal < times.length && ordinal < dutyNames.size(); ordinal++) {
+                if (times[ordinal] != 0) {
+                    byName.put(dutyNames.get(ordinal), times[ordinal]);
+                }
+            }
+        }
+        return byName;
+    }
+
+    // current is the player's resident times, or null if they have none
+    private long[] timesFor(UUID uuid, int ordinal, long[] current) {
+        long[] times = current;
+        if (times == null) {
+            times = new long[Math.max(dutyNames.size(), ordinal + 1)];
+            totals.put(uuid, times);
+            evictOverflow(uuid);
+        } else if (ordinal >= times.length) {
+            times = Arrays.copyOf(times, Math.max(dutyNames.size(), ordinal + 1));
+            totals.put(uuid, times);
+        }
+        return times;
+    }
+
+    private long[] admit(UUID uuid, long[] times) {
+        if (times.length < dutyNames.size()) {
+            times = Arrays.copyOf(times, dutyNames.size());
+        }
+        totals.put(uuid, times);
+        loads++;
+        // Loaded players may belong in a ranking that has lost entries to resets
+        for (int ordinal = 0; ordinal < times.length; ordinal++) {
+            if (times[ordinal] != 0) {
+                rank(ordinal, uuid, times[ordinal]);
+            }
+        }
+        evictOverflow(uuid);
+        return times;
+    }
+
+    // Writes back and drops the least recently used players while there are too many, never the
+    // one just added (who is about to be used) or a pinned one
+    private void evictOverflow(UUID keep) {
+        if (backing == null || totals.size() <= maxResident) {
+            return;
+        }
+        Iterator<Map.Entry<UUID, long[]>> iterator = totals.entrySet().iterator();
+        while (totals.size() > maxResident && iterator.hasNext()) {
+            Map.Entry<UUID, long[]> eldest = iterator.next();
+            if (eldest.getKey().equals(keep) || pinned.test(eldest.getKey())) {
+                continue;
+            }
+            if (dirty.remove(eldest.getKey())) {
+                stage(eldest.getKey(), eldest.getValue());
+            }
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private void stage(UUID uuid, long[] times) {
+        backing.stage(uuid, times);
+        if (reading.containsKey(uuid)) {
+            staleReads.add(uuid);
+        }
+    }
+
+    private void rank(int ordinal, UUID uuid, long time) {
+        RankedLeaderboard leaderboard = leaderboards.get(ordinal);
+        leaderboard.update(uuid, time);
+        if (backing != null) {
+            leaderboard.trimTo(leaderboardSize);
+        }
+    }
+
+    private void changed(UUID uuid) {
+        if (backing != null) {
+            dirty.add(uuid);
+        }
+        version++;
+    }
+
+    // The player has no time left; tell the backing straight away so a load can't bring it back
+    private void dropped(UUID uuid) {
+        if (backing != null) {
+            dirty.remove(uuid);
+            stage(uuid, null);
+        }
+    }
+
+    // Replaces all totals with the contents of the "players" section of the data file
+    public synchronized void load(ConfigurationSection playersSection) {
+        totals.clear();
+        for (RankedLeaderboard leaderboard : leaderboards) {
+            leaderboard.clear();
+        }
+        version++;
+        if (playersSection == null) {
+            return;
+        }
+
+        for (String uuidStr : playersSection.getKeys(false)) {
+            UUID uuid;
+            try {
+                uuid = UUID.fromString(uuidStr);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+
+            ConfigurationSection playerSection = playersSection.getConfigurationSection(uuidStr);
+            if (playerSection == null) {
+                continue;
+            }
+            for (String dutyName : playerSection.getKeys(false)) {
+                long time = playerSection.getLong(dutyName, 0);
+                if (time != 0) {
+                    set(uuid, register(dutyName), time);
+                }
+            }
+        }
+    }
+
+    // Copies the totals under the lock, then builds the YAML without holding it
+    public String saveToString() {
+        String[] names;
+        UUID[] uuids;
+        long[][] times;
+        synchronized (this) {
+            names = dutyNames.toArray(new String[0]);
+            uuids = new UUID[totals.size()];
+            times = new long[totals.size()][];
+            int i = 0;
+            for (Map.Entry<UUID, long[]> entry : totals.entrySet()) {
+                uuids[i] = entry.getKey();
+                times[i] = entry.getValue().clone();
+                i++;
+            }
+        }
+
+        YamlConfiguration yaml = new YamlConfiguration();
+        for (int i = 0; i < uuids.length; i++) {
+            String prefix = "players." + uuids[i] + ".";
+            for (int ordinal = 0; ordinal < times[i].length; ordinal++) {
+                if (times[i][ordinal] != 0) {
+                    yaml.set(prefix + names[ordinal], times[i][ordinal]);
+                }
+            }
+        }
+        return yaml.saveToString();
+    }
+}
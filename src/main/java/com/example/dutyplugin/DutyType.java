@@ -0,0 +1,34 @@
+package com.example.dutyplugin;
+
+/**
+ * A duty from config.yml: the permission needed to go on it and the LuckPerms group
+ * given while on it (empty for none).
+ */
+class DutyType {
+    private final String name;
+    private final String permission;
+    private final String group;
+
+    public DutyType(String name, String permission, String group) {
+        this.name = name;
+        this.permission = permission;
+        this.group = group;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPermission() {
+        return permission;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    // Whether open sessions of this duty are unaffected by switching to the other definition
+    public boolean sameAs(DutyType other) {
+        return permission.equals(other.permission) && group.equals(other.group);
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.dutyplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Callers waiting for storage to write the changes they reported. A flush takes the waiters
+ * registered before it reads anything to write, completes them once the write succeeded and
+ * hands them back if it failed, so they are completed by the next flush that does succeed.
+ */
+class FlushWaiters {
+
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+
+    public synchronized CompletableFuture<Void> add() {
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiting.add(waiter);
+        return waiter;
+    }
+
+    // Call before reading the changes to write
+    public synchronized List<CompletableFuture<Void>> take() {
+        List<CompletableFuture<Void>> taken = waiting;
+        waiting = new ArrayList<>();
+        return taken;
+    }
+
+    public synchronized void failed(List<CompletableFuture<Void>> taken) {
+        waiting.addAll(0, taken);
+    }
+
+    // Completes outside the lock; callbacks may report new changes and wait again
+    public static void written(List<CompletableFuture<Void>> taken) {
+        for (CompletableFuture<Void> waiter : taken) {
+            waiter.complete(null);
+        }
+    }
+}
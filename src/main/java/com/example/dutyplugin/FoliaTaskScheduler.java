@@ -0,0 +1,52 @@
+package com.example.dutyplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Folia's region schedulers. Commands for players in different regions run in parallel,
+ * so anything shared between them must be thread-safe.
+ */
+class FoliaTaskScheduler implements TaskScheduler {
+
+    private final Plugin plugin;
+
+    public FoliaTaskScheduler(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void runGlobal(Runnable task) {
+        Bukkit.getGlobalRegionScheduler().execute(plugin, task);
+    }
+
+    @Override
+    public void runForPlayer(Player player, Runnable task) {
+        // A null retired callback drops the task if the player is gone
+        player.getScheduler().run(plugin, scheduled -> task.run(), null);
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        Bukkit.getAsyncScheduler().runNow(plugin, scheduled -> task.run());
+    }
+
+    @Override
+    public void runGlobalTimer(Runnable task, long delayTicks, long periodTicks) {
+        // Folia rejects a zero initial delay
+        Bukkit.getGlobalRegionScheduler().runAtFixedRate(plugin, scheduled -> task.run(),
+                Math.max(1, delayTicks), Math.max(1, periodTicks));
+    }
+
+    @Override
+    public boolean isGlobalThread() {
+        return Bukkit.isGlobalTickThread();
+    }
+
+    @Override
+    public void cancelAll() {
+        Bukkit.getGlobalRegionScheduler().cancelTasks(plugin);
+        Bukkit.getAsyncScheduler().cancelTasks(plugin);
+    }
+}
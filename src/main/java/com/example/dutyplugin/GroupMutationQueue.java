@@ -0,0 +1,285 @@
+package com.example.dutyplugin;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.Node;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+
+/**
+ * Applies LuckPerms duty group changes off the main thread.
+ * Changes for one player are applied in order, one modifyUser call at a time; anything
+ * queued while a call is in flight is coalesced into the next call, so a burst of toggles
+ * costs one storage write. In transient mode groups are added as transient nodes on the
+ * loaded user instead, which needs no storage write at all.
+ * A failed call is retried a few times, with anything queued meanwhile riding along; if it
+ * still fails the change is given up on and its failure callback runs instead.
+ * Callbacks run on the main thread (the global region on Folia) once the change has been applied.
+ */
+class GroupMutationQueue {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Plugin plugin;
+    private final TaskScheduler scheduler;
+    private final LuckPerms luckPerms;
+    private final boolean transientNodes;
+    private final LatencyHistogram writeTimer;
+
+    // Guarded by this. Players with a modifyUser call in flight have an entry, possibly with no pending changes.
+    private final Map<UUID, List<Mutation>> pending = new HashMap<>();
+    private final List<CompletableFuture<Void>> inFlight = new ArrayList<>();
+
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong storageWrites = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+
+    public GroupMutationQueue(Plugin plugin, TaskScheduler scheduler, LuckPerms luckPerms, boolean transientNodes, LatencyHistogram writeTimer) {
+        this.plugin = plugin;
+        this.scheduler = scheduler;
+        this.luckPerms = luckPerms;
+        this.transientNodes = transientNodes;
+        this.writeTimer = writeTimer;
+    }
+
+    public void addGroup(UUID uuid, String groupName, Runnable onApplied, Runnable onFailed) {
+        submit(uuid, new Mutation(groupName, true, onApplied, onFailed, null));
+    }
+
+    public void removeGroup(UUID uuid, String groupName, Runnable onApplied, Runnable onFailed) {
+        submit(uuid, new Mutation(groupName, false, onApplied, onFailed, null));
+    }
+
+    private void submit(UUID uuid, Mutation mutation) {
+        if (transientNodes) {
+            applyTransient(uuid, mutation);
+            return;
+        }
+
+        synchronized (this) {
+            List<Mutation> queued = pending.get(uuid);
+            if (queued != null) {
+                // A call is already in flight for this player; this change rides on the next one
+                queued.add(mutation);
+                return;
+            }
+            pending.put(uuid, new ArrayList<>());
+        }
+        write(uuid, List.of(mutation), 1);
+    }
+
+    private void write(UUID uuid, List<Mutation> mutations, int attempt) {
+        // Only the last change per group matters
+        List<Mutation> wanted = new ArrayList<>(mutations.size());
+        Map<String, Boolean> finalState = new LinkedHashMap<>();
+        for (Mutation mutation : mutations) {
+            if (mutation.stillWanted != null && !mutation.stillWanted.getAsBoolean()) {
+                continue; // e.g. a stray group the player has gone on duty for since
+            }
+            wanted.add(mutation);
+            finalState.put(mutation.groupName, mutation.add);
+        }
+        if (wanted.isEmpty()) {
+            writeNext(uuid, List.of(), 1);
+            return;
+        }
+        if (attempt == 1) {
+            coalesced.addAndGet(wanted.size() - finalState.size());
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> future = luckPerms.getUserManager().modifyUser(uuid, user -> {
+            for (Map.Entry<String, Boolean> entry : finalState.entrySet()) {
+                Node node = Node.builder("group." + entry.getKey()).build();
+                if (entry.getValue()) {
+                    user.data().add(node);
+                } else {
+                    user.data().remove(node);
+                }
+            }
+        });
+
+        synchronized (this) {
+            inFlight.add(future);
+        }
+        future.whenComplete((result, error) -> {
+            long elapsed = System.nanoTime() - start;
+            storageWrites.incrementAndGet();
+            totalWriteNanos.addAndGet(elapsed);
+            writeTimer.record(elapsed);
+            synchronized (this) {
+                inFlight.remove(future);
+            }
+            if (error == null) {
+                applied.addAndGet(wanted.size());
+                runCallbacks(wanted, true);
+                writeNext(uuid, List.of(), 1);
+            } else if (attempt < MAX_ATTEMPTS) {
+                plugin.getLogger().log(Level.WARNING, "Could not update LuckPerms groups for " + uuid +
+                                       " (attempt " + attempt + "), retrying", error);
+                // The player's entry in pending stays, so changes queued meanwhile still wait their turn
+                CompletableFuture<Void> retry = CompletableFuture.runAsync(() -> writeNext(uuid, wanted, attempt + 1),
+                        CompletableFuture.delayedExecutor(1L << attempt, TimeUnit.SECONDS));
+                synchronized (this) {
+                    inFlight.add(retry);
+                }
+                retry.whenComplete((ignored, retryError) -> {
+                    synchronized (this) {
+                        inFlight.remove(retry);
+                    }
+                });
+            } else {
+                plugin.getLogger().log(Level.SEVERE, "Gave up updating LuckPerms groups " + finalState + " for " + uuid +
+                                       " after " + MAX_ATTEMPTS + " attempts", error);
+                runCallbacks(wanted, false);
+                writeNext(uuid, List.of(), 1);
+            }
+        });
+    }
+
+    // Writes the changes to retry, if any, then whatever was queued for the player meanwhile
+    private void writeNext(UUID uuid, List<Mutation> retry, int attempt) {
+        List<Mutation> next = new ArrayList<>(retry);
+        synchronized (this) {
+            List<Mutation> queued = pending.remove(uuid);
+            if (queued != null) {
+                next.addAll(queued);
+            }
+            if (next.isEmpty()) {
+                return;
+            }
+            pending.put(uuid, new ArrayList<>());
+        }
+        write(uuid, next, attempt);
+    }
+
+    private void applyTransient(UUID uuid, Mutation mutation) {
+        if (mutation.stillWanted != null && !mutation.stillWanted.getAsBoolean()) {
+            return;
+        }
+        User user = luckPerms.getUserManager().getUser(uuid);
+        if (user == null) {
+            // Transient nodes only live while the user is loaded, so there is nothing to remove
+            return;
+        }
+        Node node = Node.builder("group." + mutation.groupName).build();
+        if (mutation.add) {
+            user.transientData().add(node);
+        } else {
+            user.transientData().remove(node);
+        }
+        applied.incrementAndGet();
+        runCallbacks(List.of(mutation), true);
+    }
+
+    private void runCallbacks(List<Mutation> mutations, boolean succeeded) {
+        List<Runnable> callbacks = new ArrayList<>(mutations.size());
+        for (Mutation mutation : mutations) {
+            Runnable callback = succeeded ? mutation.onApplied : mutation.onFailed;
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+        }
+        if (callbacks.isEmpty() || !plugin.isEnabled()) {
+            return;
+        }
+        if (scheduler.isGlobalThread()) {
+            callbacks.forEach(Runnable::run);
+        } else {
+            scheduler.runGlobal(() -> callbacks.forEach(Runnable::run));
+        }
+    }
+
+    // Removes duty groups from loaded players who are not on duty. Safe to call off the main thread.
+    // Each removal checks onDuty again when its turn comes, after any change queued before it.
+    public void removeStrayGroups(Collection<UUID> offDutyPlayers, Set<String> dutyGroups, Predicate<UUID> onDuty) {
+        for (UUID uuid : offDutyPlayers) {
+            User user = luckPerms.getUserManager().getUser(uuid);
+            if (user == null) {
+                continue;
+            }
+            for (Node node : user.getNodes()) {
+                String key = node.getKey();
+                if (key.startsWith("group.") && dutyGroups.contains(key.substring(6))) {
+                    submit(uuid, new Mutation(key.substring(6), false, null, null, () -> !onDuty.test(uuid)));
+                }
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        int count = inFlight.size();
+        for (List<Mutation> queued : pending.values()) {
+            count += queued.size();
+        }
+        return count;
+    }
+
+    public long getApplied() {
+        return applied.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getStorageWrites() {
+        return storageWrites.get();
+    }
+
+    public double getAverageWriteMillis() {
+        long writes = storageWrites.get();
+        return writes == 0 ? 0 : totalWriteNanos.get() / (double) writes / 1_000_000.0;
+    }
+
+    // Waits for in-flight changes, including any queued behind them, to reach LuckPerms
+    public void shutdown(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            CompletableFuture<?>[] futures;
+            synchronized (this) {
+                if (inFlight.isEmpty()) {
+                    return;
+                }
+                futures = inFlight.toArray(new CompletableFuture<?>[0]);
+            }
+            try {
+                CompletableFuture.allOf(futures).get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (Exception ignored) {
+                // Errors are logged by the completion handler; timeouts end the loop
+            }
+        }
+        plugin.getLogger().warning("Timed out waiting for LuckPerms group changes to be saved.");
+    }
+
+    private static class Mutation {
+        final String groupName;
+        final boolean add;
+        final Runnable onApplied;
+        final Runnable onFailed;
+        final BooleanSupplier stillWanted; // checked just before the change is written; null if always
+
+        Mutation(String groupName, boolean add, Runnable onApplied, Runnable onFailed, BooleanSupplier stillWanted) {
+            this.groupName = groupName;
+            this.add = add;
+            this.onApplied = onApplied;
+            this.onFailed = onFailed;
+            this.stillWanted = stillWanted;
+        }
+    }
+}
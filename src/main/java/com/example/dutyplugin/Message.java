@@ -0,0 +1,101 @@
+package com.example.dutyplugin;
+
+/**
+ * Every configurable reply, with its key under "messages" in config.yml and the text used
+ * when the key is missing. Templates are MiniMessage; see MessageTemplate for placeholders.
+ */
+enum Message {
+    ONLY_PLAYERS("only-players", "<red>Only players can use this command!"),
+    NO_PERMISSION_RELOAD("no-permission-reload", "<red>You don't have permission to reload the config!"),
+    NO_PERMISSION_STATS("no-permission-stats", "<red>You don't have permission to view plugin stats!"),
+    RELOAD_FAILED("reload-failed", "<red>Config not reloaded, config.yml could not be read: <input>"),
+    RELOADED("reloaded", "<green>DutyPlugin config reloaded! Loaded <yellow><count><green> duty types <gray>(parsed in <parsed> off the main thread, applied in <applied>)"),
+    RELOAD_CHANGES("reload-changes", "<gray>Added: <yellow><added><gray>, removed: <yellow><removed><gray>, changed: <yellow><changed>"),
+    RELOAD_SESSIONS("reload-sessions", "<gray>Open sessions: <yellow><count><gray> ended, <yellow><kept><gray> kept on duty under the new settings"),
+    RELOAD_WARNING("reload-warning", "<yellow>Warning: <input>"),
+    STATS_HEADER("stats-header", "<gold>DutyPlugin stats"),
+    STATS_TIMINGS("stats-timings", "<gold>Timings"),
+    STATS_LINE("stats-line", "<gray><input>"),
+
+    NOT_ON_DUTY("not-on-duty", "<red>You are not currently on duty!"),
+    OFF_DUTY("off-duty", "<green>You have gone off duty for <yellow><duty><green>! Duration: <aqua><duration>"),
+    OFF_DUTY_RELOAD("off-duty-reload", "<yellow>Your <duty> duty was changed by a config reload, so you have gone off duty. Duration: <aqua><duration>"),
+    UNKNOWN_DUTY("unknown-duty", "<red>Unknown duty type: <duty>"),
+    AVAILABLE_DUTIES("available-duties", "<yellow>Available duties: <duties>"),
+    NO_PERMISSION_DUTY("no-permission-duty", "<red>You don't have permission to go on duty for <duty>!"),
+    REQUIRED_PERMISSION("required-permission", "<gray>Required permission: <permission>"),
+    ALREADY_ON_DUTY("already-on-duty", "<red>You are already on duty for <yellow><duty><red>! Use /duty to go off duty first."),
+    ON_DUTY("on-duty", "<green>You are now on duty for <yellow><duty><green>!"),
+    GROUP_ADDED("group-added", "<gray>Added to group: <yellow><group>"),
+    GROUP_REMOVED("group-removed", "<gray>Removed from group: <yellow><group>"),
+    GROUP_ADD_FAILED("group-add-failed", "<red>Could not add you to group <yellow><group><red>. Your duty time still counts."),
+    GROUP_REMOVE_FAILED("group-remove-failed", "<red>Could not remove you from group <yellow><group><red>. Ask an admin to check LuckPerms."),
+    AFK_OFF_DUTY("afk-off-duty", "<yellow>You were idle, so you have gone off duty for <duty>. Duration: <aqua><duration>"),
+    AFK_PAUSED("afk-paused", "<yellow>You are idle, so your <duty> time is paused until you move or chat."),
+    AFK_RESUMED("afk-resumed", "<green>Welcome back! Your <yellow><duty><green> time is counting again."),
+    ALREADY_ON_DUTY_ELSEWHERE("already-on-duty-elsewhere", "<red>You are already on duty for <yellow><duty><red> on <yellow><server><red>! Use /duty to go off duty first."),
+    OFF_DUTY_ELSEWHERE("off-duty-elsewhere", "<green>Taking you off duty for <yellow><duty><green> on <yellow><server><green>."),
+    ENDED_ELSEWHERE("ended-elsewhere", "<yellow>You are on duty on <server>, so your <duty> duty here has ended. Duration: <aqua><duration>"),
+
+    CHECKTIME_USAGE("checktime-usage", "<red>Usage: /checktime [player] \\<duty_name> [day|week|month|7d|4w|3m]"),
+    INVALID_RANGE("invalid-range", "<red>Invalid range: <input><gray> (use day, week, month, 7d, 4w or 3m)"),
+    CONSOLE_NEEDS_PLAYER("console-needs-player", "<red>Console must specify a player: /checktime \\<player> \\<duty_name>"),
+    NO_PERMISSION_CHECKOTHERS("no-permission-checkothers", "<red>You don't have permission to check other players' times!"),
+    PLAYER_NOT_FOUND("player-not-found", "<red>Player not found: <player>"),
+    OWN_TIME("own-time", "<green>Your total time for <yellow><duty><green>: <aqua><duration><gray> (Rank <white><rank><gray>)"),
+    OWN_TIME_UNRANKED("own-time-unranked", "<green>Your total time for <yellow><duty><green>: <aqua><duration>"),
+    OWN_TIME_RANGE("own-time-range", "<green>Your time for <yellow><duty><green><range>: <aqua><duration>"),
+    OTHER_TIME("other-time", "<green><player>'s total time for <yellow><duty><green>: <aqua><duration><gray> (Rank <white><rank><gray>)"),
+    OTHER_TIME_UNRANKED("other-time-unranked", "<green><player>'s total time for <yellow><duty><green>: <aqua><duration>"),
+    OTHER_TIME_RANGE("other-time-range", "<green><player>'s time for <yellow><duty><green><range>: <aqua><duration>"),
+    OWN_TIME_ARCHIVED("own-time-archived", "<green>Your total time for <yellow><duty><green>: <aqua><duration><gray> (archived until you next go on duty)"),
+    OTHER_TIME_ARCHIVED("other-time-archived", "<green><player>'s total time for <yellow><duty><green>: <aqua><duration><gray> (archived until they next go on duty)"),
+
+    DUTYTIMES_USAGE("dutytimes-usage", "<red>Usage: /dutytimes \\<duty_name> [day|week|month|7d|4w|3m] [page]"),
+    NO_PERMISSION_VIEWALL("no-permission-viewall", "<red>You don't have permission to view all duty times!"),
+    INVALID_PAGE("invalid-page", "<red>Invalid page number!"),
+    LEADERBOARD_EMPTY("leaderboard-empty", "<yellow>No recorded times for <duty><range>"),
+    LEADERBOARD_BORDER("leaderboard-border", "<gold>═══════════════════════════════════════"),
+    LEADERBOARD_HEADER("leaderboard-header", "<yellow>Duty Times for <aqua><duty><yellow><range><gray> (Page <page>/<pages>)"),
+    LEADERBOARD_ENTRY("leaderboard-entry", "<white><rank>. <white><player><gray> - <aqua><duration>"),
+    LEADERBOARD_NEXT_PAGE("leaderboard-next-page", "<gray>Use <yellow><command><gray> for next page"),
+
+    NO_PERMISSION_RESET("no-permission-reset", "<red>You don't have permission to reset duty time!"),
+    NO_PERMISSION_RESET_OTHERS("no-permission-reset-others", "<red>You don't have permission to reset other players' duty time!"),
+    NO_PERMISSION_RESET_EVERYONE("no-permission-reset-everyone", "<red>You don't have permission to reset everyone's duty time!"),
+    RESETTIME_USAGE("resettime-usage", "<red>Usage: /resettime \\<duty_name|ALL> [player|*]"),
+    RESET_ALL("reset-all", "<green>All duty times have been reset!"),
+    RESET_DUTY("reset-duty", "<green>Duty time for <yellow><duty><green> has been reset!"),
+    RESET_OTHER_ALL("reset-other-all", "<green>All of <yellow><player><green>'s duty times have been reset!"),
+    RESET_OTHER_DUTY("reset-other-duty", "<yellow><player><green>'s time for <yellow><duty><green> has been reset!"),
+    RESET_CONFIRM("reset-confirm", "<yellow>This resets <white><duty><yellow> for every player. Run <white><command><yellow> to confirm."),
+    RESET_EVERYONE_ALL("reset-everyone-all", "<green>All duty times have been reset for <yellow><count><green> players!"),
+    RESET_EVERYONE_DUTY("reset-everyone-duty", "<green>Duty time for <yellow><duty><green> has been reset for <yellow><count><green> players!"),
+
+    NO_PERMISSION_DATA("no-permission-data", "<red>You don't have permission to export or import duty data!"),
+    DUTYDATA_USAGE("dutydata-usage", "<red>Usage: /dutydata export \\<csv|ndjson> [duty_name], /dutydata import \\<file> [duty_name] or /dutydata compact"),
+    DATA_BUSY("data-busy", "<red>An export, import or compaction is already running."),
+    DATA_FILE_NOT_FOUND("data-file-not-found", "<red>No such file in the exports folder: <file>"),
+    DATA_FAILED("data-failed", "<red>The <input> failed; see the console for details."),
+    EXPORT_DONE("export-done", "<green>Exported <yellow><count><green> totals to <yellow><file>"),
+    IMPORT_DONE("import-done", "<green>Imported <yellow><count><green> totals from <yellow><file>"),
+    IMPORT_SKIPPED("import-skipped", "<yellow><count> lines could not be read and were skipped."),
+    COMPACT_STARTED("compact-started", "<green>Compacting duty data in the background..."),
+    COMPACT_DONE("compact-done", "<green>Compaction finished, <yellow><count><green> players archived. /duty stats shows the space reclaimed once the changes are saved.");
+
+    private final String key;
+    private final String defaultTemplate;
+
+    Message(String key, String defaultTemplate) {
+        this.key = key;
+        this.defaultTemplate = defaultTemplate;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getDefaultTemplate() {
+        return defaultTemplate;
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.dutyplugin;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Values for a template's placeholders. Numbers and durations are kept as numbers and only
+ * turned into text if the template actually shows them.
+ */
+class MessageArgs {
+
+    // Placeholders a template can use, written as <player>, <duty>, and so on
+    enum Slot {
+        PLAYER, DUTY, DURATION, RANK, RANGE, PAGE, PAGES, GROUP, PERMISSION, DUTIES, INPUT, COMMAND, COUNT, FILE, SERVER,
+        ADDED, REMOVED, CHANGED, KEPT, PARSED, APPLIED;
+
+        final String tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    private final String[] text = new String[Slot.values().length];
+    private long duration = -1;
+    private int rank;
+    private int page;
+    private int pages;
+    private long count;
+
+    public MessageArgs player(String player) {
+        text[Slot.PLAYER.ordinal()] = player;
+        return this;
+    }
+
+    public MessageArgs duty(String duty) {
+        text[Slot.DUTY.ordinal()] = duty;
+        return this;
+    }
+
+    public MessageArgs duration(long millis) {
+        duration = millis;
+        return this;
+    }
+
+    public MessageArgs rank(int rank) {
+        this.rank = rank;
+        return this;
+    }
+
+    // The label of a time range, such as "this week", or null for all time
+    public MessageArgs range(String label) {
+        text[Slot.RANGE.ordinal()] = label == null ? "" : " " + label;
+        return this;
+    }
+
+    public MessageArgs page(int page, int pages) {
+        this.page = page;
+        this.pages = pages;
+        return this;
+    }
+
+    public MessageArgs group(String group) {
+        text[Slot.GROUP.ordinal()] = group;
+        return this;
+    }
+
+    public MessageArgs permission(String permission) {
+        text[Slot.PERMISSION.ordinal()] = permission;
+        return this;
+    }
+
+    public MessageArgs duties(Iterable<String> duties) {
+        text[Slot.DUTIES.ordinal()] = String.join(", ", duties);
+        return this;
+    }
+
+    public MessageArgs input(String input) {
+        text[Slot.INPUT.ordinal()] = input;
+        return this;
+    }
+
+    public MessageArgs command(String command) {
+        text[Slot.COMMAND.ordinal()] = command;
+        return this;
+    }
+
+    public MessageArgs count(long count) {
+        this.count = count;
+        return this;
+    }
+
+    public MessageArgs file(String file) {
+        text[Slot.FILE.ordinal()] = file;
+        return this;
+    }
+
+    public MessageArgs server(String server) {
+        text[Slot.SERVER.ordinal()] = server;
+        return this;
+    }
+
+    // Duty types a reload added, removed and changed
+    public MessageArgs changes(Collection<String> added, Collection<String> removed, Collection<String> changed) {
+        text[Slot.ADDED.ordinal()] = listOrNone(added);
+        text[Slot.REMOVED.ordinal()] = listOrNone(removed);
+        text[Slot.CHANGED.ordinal()] = listOrNone(changed);
+        return this;
+    }
+
+    public MessageArgs kept(long kept) {
+        text[Slot.KEPT.ordinal()] = Long.toString(kept);
+        return this;
+    }
+
+    // How long a reload took to parse off the main thread and to apply on it
+    public MessageArgs timings(long parseNanos, long applyNanos) {
+        text[Slot.PARSED.ordinal()] = TimeUnit.NANOSECONDS.toMillis(parseNanos) + "ms";
+        text[Slot.APPLIED.ordinal()] = String.format(Locale.ROOT, "%.2fms", applyNanos / 1_000_000.0);
+        return this;
+    }
+
+    private static String listOrNone(Collection<String> names) {
+        return names.isEmpty() ? "none" : String.join(", ", names);
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    String text(Slot slot) {
+        switch (slot) {
+            case DURATION:
+                return duration < 0 ? "" : DutyPlugin.formatDuration(duration);
+            case RANK:
+                return rank < 1 ? "" : "#" + rank;
+            case PAGE:
+                return Integer.toString(page);
+            case PAGES:
+                return Integer.toString(pages);
+            case COUNT:
+                return Long.toString(count);
+            default:
+                String value = text[slot.ordinal()];
+                return value == null ? "" : value;
+        }
+    }
+}
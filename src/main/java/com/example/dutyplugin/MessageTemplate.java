@@ -0,0 +1,139 @@
+package com.example.dutyplugin;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.format.Style;
+import net.kyori.adventure.text.format.TextColor;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
+import net.kyori.adventure.text.minimessage.tag.resolver.TagResolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A MiniMessage template parsed once into a flat list of parts: fixed text, already built as
+ * components, and placeholder slots that remember the style they appear in. Rendering only
+ * creates components for the placeholders, and a template without any is returned as is.
+ * Placeholders: <player> <duty> <duration> <rank> <range> <page> <pages> <group>
+ * <permission> <duties> <input> <command> <count> <file> <server> <added> <removed>
+ * <changed> <kept> <parsed> <applied>.
+ */
+class MessageTemplate {
+
+    // Stand-ins for placeholders while parsing; private use characters never typed by players
+    private static final char MARKER_BASE = '\uE000';
+    private static final MessageArgs.Slot[] SLOTS = MessageArgs.Slot.values();
+    private static final TagResolver MARKERS;
+
+    static {
+        TagResolver[] resolvers = new TagResolver[SLOTS.length];
+        for (MessageArgs.Slot slot : SLOTS) {
+            resolvers[slot.ordinal()] = Placeholder.unparsed(slot.tag, String.valueOf((char) (MARKER_BASE + slot.ordinal())));
+        }
+        MARKERS = TagResolver.resolver(resolvers);
+    }
+
+    private final Part[] parts;
+    private final Component constant; // set when the template has no placeholders
+
+    private MessageTemplate(Part[] parts) {
+        this.parts = parts;
+        if (parts.length == 0) {
+            this.constant = Component.empty();
+        } else if (parts.length == 1 && parts[0].literal != null) {
+            this.constant = parts[0].literal;
+        } else {
+            this.constant = null;
+        }
+    }
+
+    // rankColors[i] colors rank i + 1 wherever <rank> appears; later ranks keep the template's color
+    public static MessageTemplate compile(String template, List<TextColor> rankColors) {
+        Component parsed = MiniMessage.miniMessage().deserialize(template, MARKERS);
+        List<Part> parts = new ArrayList<>();
+        flatten(parsed, Style.empty(), rankColors, parts);
+        return new MessageTemplate(parts.toArray(new Part[0]));
+    }
+
+    // Walks the component tree, giving each piece of text the style it inherits
+    private static void flatten(Component component, Style inherited, List<TextColor> rankColors, List<Part> parts) {
+        Style style = component.style().merge(inherited, Style.Merge.Strategy.IF_ABSENT_ON_TARGET);
+        if (component instanceof TextComponent) {
+            String content = ((TextComponent) component).content();
+            int start = 0;
+            for (int i = 0; i < content.length(); i++) {
+                int slot = content.charAt(i) - MARKER_BASE;
+                if (slot < 0 || slot >= SLOTS.length) {
+                    continue;
+                }
+                if (i > start) {
+                    parts.add(Part.literal(Component.text(content.substring(start, i), style)));
+                }
+                parts.add(Part.slot(SLOTS[slot], style, rankColors));
+                start = i + 1;
+            }
+            if (start < content.length()) {
+                parts.add(Part.literal(Component.text(content.substring(start), style)));
+            }
+        } else {
+            // Translatable and other components are kept whole
+            parts.add(Part.literal(component.children(Collections.emptyList()).style(style)));
+        }
+        for (Component child : component.children()) {
+            flatten(child, style, rankColors, parts);
+        }
+    }
+
+    public Component render(MessageArgs args) {
+        if (constant != null) {
+            return constant;
+        }
+        TextComponent.Builder builder = Component.text();
+        for (Part part : parts) {
+            if (part.literal != null) {
+                builder.append(part.literal);
+            } else if (args != null) {
+                builder.append(Component.text(args.text(part.slot), part.styleFor(args)));
+            }
+        }
+        return builder.build();
+    }
+
+    private static class Part {
+        final Component literal;
+        final MessageArgs.Slot slot;
+        final Style style;
+        final Style[] rankStyles; // for <rank>: the style of ranks 1, 2, 3...
+
+        private Part(Component literal, MessageArgs.Slot slot, Style style, Style[] rankStyles) {
+            this.literal = literal;
+            this.slot = slot;
+            this.style = style;
+            this.rankStyles = rankStyles;
+        }
+
+        static Part literal(Component component) {
+            return new Part(component, null, null, null);
+        }
+
+        static Part slot(MessageArgs.Slot slot, Style style, List<TextColor> rankColors) {
+            Style[] rankStyles = null;
+            if (slot == MessageArgs.Slot.RANK) {
+                rankStyles = new Style[rankColors.size()];
+                for (int i = 0; i < rankStyles.length; i++) {
+                    rankStyles[i] = style.color(rankColors.get(i));
+                }
+            }
+            return new Part(null, slot, style, rankStyles);
+        }
+
+        Style styleFor(MessageArgs args) {
+            if (rankStyles != null && args.getRank() >= 1 && args.getRank() <= rankStyles.length) {
+                return rankStyles[args.getRank() - 1];
+            }
+            return style;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.dutyplugin;
+
+import net.kyori.adventure.text.format.NamedTextColor;
+import net.kyori.adventure.text.format.TextColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Every reply compiled from the "messages" section of config.yml. Built together with the
+ * rest of a DutyConfig, so templates are parsed once per load rather than once per message.
+ */
+class MessageTemplates {
+
+    private static final List<TextColor> DEFAULT_RANK_COLORS =
+            Arrays.asList(NamedTextColor.GOLD, NamedTextColor.GRAY, NamedTextColor.YELLOW);
+
+    private final EnumMap<Message, MessageTemplate> templates = new EnumMap<>(Message.class);
+
+    private MessageTemplates() {
+    }
+
+    // Missing or broken templates fall back to the built-in text, with a warning for broken ones
+    public static MessageTemplates compile(ConfigurationSection section, List<String> warnings) {
+        List<TextColor> rankColors = parseRankColors(section, warnings);
+        MessageTemplates messages = new MessageTemplates();
+        for (Message message : Message.values()) {
+            String template = section == null ? null : section.getString(message.getKey());
+            MessageTemplate compiled = null;
+            if (template != null) {
+                try {
+                    compiled = MessageTemplate.compile(template, rankColors);
+                } catch (RuntimeException e) {
+                    warnings.add("Message " + message.getKey() + " could not be parsed and the default is used: " + e.getMessage());
+                }
+            }
+            if (compiled == null) {
+                compiled = MessageTemplate.compile(message.getDefaultTemplate(), rankColors);
+            }
+            messages.templates.put(message, compiled);
+        }
+        return messages;
+    }
+
+    private static List<TextColor> parseRankColors(ConfigurationSection section, List<String> warnings) {
+        if (section == null || !section.isList("rank-colors")) {
+            return DEFAULT_RANK_COLORS;
+        }
+        List<TextColor> colors = new ArrayList<>();
+        for (String value : section.getStringList("rank-colors")) {
+            TextColor color = value.startsWith("#")
+                    ? TextColor.fromHexString(value)
+                    : NamedTextColor.NAMES.value(value.toLowerCase(Locale.ROOT));
+            if (color == null) {
+                warnings.add("Unknown rank color " + value + "; the rest of the rank colors were ignored.");
+                break;
+            }
+            colors.add(color);
+        }
+        return colors;
+    }
+
+    public MessageTemplate get(Message message) {
+        return templates.get(message);
+    }
+
+    public void send(CommandSender sender, Message message) {
+        sender.sendMessage(templates.get(message).render(null));
+    }
+
+    public void send(CommandSender sender, Message message, MessageArgs args) {
+        sender.sendMessage(templates.get(message).render(args));
+    }
+}
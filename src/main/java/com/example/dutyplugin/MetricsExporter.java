@@ -0,0 +1,92 @@
+package com.example.dutyplugin;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes PluginMetrics in the Prometheus text format, either as a file rewritten every
+ * interval (for node_exporter's textfile collector) or from an HTTP endpoint bound to the
+ * loopback address only. Both run off the main thread.
+ */
+class MetricsExporter {
+
+    private final PluginMetrics metrics;
+    private final Logger logger;
+    private ScheduledExecutorService fileWriter;
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+
+    public MetricsExporter(PluginMetrics metrics, Logger logger) {
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    public void startFile(File target, long intervalMillis) {
+        fileWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1000L, intervalMillis);
+        fileWriter.scheduleWithFixedDelay(() -> writeFile(target), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void startHttp(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Metrics-HTTP");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(httpExecutor);
+        httpServer.start();
+    }
+
+    // Written to a temp file and renamed, so a scrape never sees half a file
+    private void writeFile(File target) {
+        File temp = new File(target.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write metrics to " + target, e);
+        }
+    }
+
+    public void shutdown() {
+        if (fileWriter != null) {
+            fileWriter.shutdownNow();
+        }
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.dutyplugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The plugin's own UUID <-> name index, so commands never hit the server's user cache
+ * or Mojang on the main thread. Holds at most maxEntries players, least recently used
+ * first out, and is persisted to names.yml. Name lookups are case-insensitive, and names
+ * can be completed by prefix, most recently active players first.
+ */
+class PlayerNameIndex {
+
+    private final int maxEntries;
+    private final LinkedHashMap<UUID, String> namesByUuid;
+    private final Map<String, UUID> uuidsByName = new HashMap<>(); // keys are lower case
+    private final PrefixTrie<String> completions = new PrefixTrie<>(); // names, scored by activity
+    private long activity; // bumped on every put or touch; a higher score is more recent
+
+    public PlayerNameIndex(int maxEntries) {
+        this.maxEntries = Math.max(16, maxEntries);
+        this.namesByUuid = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest) {
+                if (size() > PlayerNameIndex.this.maxEntries) {
+                    uuidsByName.remove(key(eldest.getValue()), eldest.getKey());
+                    completions.remove(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns true if the index changed
+    public synchronized boolean put(UUID uuid, String name) {
+        if (name == null || name.isEmpty()) {
+            return false;
+        }
+        String previous = namesByUuid.put(uuid, name);
+        if (name.equals(previous)) {
+            completions.touch(name, ++activity);
+            return false;
+        }
+        if (previous != null) {
+            uuidsByName.remove(key(previous), uuid);
+            completions.remove(previous);
+        }
+        // Names can move to a new account; the newest owner wins
+        UUID previousOwner = uuidsByName.put(key(name), uuid);
+        if (previousOwner != null && !previousOwner.equals(uuid)) {
+            String previousOwnerName = namesByUuid.remove(previousOwner);
+            if (previousOwnerName != null) {
+                completions.remove(previousOwnerName);
+            }
+        }
+        completions.put(name, name, ++activity);
+        return true;
+    }
+
+    // Marks the player as active, so they come first in completions
+    public synchronized void touch(UUID uuid) {
+        String name = namesByUuid.get(uuid);
+        if (name != null) {
+            completions.touch(name, ++activity);
+        }
+    }
+
+    public synchronized String getName(UUID uuid) {
+        return namesByUuid.get(uuid);
+    }
+
+    public synchronized UUID getUuid(String name) {
+        UUID uuid = uuidsByName.get(key(name));
+        if (uuid != null) {
+            namesByUuid.get(uuid); // mark as recently used
+        }
+        return uuid;
+    }
+
+    // Known names starting with the prefix, most recently active first
+    public synchronized List<String> complete(String prefix, int limit) {
+        return completions.complete(prefix, limit, null);
+    }
+
+    public synchronized int size() {
+        return namesByUuid.size();
+    }
+
+    public synchronized void load(ConfigurationSection section) {
+        if (section == null) {
+            return;
+        }
+        for (String uuidStr : section.getKeys(false)) {
+            try {
+                put(UUID.fromString(uuidStr), section.getString(uuidStr));
+            } catch (IllegalArgumentException ignored) {}
+        }
+    }
+
+    public String saveToString() {
+        Map<UUID, String> copy;
+        synchronized (this) {
+            copy = new LinkedHashMap<>(namesByUuid);
+        }
+        YamlConfiguration yaml = new YamlConfiguration();
+        for (Map.Entry<UUID, String> entry : copy.entrySet()) {
+            yaml.set("names." + entry.getKey(), entry.getValue());
+        }
+        return yaml.saveToString();
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.dutyplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Case-insensitive prefix trie for tab completion. Every value has a score (higher is more
+ * recently active), and every node keeps its subtree's best TOP values in order, so a
+ * completion usually reads one short list instead of walking the subtree. Not thread-safe;
+ * callers synchronize.
+ */
+class PrefixTrie<V> {
+
+    static final int TOP = 32;
+
+    private static final Comparator<Entry<?>> BY_SCORE = (a, b) -> Long.compare(b.score, a.score);
+
+    private final Node<V> root = new Node<>(null, (char) 0);
+    private final Map<V, Entry<V>> entries = new HashMap<>();
+
+    // Adds the value under the key, or moves it there if it was under another key
+    public void put(String key, V value, long score) {
+        Entry<V> existing = entries.get(value);
+        if (existing != null) {
+            if (existing.key.equals(normalize(key))) {
+                touch(value, score);
+                return;
+            }
+            remove(value);
+        }
+        Entry<V> entry = new Entry<>(normalize(key), value, score);
+        Node<V> node = root;
+        for (int i = 0; i < entry.key.length(); i++) {
+            node = node.child(entry.key.charAt(i), true);
+        }
+        entry.node = node;
+        node.values.add(entry);
+        entries.put(value, entry);
+        for (Node<V> n = node; n != null; n = n.parent) {
+            n.size++;
+            n.offer(entry);
+        }
+    }
+
+    // Gives the value a new score, e.g. when the player or duty was just used
+    public void touch(V value, long score) {
+        Entry<V> entry = entries.get(value);
+        if (entry == null || entry.score == score) {
+            return;
+        }
+        boolean lowered = score < entry.score;
+        entry.score = score;
+        for (Node<V> n = entry.node; n != null; n = n.parent) {
+            if (n.top.remove(entry) && lowered && n.size > n.top.size() + 1) {
+                n.stale = true; // something outside the list may now beat it
+            } else {
+                n.offer(entry);
+            }
+        }
+    }
+
+    public void remove(V value) {
+        Entry<V> entry = entries.remove(value);
+        if (entry == null) {
+            return;
+        }
+        entry.node.values.remove(entry);
+        for (Node<V> n = entry.node; n != null; n = n.parent) {
+            n.size--;
+            if (n.top.remove(entry) && n.size > n.top.size()) {
+                n.stale = true;
+            }
+        }
+        // Drop nodes left without values
+        Node<V> node = entry.node;
+        while (node.parent != null && node.size == 0) {
+            node.parent.children.remove(node.c);
+            node = node.parent;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Up to limit values whose key starts with the prefix and that pass the filter, most active first
+    public List<V> complete(String prefix, int limit, Predicate<V> filter) {
+        Node<V> node = root;
+        String key = normalize(prefix);
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i), false);
+        }
+        if (node == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        if (node.stale) {
+            node.rebuild();
+        }
+
+        List<V> matches = new ArrayList<>(Math.min(limit, TOP));
+        for (Entry<V> entry : node.top) {
+            if (filter == null || filter.test(entry.value)) {
+                matches.add(entry.value);
+                if (matches.size() >= limit) {
+                    return matches;
+                }
+            }
+        }
+        if (node.size <= node.top.size()) {
+            return matches; // the list held the whole subtree
+        }
+
+        // Filtered out too many or asked for more than TOP; fall back to walking the subtree
+        List<Entry<V>> all = new ArrayList<>(node.size);
+        node.collect(all);
+        all.sort(BY_SCORE);
+        matches.clear();
+        for (Entry<V> entry : all) {
+            if (filter == null || filter.test(entry.value)) {
+                matches.add(entry.value);
+                if (matches.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static String normalize(String key) {
+        return key.toLowerCase(Locale.ROOT);
+    }
+
+    private static class Entry<V> {
+        final String key;
+        final V value;
+        long score;
+        Node<V> node;
+
+        Entry(String key, V value, long score) {
+            this.key = key;
+            this.value = value;
+            this.score = score;
+        }
+    }
+
+    private static class Node<V> {
+        final Node<V> parent;
+        final char c;
+        final Map<Character, Node<V>> children = new HashMap<>(4);
+        final List<Entry<V>> values = new ArrayList<>(1); // keys ending here
+        final List<Entry<V>> top = new ArrayList<>(4); // best of the subtree, highest score first
+        int size; // values in the subtree
+        boolean stale; // top may be missing entries that belong in it
+
+        Node(Node<V> parent, char c) {
+            this.parent = parent;
+            this.c = c;
+        }
+
+        Node<V> child(char c, boolean create) {
+            Node<V> child = children.get(c);
+            if (child == null && create) {
+                child = new Node<>(this, c);
+                children.put(c, child);
+            }
+            return child;
+        }
+
+        // Puts the entry in the list if it ranks high enough
+        void offer(Entry<V> entry) {
+            if (stale) {
+                return; // rebuilt on next use anyway
+            }
+            int index = top.size();
+            while (index > 0 && top.get(index - 1).score < entry.score) {
+                index--;
+            }
+            if (index < TOP) {
+                top.add(index, entry);
+                if (top.size() > TOP) {
+                    top.remove(TOP);
+                }
+            }
+        }
+
+        void rebuild() {
+            List<Entry<V>> all = new ArrayList<>(size);
+            collect(all);
+            all.sort(BY_SCORE);
+            top.clear();
+            top.addAll(all.subList(0, Math.min(TOP, all.size())));
+            stale = false;
+        }
+
+        void collect(List<Entry<V>> out) {
+            out.addAll(values);
+            for (Node<V> child : children.values()) {
+                child.collect(out);
+            }
+        }
+    }
+}
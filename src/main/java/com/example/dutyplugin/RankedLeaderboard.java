@@ -0,0 +1,362 @@
+package com.example.dutyplugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ranking of players by total time for one duty, kept as an indexed skip list.
+ * Every link stores how many entries it skips, so insert, remove, rank and
+ * "entry at position n" are all O(log n). Higher times rank first; ties are broken by UUID.
+ * Not thread-safe, callers lock around it.
+ */
+class RankedLeaderboard {
+
+    private static final int MAX_LEVEL = 32;
+
+    public static class Entry {
+        private final UUID uuid;
+        private final long time;
+
+        public Entry(UUID uuid, long time) {
+            this.uuid = uuid;
+            this.time = time;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+
+    private static class Node {
+        final UUID uuid;
+        final long time;
+        final Node[] next;
+        final int[] width;
+
+        Node(UUID uuid, long time, int level) {
+            this.uuid = uuid;
+            this.time = time;
+            this.next = new Node[level];
+            this.width = new int[level];
+        }
+    }
+
+    private final Node head = new Node(null, 0, MAX_LEVEL);
+    private final Map<UUID, Node> nodes = new HashMap<>();
+    private int level = 1;
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public void clear() {
+        nodes.clear();
+        Arrays.fill(head.next, null);
+        Arrays.fill(head.width, 0);
+        level = 1;
+    }
+
+    // Sets a player's time, dropping them from the ranking when it is zero
+    public void update(UUID uuid, long time) {
+        Node existing = nodes.get(uuid);
+        if (existing != null) {
+            if (existing.time == time) {
+                return;
+            }
+            unlink(existing);
+        }
+        if (time > 0) {
+            insert(uuid, time);
+        }
+    }
+
+    // The player's ranked time, or 0 if they aren't in the ranking
+    public long timeOf(UUID uuid) {
+        Node existing = nodes.get(uuid);
+        return existing != null ? existing.time : 0;
+    }
+
+    public void remove(UUID uuid) {
+        Node existing = nodes.get(uuid);
+        if (existing != null) {
+            unlink(existing);
+        }
+    }
+
+    // Drops the lowest ranked entries until at most max are left
+    public void trimTo(int max) {
+        while (nodes.size() > max) {
+            unlink(nodeAt(nodes.size() - 1));
+        }
+    }
+
+    // Position of the entry ranked at the given 0-based index, or null past the end
+    private Node nodeAt(int index) {
+        if (index < 0 || index >= nodes.size()) {
+            return null;
+        }
+        Node x = head;
+        int traversed = 0;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && traversed + x.width[i] <= index + 1) {
+                traversed += x.width[i];
+                x = x.next[i];
+            }
+            if (traversed == index + 1) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    // 0-based position of a player's stored entry, or -1 if they are not ranked
+    private int indexOf(UUID uuid) {
+        Node node = nodes.get(uuid);
+        return node != null ? countBefore(node.time, node.uuid) : -1;
+    }
+
+    // Number of stored entries that rank ahead of the given time and UUID
+    private int countBefore(long time, UUID uuid) {
+        Node x = head;
+        int rank = 0;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && before(x.next[i].time, x.next[i].uuid, time, uuid)) {
+                rank += x.width[i];
+                x = x.next[i];
+            }
+        }
+        return rank;
+    }
+
+    // Up to limit stored entries ranked after the given one, or from the top if it is null
+    public List<Entry> after(Entry after, int limit) {
+        Node x = head;
+        if (after != null) {
+            for (int i = level - 1; i >= 0; i--) {
+                while (x.next[i] != null && !before(after.time, after.uuid, x.next[i])) {
+                    x = x.next[i];
+                }
+            }
+        }
+        List<Entry> entries = new ArrayList<>(Math.min(limit, nodes.size()));
+        for (Node node = x.next[0]; node != null && entries.size() < limit; node = node.next[0]) {
+            entries.add(new Entry(node.uuid, node.time));
+        }
+        return entries;
+    }
+
+    /**
+     * Number of ranked players once live session totals are merged in.
+     * live maps each player with an open session for this duty to their stored + live time.
+     */
+    public int size(Map<UUID, Long> live) {
+        int size = nodes.size();
+        for (Map.Entry<UUID, Long> entry : live.entrySet()) {
+            if (nodes.containsKey(entry.getKey())) {
+                size--;
+            }
+            if (entry.getValue() > 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    // 1-based rank of a player with live totals merged in, or -1 if they have no time
+    public int rank(UUID uuid, Map<UUID, Long> live) {
+        Long liveTime = live.get(uuid);
+        long time;
+        if (liveTime != null) {
+            time = liveTime;
+        } else {
+            Node node = nodes.get(uuid);
+            if (node == null) {
+                return -1;
+            }
+            time = node.time;
+        }
+        if (time <= 0) {
+            return -1;
+        }
+
+        int ahead = countBefore(time, uuid);
+        for (Map.Entry<UUID, Long> entry : live.entrySet()) {
+            UUID other = entry.getKey();
+            Node stored = nodes.get(other);
+            // Live players are ranked by their live time, not their stored entry
+            if (stored != null && before(stored.time, other, time, uuid)) {
+                ahead--;
+            }
+            if (!other.equals(uuid) && entry.getValue() > 0 && before(entry.getValue(), other, time, uuid)) {
+                ahead++;
+            }
+        }
+        return ahead + 1;
+    }
+
+    /**
+     * One page of the ranking with live session totals merged in.
+     * Costs O(log n) to find the page plus O(m) per live session, then O(limit) to read it.
+     */
+    public List<Entry> page(int offset, int limit, Map<UUID, Long> live) {
+        // Live players, best first, and where their stored entries sit in the skip list
+        List<Entry> liveEntries = new ArrayList<>(live.size());
+        List<Integer> liveStored = new ArrayList<>(live.size());
+        for (Map.Entry<UUID, Long> entry : live.entrySet()) {
+            if (entry.getValue() > 0) {
+                liveEntries.add(new Entry(entry.getKey(), entry.getValue()));
+            }
+            int index = indexOf(entry.getKey());
+            if (index >= 0) {
+                liveStored.add(index);
+            }
+        }
+        liveEntries.sort((a, b) -> before(a.time, a.uuid, b.time, b.uuid) ? -1 : 1);
+        int[] liveStoredIndexes = liveStored.stream().mapToInt(Integer::intValue).sorted().toArray();
+
+        int storedCount = nodes.size() - liveStoredIndexes.length;
+        int liveCount = liveEntries.size();
+        if (offset >= storedCount + liveCount || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        // Find how many stored (a) and live (b) entries come before the page start
+        int a = offset;
+        int b = 0;
+        for (b = 0; b <= Math.min(liveCount, offset); b++) {
+            a = offset - b;
+            if (a > storedCount) {
+                continue;
+            }
+            boolean storedFits = a == 0 || b == liveCount
+                    || !before(liveEntries.get(b).time, liveEntries.get(b).uuid, storedAt(a - 1, liveStoredIndexes));
+            boolean liveFits = b == 0 || a == storedCount
+                    || !before(storedAt(a, liveStoredIndexes), liveEntries.get(b - 1).time, liveEntries.get(b - 1).uuid);
+            if (storedFits && liveFits) {
+                break;
+            }
+        }
+
+        List<Entry> page = new ArrayList<>(limit);
+        Node stored = a < storedCount ? storedAt(a, liveStoredIndexes) : null;
+        while (page.size() < limit && (stored != null || b < liveCount)) {
+            Entry nextLive = b < liveCount ? liveEntries.get(b) : null;
+            if (stored != null && (nextLive == null || before(stored.time, stored.uuid, nextLive.time, nextLive.uuid))) {
+                page.add(new Entry(stored.uuid, stored.time));
+                stored = nextStored(stored.next[0], live);
+            } else {
+                page.add(nextLive);
+                b++;
+            }
+        }
+        return page;
+    }
+
+    // The a-th stored entry, skipping entries that belong to live players
+    private Node storedAt(int a, int[] liveStoredIndexes) {
+        int index = a;
+        for (int liveIndex : liveStoredIndexes) {
+            if (liveIndex <= index) {
+                index++;
+            } else {
+                break;
+            }
+        }
+        return nodeAt(index);
+    }
+
+    private Node nextStored(Node node, Map<UUID, Long> live) {
+        while (node != null && live.containsKey(node.uuid)) {
+            node = node.next[0];
+        }
+        return node;
+    }
+
+    private void insert(UUID uuid, long time) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.next[i] != null && before(x.next[i].time, x.next[i].uuid, time, uuid)) {
+                rank[i] += x.width[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = head;
+                head.width[i] = nodes.size();
+            }
+            level = nodeLevel;
+        }
+
+        Node node = new Node(uuid, time, nodeLevel);
+        for (int i = 0; i < nodeLevel; i++) {
+            node.next[i] = update[i].next[i];
+            update[i].next[i] = node;
+            node.width[i] = update[i].width[i] - (rank[0] - rank[i]);
+            update[i].width[i] = (rank[0] - rank[i]) + 1;
+        }
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].width[i]++;
+        }
+        nodes.put(uuid, node);
+    }
+
+    private void unlink(Node node) {
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && x.next[i] != node && before(x.next[i].time, x.next[i].uuid, node.time, node.uuid)) {
+                x = x.next[i];
+            }
+            if (x.next[i] == node) {
+                x.width[i] += node.width[i] - 1;
+                x.next[i] = node.next[i];
+            } else {
+                x.width[i]--;
+            }
+        }
+        while (level > 1 && head.next[level - 1] == null) {
+            level--;
+        }
+        nodes.remove(node.uuid);
+    }
+
+    private static int randomLevel() {
+        int nodeLevel = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (nodeLevel < MAX_LEVEL && random.nextInt(4) == 0) {
+            nodeLevel++;
+        }
+        return nodeLevel;
+    }
+
+    private static boolean before(long time, UUID uuid, Node node) {
+        return before(time, uuid, node.time, node.uuid);
+    }
+
+    private static boolean before(Node node, long time, UUID uuid) {
+        return before(node.time, node.uuid, time, uuid);
+    }
+
+    private static boolean before(long time, UUID uuid, long otherTime, UUID otherUuid) {
+        if (time != otherTime) {
+            return time > otherTime;
+        }
+        return uuid.compareTo(otherUuid) < 0;
+    }
+}
@@ -0,0 +1,457 @@
+package com.example.dutyplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of open duty sessions, so they can be recovered after a crash.
+ * Records are buffered and fsynced in batches. Once the journal grows past a limit it is
+ * compacted into a snapshot of the sessions that are still open, which keeps recovery
+ * proportional to the number of open sessions rather than the server's uptime.
+ * An ended session stays in the journal, with its end time and the total it left, until both
+ * storage and the rollups have written it; a crash before then credits it again on recovery,
+ * skipping whatever was already written.
+ * A session is published before it is journaled, so another thread can end it first. Sessions
+ * are told apart by player and start time, and a start that arrives after its own end is
+ * ignored rather than recorded as a session that never ends.
+ */
+class SessionJournal {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte RECORD_START = 1;
+    private static final byte RECORD_CREDITED = 2; // credited, not yet written by storage and the rollups
+    private static final byte RECORD_CHECKPOINT = 3;
+    private static final byte RECORD_WRITTEN = 4;
+
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final Logger logger;
+    private final long syncIntervalMillis;
+    private final long checkpointIntervalMillis;
+    private final int compactAfterRecords;
+    private final ScheduledExecutorService executor;
+    private final DutyStorage storage;
+    private final WriteBehindPersister rollupPersister;
+
+    // Sessions the journal currently considers open, used for compaction
+    private final Map<UUID, RecoveredSession> openSessions = new LinkedHashMap<>();
+    // Ended sessions whose credit storage hasn't written yet, by player and start time
+    private final Map<EndedKey, RecoveredSession> endedSessions = new LinkedHashMap<>();
+    private final Set<EndedKey> endedBeforeStart = new HashSet<>(); // their recordStart hasn't arrived yet
+    private FileChannel channel;
+    private DataOutputStream out;
+    private int recordsSinceCompaction;
+    private boolean unsynced;
+    private boolean closed;
+
+    public SessionJournal(File dataFolder, DutyStorage storage, WriteBehindPersister rollupPersister, Logger logger,
+                          long syncIntervalMillis, long checkpointIntervalMillis, int compactAfterRecords) {
+        this.journalPath = new File(dataFolder, "sessions.journal").toPath();
+        this.snapshotPath = new File(dataFolder, "sessions.snapshot").toPath();
+        this.storage = storage;
+        this.rollupPersister = rollupPersister;
+        this.logger = logger;
+        this.syncIntervalMillis = Math.max(10L, syncIntervalMillis);
+        this.checkpointIntervalMillis = Math.max(1000L, checkpointIntervalMillis);
+        this.compactAfterRecords = Math.max(16, compactAfterRecords);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Reads the snapshot and replays the journal. Returns every session that was never ended, and
+    // every ended one whose time storage or the rollups may not have written (those have an end
+    // time), in the order they ended. Forgets them all; the caller credits or resumes each one
+    // again before open().
+    public synchronized List<RecoveredSession> recover() throws IOException {
+        openSessions.clear();
+        endedSessions.clear();
+
+        if (Files.exists(snapshotPath)) {
+            try (DataInputStream in = open(snapshotPath)) {
+                int version = in.readInt();
+                if (version != SNAPSHOT_VERSION) {
+                    throw new IOException("Unsupported session snapshot version " + version);
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    String dutyName = in.readUTF();
+                    long startTime = in.readLong();
+                    long lastSeen = in.readLong();
+                    openSessions.put(uuid, new RecoveredSession(uuid, dutyName, startTime, lastSeen));
+                }
+                int ended = in.readInt();
+                for (int i = 0; i < ended; i++) {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    String dutyName = in.readUTF();
+                    long startTime = in.readLong();
+                    long endTime = in.readLong();
+                    long newTotal = in.readLong();
+                    endedSessions.put(new EndedKey(uuid, startTime), new RecoveredSession(uuid, dutyName, startTime, endTime, endTime, newTotal));
+                }
+            }
+        }
+
+        if (Files.exists(journalPath)) {
+            try (DataInputStream in = open(journalPath)) {
+                while (true) {
+                    byte type;
+                    try {
+                        type = in.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (!replay(type, in)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<RecoveredSession> recovered = new ArrayList<>(endedSessions.values());
+        recovered.addAll(openSessions.values());
+        openSessions.clear();
+        endedSessions.clear();
+        return recovered;
+    }
+
+    // Applies one record. Returns false if the rest of the journal is unreadable.
+    private boolean replay(byte type, DataInputStream in) throws IOException {
+        try {
+            switch (type) {
+                case RECORD_START: {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    String dutyName = in.readUTF();
+                    long startTime = in.readLong();
+                    // A crash during compaction can replay records the snapshot already covers
+                    RecoveredSession existing = openSessions.get(uuid);
+                    long lastSeen = existing != null && existing.startTime == startTime ? existing.lastSeen : startTime;
+                    openSessions.put(uuid, new RecoveredSession(uuid, dutyName, startTime, lastSeen));
+                    return true;
+                }
+                case RECORD_CREDITED: {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    String dutyName = in.readUTF();
+                    long startTime = in.readLong();
+                    long endTime = in.readLong();
+                    long newTotal = in.readLong();
+                    RecoveredSession open = openSessions.get(uuid);
+                    if (open != null && open.startTime <= startTime) {
+                        openSessions.remove(uuid);
+                    }
+                    endedSessions.put(new EndedKey(uuid, startTime), new RecoveredSession(uuid, dutyName, startTime, endTime, endTime, newTotal));
+                    return true;
+                }
+                case RECORD_WRITTEN: {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    endedSessions.remove(new EndedKey(uuid, in.readLong()));
+                    return true;
+                }
+                case RECORD_CHECKPOINT: {
+                    long time = in.readLong();
+                    for (RecoveredSession session : openSessions.values()) {
+                        session.lastSeen = Math.max(session.lastSeen, time);
+                    }
+                    return true;
+                }
+                default:
+                    logger.warning("Unknown record in session journal, ignoring the rest of it.");
+                    return false;
+            }
+        } catch (EOFException e) {
+            // The server died half way through writing the last record
+            logger.warning("Session journal ends with a partial record, ignoring it.");
+            return false;
+        }
+    }
+
+    // Starts a fresh journal containing the given open sessions, and the sessions ended since
+    // recover() whose time storage hasn't written yet, and begins background syncing
+    public synchronized void open(Collection<RecoveredSession> sessions) throws IOException {
+        openSessions.clear();
+        for (RecoveredSession session : sessions) {
+            openSessions.put(session.uuid, session);
+        }
+        compact();
+
+        executor.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::checkpointQuietly, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void recordStart(UUID uuid, String dutyName, long startTime) {
+        if (endedBeforeStart.remove(new EndedKey(uuid, startTime))) {
+            return; // already ended and journaled as such
+        }
+        openSessions.put(uuid, new RecoveredSession(uuid, dutyName, startTime, startTime));
+        if (out == null) {
+            return; // never opened; compacted into the snapshot if it ever is
+        }
+        try {
+            out.writeByte(RECORD_START);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            out.writeUTF(dutyName);
+            out.writeLong(startTime);
+            appended();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write to session journal", e);
+        }
+    }
+
+    // Call after the session's time was reported to storage and the rollups; newTotal is the duty's
+    // total it left. The session is kept, ended at endTime, until both have written it. Also works
+    // before open(), for sessions credited during recovery.
+    public synchronized void recordEnd(UUID uuid, String dutyName, long startTime, long endTime, long newTotal) {
+        EndedKey key = new EndedKey(uuid, startTime);
+        RecoveredSession open = openSessions.get(uuid);
+        // A player has one session at a time, so an older open one was replaced by this one
+        if (open != null && open.startTime <= startTime) {
+            openSessions.remove(uuid);
+        }
+        if ((open == null || open.startTime != startTime) && out != null) {
+            endedBeforeStart.add(key);
+        }
+        endedSessions.put(key, new RecoveredSession(uuid, dutyName, startTime, endTime, endTime, newTotal));
+        if (out != null) {
+            try {
+                out.writeByte(RECORD_CREDITED);
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+                out.writeUTF(dutyName);
+                out.writeLong(startTime);
+                out.writeLong(endTime);
+                out.writeLong(newTotal);
+                appended();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not write to session journal", e);
+            }
+        }
+        CompletableFuture.allOf(storage.whenWritten(), rollupPersister.whenFlushed()).thenRun(() -> recordWritten(key));
+    }
+
+    private synchronized void recordWritten(EndedKey key) {
+        if (endedSessions.remove(key) == null || out == null || closed) {
+            return;
+        }
+        try {
+            out.writeByte(RECORD_WRITTEN);
+            out.writeLong(key.uuid.getMostSignificantBits());
+            out.writeLong(key.uuid.getLeastSignificantBits());
+            out.writeLong(key.startTime);
+            appended();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write to session journal", e);
+        }
+    }
+
+    // Flushes and compacts the journal. Any sessions still open, or ended but not yet written by
+    // storage, remain recoverable; close storage and the rollups first so ended sessions are written.
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            closed = true;
+            try {
+                compact();
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not close session journal", e);
+            }
+        }
+    }
+
+    private void appended() throws IOException {
+        unsynced = true;
+        if (++recordsSinceCompaction >= compactAfterRecords && !executor.isShutdown()) {
+            executor.execute(this::compactQuietly);
+        }
+    }
+
+    private synchronized void checkpoint() throws IOException {
+        if (openSessions.isEmpty() || out == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (RecoveredSession session : openSessions.values()) {
+            session.lastSeen = now;
+        }
+        out.writeByte(RECORD_CHECKPOINT);
+        out.writeLong(now);
+        appended();
+    }
+
+    private synchronized void sync() throws IOException {
+        if (!unsynced || out == null) {
+            return;
+        }
+        out.flush();
+        channel.force(false);
+        unsynced = false;
+    }
+
+    // Writes the open sessions to the snapshot file and starts an empty journal
+    private synchronized void compact() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(16 + (openSessions.size() + endedSessions.size()) * 64);
+        DataOutputStream snapshot = new DataOutputStream(buffer);
+        snapshot.writeInt(SNAPSHOT_VERSION);
+        snapshot.writeInt(openSessions.size());
+        for (RecoveredSession session : openSessions.values()) {
+            snapshot.writeLong(session.uuid.getMostSignificantBits());
+            snapshot.writeLong(session.uuid.getLeastSignificantBits());
+            snapshot.writeUTF(session.dutyName);
+            snapshot.writeLong(session.startTime);
+            snapshot.writeLong(session.lastSeen);
+        }
+        snapshot.writeInt(endedSessions.size());
+        for (RecoveredSession session : endedSessions.values()) {
+            snapshot.writeLong(session.uuid.getMostSignificantBits());
+            snapshot.writeLong(session.uuid.getLeastSignificantBits());
+            snapshot.writeUTF(session.dutyName);
+            snapshot.writeLong(session.startTime);
+            snapshot.writeLong(session.endTime);
+            snapshot.writeLong(session.newTotal);
+        }
+        snapshot.flush();
+
+        Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            tempChannel.write(ByteBuffer.wrap(buffer.toByteArray()));
+            tempChannel.force(true);
+        }
+        try {
+            Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // Only truncate the journal once the snapshot covering it is safely on disk
+        if (out != null) {
+            out.close();
+        }
+        channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        recordsSinceCompaction = 0;
+        unsynced = false;
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not sync session journal", e);
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not checkpoint session journal", e);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not compact session journal", e);
+        }
+    }
+
+    private static DataInputStream open(Path path) throws IOException {
+        InputStream in = Files.newInputStream(path);
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+
+    static class RecoveredSession {
+        final UUID uuid;
+        final String dutyName;
+        final long startTime;
+        final long endTime; // 0 while the session is open
+        final long newTotal; // the duty's total the credit left, -1 while open
+        long lastSeen;
+
+        RecoveredSession(UUID uuid, String dutyName, long startTime, long lastSeen) {
+            this(uuid, dutyName, startTime, 0, lastSeen, -1);
+        }
+
+        RecoveredSession(UUID uuid, String dutyName, long startTime, long endTime, long lastSeen, long newTotal) {
+            this.uuid = uuid;
+            this.dutyName = dutyName;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.lastSeen = lastSeen;
+            this.newTotal = newTotal;
+        }
+
+        boolean isEnded() {
+            return endTime != 0;
+        }
+    }
+
+    private static class EndedKey {
+        final UUID uuid;
+        final long startTime;
+
+        EndedKey(UUID uuid, long startTime) {
+            this.uuid = uuid;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof EndedKey)) {
+                return false;
+            }
+            EndedKey other = (EndedKey) o;
+            return uuid.equals(other.uuid) && startTime == other.startTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return uuid.hashCode() * 31 + Long.hashCode(startTime);
+        }
+    }
+}
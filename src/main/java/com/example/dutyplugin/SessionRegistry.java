@@ -0,0 +1,91 @@
+package com.example.dutyplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The players currently on duty. Starting and ending a session are single atomic
+ * operations, so two /duty commands racing for the same player (or a command racing
+ * shutdown) can never both start or both end the same session.
+ */
+class SessionRegistry {
+
+    private final ConcurrentHashMap<UUID, DutySession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong(); // bumped whenever a session starts or ends
+
+    // Returns null if the session was started, or the session the player is already in
+    public DutySession tryStart(UUID uuid, DutySession session) {
+        DutySession existing = sessions.putIfAbsent(uuid, session);
+        if (existing == null) {
+            version.incrementAndGet();
+        }
+        return existing;
+    }
+
+    // Returns the ended session, or null if the player wasn't on duty
+    public DutySession end(UUID uuid) {
+        DutySession ended = sessions.remove(uuid);
+        if (ended != null) {
+            version.incrementAndGet();
+        }
+        return ended;
+    }
+
+    // Ends the session only if it is still the given one; false if it already ended
+    public boolean end(UUID uuid, DutySession session) {
+        boolean ended = sessions.remove(uuid, session);
+        if (ended) {
+            version.incrementAndGet();
+        }
+        return ended;
+    }
+
+    // Swaps in a new session only if the given one is still open; false if it ended meanwhile
+    public boolean replace(UUID uuid, DutySession session, DutySession replacement) {
+        boolean replaced = sessions.replace(uuid, session, replacement);
+        if (replaced) {
+            version.incrementAndGet();
+        }
+        return replaced;
+    }
+
+    public DutySession get(UUID uuid) {
+        return sessions.get(uuid);
+    }
+
+    public boolean isOnDuty(UUID uuid) {
+        return sessions.containsKey(uuid);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    // A weakly consistent view for iterating while other threads start and end sessions
+    public Set<Map.Entry<UUID, DutySession>> entries() {
+        return Collections.unmodifiableSet(sessions.entrySet());
+    }
+
+    // Ends every session, returning what was ended. Used on shutdown.
+    public List<Map.Entry<UUID, DutySession>> endAll() {
+        List<Map.Entry<UUID, DutySession>> ended = new ArrayList<>(sessions.size());
+        for (UUID uuid : sessions.keySet()) {
+            DutySession session = sessions.remove(uuid);
+            if (session != null) {
+                ended.add(Map.entry(uuid, session));
+            }
+        }
+        version.incrementAndGet();
+        return ended;
+    }
+}
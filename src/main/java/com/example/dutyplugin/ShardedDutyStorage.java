@@ -0,0 +1,576 @@
+package com.example.dutyplugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Duty totals sharded into one small file per player under players/, so startup time and
+ * memory follow who is online and on duty rather than everyone who has ever been.
+ * DutyTotals keeps the most recently used players resident and loads the rest from here
+ * when they are asked for; changed players are written by one background thread, including
+ * those evicted before their turn came. The top of each duty's ranking is kept in
+ * leaderboard.dat, the only file read on enable, so /dutytimes never opens a shard.
+ * Resetting a duty for everyone only records a reset generation: shards written before it
+ * read as if that duty were zero until they are next rewritten. Keeps no session history.
+ */
+class ShardedDutyStorage implements DutyStorage, DutyTotals.Backing {
+
+    private static final int SUMMARY_VERSION = 1;
+
+    private final File playersFolder;
+    private final File summaryFile;
+    private final Logger logger;
+    private final long flushIntervalMillis;
+    private final int maxPendingWrites;
+    private final int maxResident;
+    private final int leaderboardSize;
+    private final LatencyHistogram saveTimer;
+
+    // Guarded by this. Never call into DutyTotals while holding it; DutyTotals calls in with its own lock held.
+    private final Map<UUID, Shard> pending = new HashMap<>(); // staged but not yet written
+    private final Map<String, Long> dutyResetGenerations = new HashMap<>();
+    private long generation; // stamped on every staged shard
+    private long allResetGeneration;
+    private long latestResetGeneration;
+    private boolean resetsChanged;
+
+    private final AtomicInteger pendingChanges = new AtomicInteger();
+    private final FlushWaiters waiters = new FlushWaiters();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong shardsWritten = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private volatile long summaryVersion = -1; // totals version leaderboard.dat was last written at
+
+    private DutyTotals totals;
+    private ScheduledExecutorService writer;
+
+    public ShardedDutyStorage(File dataFolder, Logger logger, long flushIntervalMillis, int maxPendingWrites,
+                              int maxResident, int leaderboardSize, LatencyHistogram saveTimer) {
+        this.playersFolder = new File(dataFolder, "players");
+        this.summaryFile = new File(dataFolder, "leaderboard.dat");
+        this.logger = logger;
+        this.flushIntervalMillis = Math.max(100L, flushIntervalMillis);
+        this.maxPendingWrites = Math.max(1, maxPendingWrites);
+        this.maxResident = Math.max(1, maxResident);
+        this.leaderboardSize = Math.max(1, leaderboardSize);
+        this.saveTimer = saveTimer;
+    }
+
+    // Nothing stored yet, so an old dutydata.yml can be imported
+    public boolean isEmpty() {
+        String[] buckets = playersFolder.list();
+        return !summaryFile.exists() && (buckets == null || buckets.length == 0);
+    }
+
+    @Override
+    public void load(DutyTotals totals) throws IOException {
+        this.totals = totals;
+        Files.createDirectories(playersFolder.toPath());
+        boolean rebuild = false;
+        if (summaryFile.exists()) {
+            try {
+                readSummary();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read " + summaryFile.getName() + ", rebuilding it from the player files", e);
+                rebuild = true;
+            }
+        } else {
+            rebuild = !isEmpty();
+        }
+        totals.useBacking(this, maxResident, leaderboardSize);
+        summaryVersion = totals.getVersion();
+
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Shard-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        if (rebuild) {
+            writer.execute(this::rebuildSummary);
+        }
+    }
+
+    @Override
+    public long[] load(UUID uuid) {
+        try {
+            return loadShard(uuid);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long[] loadShard(UUID uuid) throws IOException {
+        Shard shard;
+        synchronized (this) {
+            shard = pending.get(uuid);
+        }
+        if (shard == null) {
+            shard = readShard(uuid);
+        }
+        return shard != null ? current(shard) : null;
+    }
+
+    @Override
+    public synchronized void stage(UUID uuid, long[] times) {
+        pending.put(uuid, new Shard(times, generation));
+    }
+
+    @Override
+    public void resetForAll(int ordinal) {
+        String dutyName = ordinal >= 0 ? totals.nameOf(ordinal) : null;
+        synchronized (this) {
+            generation++;
+            if (dutyName == null) {
+                allResetGeneration = generation;
+            } else {
+                dutyResetGenerations.put(dutyName, generation);
+            }
+            latestResetGeneration = generation;
+            resetsChanged = true;
+        }
+    }
+
+    @Override
+    public void sessionEnded(UUID uuid, String dutyName, long startTime, long endTime, long newTotal) {
+        changed(1);
+    }
+
+    @Override
+    public void totalReset(UUID uuid, String dutyName) {
+        changed(1);
+    }
+
+    @Override
+    public void playerReset(UUID uuid) {
+        changed(1);
+    }
+
+    @Override
+    public void dutyResetForAll(String dutyName) {
+        changed(1);
+    }
+
+    @Override
+    public void allReset() {
+        changed(1);
+    }
+
+    @Override
+    public void totalsSet(List<UUID> uuids, List<String> dutyNames, List<Long> totals) {
+        changed(uuids.size());
+    }
+
+    // DutyTotals already knows which players changed; this only decides when to write them
+    private void changed(int count) {
+        int pendingCount = pendingChanges.addAndGet(count);
+        if (pendingCount >= maxPendingWrites && pendingCount - count < maxPendingWrites) {
+            writer.execute(this::flushQuietly);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> queryTotal(UUID uuid, String dutyName) {
+        return CompletableFuture.supplyAsync(() -> totals.storedTotal(uuid, totals.ordinalOf(dutyName)));
+    }
+
+    @Override
+    public CompletableFuture<List<SessionRecord>> querySessions(UUID uuid, String dutyName, long from, long to) {
+        return CompletableFuture.completedFuture(new ArrayList<>());
+    }
+
+    @Override
+    public boolean walkTotals(TotalVisitor visitor) throws IOException {
+        flushNow(); // so every player with time has a file
+        walkShards(visitor);
+        return true;
+    }
+
+    // Every player file, using the resident copy where there is one
+    private void walkShards(TotalVisitor visitor) throws IOException {
+        try (Stream<Path> files = Files.walk(playersFolder.toPath(), 2)) {
+            Iterator<Path> iterator = files.iterator();
+            while (iterator.hasNext()) {
+                String fileName = iterator.next().getFileName().toString();
+                if (!fileName.endsWith(".yml")) {
+                    continue;
+                }
+                UUID uuid;
+                try {
+                    uuid = UUID.fromString(fileName.substring(0, fileName.length() - 4));
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                long[] times = totals.residentTimes(uuid);
+                if (times == null) {
+                    times = loadShard(uuid);
+                }
+                if (times == null) {
+                    continue;
+                }
+                for (int ordinal = 0; ordinal < times.length; ordinal++) {
+                    if (times[ordinal] != 0) {
+                        visitor.visit(uuid, totals.nameOf(ordinal), times[ordinal]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getStoredBytes() throws IOException {
+        long bytes = summaryFile.length();
+        try (Stream<Path> files = Files.walk(playersFolder.toPath(), 2)) {
+            Iterator<Path> iterator = files.iterator();
+            while (iterator.hasNext()) {
+                File file = iterator.next().toFile();
+                if (file.isFile()) {
+                    bytes += file.length();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // Recreates a missing or unreadable leaderboard.dat, on the writer thread
+    private void rebuildSummary() {
+        long start = System.nanoTime();
+        try {
+            walkShards((uuid, dutyName, total) -> totals.rankStored(uuid, totals.register(dutyName), total));
+            writeSummary();
+            logger.info("Rebuilt " + summaryFile.getName() + " in " + (System.nanoTime() - start) / 1_000_000 + "ms.");
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not rebuild " + summaryFile.getName(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> whenWritten() {
+        return waiters.add();
+    }
+
+    @Override
+    public int getPendingChanges() {
+        synchronized (this) {
+            return pendingChanges.get() + pending.size();
+        }
+    }
+
+    @Override
+    public List<String> describeStats() {
+        long count = flushes.get();
+        double average = count == 0 ? 0 : totalFlushNanos.get() / (double) count / 1_000_000.0;
+        List<String> lines = new ArrayList<>();
+        lines.add("Storage: sharded, " + totals.playerCount() + "/" + maxResident + " players in memory (" +
+                  totals.getLoads() + " loaded, " + totals.getEvictions() + " evicted)");
+        lines.add("Writes: " + count + " flushes, " + shardsWritten.get() + " player files written, " +
+                  getPendingChanges() + " pending; avg " + String.format("%.1f", average) + "ms, max " +
+                  TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get()) + "ms");
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not save duty data to " + playersFolder.getName() + " on shutdown", e);
+        }
+    }
+
+    // Writes everything staged so far and waits for it. Not for the writer thread itself.
+    void flushNow() throws IOException {
+        try {
+            writer.submit(() -> {
+                flush();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing player files");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write player files", e.getCause());
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not save duty data to " + playersFolder.getName(), e);
+        }
+    }
+
+    private void flush() throws IOException {
+        List<CompletableFuture<Void>> flushed = waiters.take();
+        try {
+            writeStaged();
+        } catch (IOException | RuntimeException e) {
+            waiters.failed(flushed);
+            throw e;
+        }
+        FlushWaiters.written(flushed);
+    }
+
+    private void writeStaged() throws IOException {
+        long start = System.nanoTime();
+        pendingChanges.set(0);
+        totals.stageDirty();
+
+        // The summary goes first, so reset generations are on disk before any shard stamped after them
+        boolean summaryStale;
+        Map<UUID, Shard> batch;
+        synchronized (this) {
+            summaryStale = resetsChanged;
+            batch = new HashMap<>(pending);
+        }
+        summaryStale |= totals.getVersion() != summaryVersion;
+        if (!summaryStale && batch.isEmpty()) {
+            return;
+        }
+        if (summaryStale) {
+            writeSummary();
+        }
+
+        List<String> names = dutyNames();
+        for (Map.Entry<UUID, Shard> entry : batch.entrySet()) {
+            writeShard(entry.getKey(), entry.getValue(), names);
+            synchronized (this) {
+                pending.remove(entry.getKey(), entry.getValue()); // unless it was staged again meanwhile
+            }
+        }
+        shardsWritten.addAndGet(batch.size());
+
+        long elapsed = System.nanoTime() - start;
+        flushes.incrementAndGet();
+        totalFlushNanos.addAndGet(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        saveTimer.record(elapsed);
+    }
+
+    private File shardFile(UUID uuid) {
+        String id = uuid.toString();
+        return new File(new File(playersFolder, id.substring(0, 2)), id + ".yml");
+    }
+
+    // null if the player has no file. Not loadConfiguration, which reads a broken file as empty;
+    // the player's next change would then overwrite it.
+    private Shard readShard(UUID uuid) throws IOException {
+        File file = shardFile(uuid);
+        if (!file.isFile()) {
+            return null;
+        }
+        YamlConfiguration yaml = new YamlConfiguration();
+        try {
+            yaml.load(file);
+        } catch (InvalidConfigurationException e) {
+            throw new IOException(file.getName() + " is not valid YAML", e);
+        }
+        ConfigurationSection duties = yaml.getConfigurationSection("duties");
+        if (duties == null) {
+            return null;
+        }
+        long[] times = new long[totals.dutyCount()];
+        for (String dutyName : duties.getKeys(false)) {
+            int ordinal = totals.register(dutyName);
+            if (ordinal >= times.length) {
+                times = Arrays.copyOf(times, ordinal + 1);
+            }
+            times[ordinal] = duties.getLong(dutyName, 0);
+        }
+        return new Shard(times, yaml.getLong("generation", 0));
+    }
+
+    private void writeShard(UUID uuid, Shard shard, List<String> names) throws IOException {
+        Path path = shardFile(uuid).toPath();
+        if (shard.times == null) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("generation", shard.generation);
+        for (int ordinal = 0; ordinal < shard.times.length && ordinal < names.size(); ordinal++) {
+            if (shard.times[ordinal] != 0) {
+                yaml.set("duties." + names.get(ordinal), shard.times[ordinal]);
+            }
+        }
+        Files.createDirectories(path.getParent());
+        writeAtomically(path, yaml.saveToString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A copy of the shard's times with anything reset since it was staged zeroed; null if nothing is left
+    private long[] current(Shard shard) {
+        if (shard.times == null) {
+            return null;
+        }
+        long[] times = shard.times.clone();
+        long allReset;
+        Map<String, Long> dutyResets = null;
+        synchronized (this) {
+            allReset = allResetGeneration;
+            if (shard.generation < latestResetGeneration) {
+                dutyResets = new HashMap<>(dutyResetGenerations);
+            }
+        }
+        if (shard.generation < allReset) {
+            return null;
+        }
+        boolean any = false;
+        for (int ordinal = 0; ordinal < times.length; ordinal++) {
+            if (times[ordinal] == 0) {
+                continue;
+            }
+            if (dutyResets != null && shard.generation < dutyResets.getOrDefault(totals.nameOf(ordinal), 0L)) {
+                times[ordinal] = 0;
+            } else {
+                any = true;
+            }
+        }
+        return any ? times : null;
+    }
+
+    private List<String> dutyNames() {
+        List<String> names = new ArrayList<>();
+        for (int ordinal = 0; ordinal < totals.dutyCount(); ordinal++) {
+            names.add(totals.nameOf(ordinal));
+        }
+        return names;
+    }
+
+    private void readSummary() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(summaryFile)))) {
+            int version = in.readInt();
+            if (version != SUMMARY_VERSION) {
+                throw new IOException("Unsupported " + summaryFile.getName() + " version " + version);
+            }
+            synchronized (this) {
+                generation = in.readLong();
+                allResetGeneration = in.readLong();
+                latestResetGeneration = allResetGeneration;
+                int resets = in.readInt();
+                for (int i = 0; i < resets; i++) {
+                    String dutyName = in.readUTF();
+                    long resetGeneration = in.readLong();
+                    dutyResetGenerations.put(dutyName, resetGeneration);
+                    latestResetGeneration = Math.max(latestResetGeneration, resetGeneration);
+                }
+            }
+            int duties = in.readInt();
+            for (int d = 0; d < duties; d++) {
+                int ordinal = totals.register(in.readUTF());
+                int entries = in.readInt();
+                for (int i = 0; i < entries; i++) {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    totals.rankStored(uuid, ordinal, in.readLong());
+                }
+            }
+        }
+    }
+
+    // Reset generations, then the top of each duty's ranking
+    private void writeSummary() throws IOException {
+        long version = totals.getVersion();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SUMMARY_VERSION);
+        synchronized (this) {
+            out.writeLong(generation);
+            out.writeLong(allResetGeneration);
+            out.writeInt(dutyResetGenerations.size());
+            for (Map.Entry<String, Long> entry : dutyResetGenerations.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            resetsChanged = false;
+        }
+        List<String> names = dutyNames();
+        out.writeInt(names.size());
+        for (int ordinal = 0; ordinal < names.size(); ordinal++) {
+            List<RankedLeaderboard.Entry> ranking = totals.after(ordinal, null, leaderboardSize);
+            out.writeUTF(names.get(ordinal));
+            out.writeInt(ranking.size());
+            for (RankedLeaderboard.Entry entry : ranking) {
+                out.writeLong(entry.getUuid().getMostSignificantBits());
+                out.writeLong(entry.getUuid().getLeastSignificantBits());
+                out.writeLong(entry.getTime());
+            }
+        }
+        out.flush();
+        writeAtomically(summaryFile.toPath(), bytes.toByteArray());
+        summaryVersion = version;
+    }
+
+    private static void writeAtomically(Path target, byte[] data) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        // On disk before the move, so a crash can't leave an empty file in place of the data
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static class Shard {
+        final long[] times; // by ordinal; null once the player has no time left
+        final long generation;
+
+        Shard(long[] times, long generation) {
+            this.times = times;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package com.example.dutyplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embedded SQLite storage, using the driver bundled with the server.
+ * Changes are queued and written by one writer thread in a single transaction per flush,
+ * with consecutive changes of the same kind sent as one JDBC batch. Every credited session
+ * is also kept in duty_sessions, indexed by (uuid, duty, start_ms). Queries run on a small
+ * pool of read connections.
+ */
+class SqliteDutyStorage implements DutyStorage {
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS duty_totals (" +
+            "uuid TEXT NOT NULL, duty TEXT NOT NULL, total_ms INTEGER NOT NULL, " +
+            "PRIMARY KEY (uuid, duty))",
+        "CREATE TABLE IF NOT EXISTS duty_sessions (" +
+            "id INTEGER PRIMARY KEY AUTOINCREMENT, uuid TEXT NOT NULL, duty TEXT NOT NULL, " +
+            "start_ms INTEGER NOT NULL, end_ms INTEGER NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS idx_duty_sessions_player ON duty_sessions (uuid, duty, start_ms)"
+    };
+
+    private static final String UPSERT_TOTAL =
+        "INSERT INTO duty_totals (uuid, duty, total_ms) VALUES (?, ?, ?) " +
+        "ON CONFLICT (uuid, duty) DO UPDATE SET total_ms = excluded.total_ms";
+    private static final String INSERT_SESSION =
+        "INSERT INTO duty_sessions (uuid, duty, start_ms, end_ms) VALUES (?, ?, ?, ?)";
+    private static final String DELETE_TOTAL = "DELETE FROM duty_totals WHERE uuid = ? AND duty = ?";
+    private static final String DELETE_PLAYER = "DELETE FROM duty_totals WHERE uuid = ?";
+    private static final String DELETE_DUTY = "DELETE FROM duty_totals WHERE duty = ?";
+    private static final String DELETE_ALL = "DELETE FROM duty_totals";
+
+    private enum ChangeType { SESSION, SET_TOTAL, RESET_DUTY, RESET_PLAYER, RESET_DUTY_ALL, RESET_ALL }
+
+    private final File databaseFile;
+    private final String jdbcUrl;
+    private final Logger logger;
+    private final long flushIntervalMillis;
+    private final int maxPendingWrites;
+    private final int poolSize;
+    private final LatencyHistogram saveTimer;
+
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingChanges = new AtomicInteger();
+    private final FlushWaiters waiters = new FlushWaiters();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    private ScheduledExecutorService writer;
+    private ExecutorService readers;
+    private BlockingQueue<Connection> readPool;
+    private Connection writeConnection;
+
+    public SqliteDutyStorage(File databaseFile, Logger logger, long flushIntervalMillis, int maxPendingWrites, int poolSize,
+                             LatencyHistogram saveTimer) {
+        this.databaseFile = databaseFile;
+        this.jdbcUrl = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
+        this.logger = logger;
+        this.flushIntervalMillis = Math.max(100L, flushIntervalMillis);
+        this.maxPendingWrites = Math.max(1, maxPendingWrites);
+        this.poolSize = Math.max(1, poolSize);
+        this.saveTimer = saveTimer;
+    }
+
+    public File getDatabaseFile() {
+        return databaseFile;
+    }
+
+    @Override
+    public void load(DutyTotals totals) throws IOException {
+        try {
+            writeConnection = openConnection();
+            try (Statement statement = writeConnection.createStatement()) {
+                for (String sql : SCHEMA) {
+                    statement.execute(sql);
+                }
+            }
+
+            readPool = new ArrayBlockingQueue<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                readPool.add(openConnection());
+            }
+
+            try (Statement statement = writeConnection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT uuid, duty, total_ms FROM duty_totals")) {
+                while (rs.next()) {
+                    try {
+                        UUID uuid = UUID.fromString(rs.getString(1));
+                        totals.set(uuid, totals.register(rs.getString(2)), rs.getLong(3));
+                    } catch (IllegalArgumentException ignored) {}
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not open " + databaseFile.getName(), e);
+        }
+
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DutyPlugin-SQL-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        readers = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread thread = new Thread(r, "DutyPlugin-SQL-Reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private Connection openConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(jdbcUrl);
+        try (Statement statement = connection.createStatement()) {
+            // WAL lets the read pool query while the writer is in a transaction
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.execute("PRAGMA busy_timeout=5000");
+        }
+        return connection;
+    }
+
+    @Override
+    public void sessionEnded(UUID uuid, String dutyName, long startTime, long endTime, long newTotal) {
+        queue(new Change(ChangeType.SESSION, uuid, dutyName, startTime, endTime, newTotal));
+    }
+
+    @Override
+    public void totalReset(UUID uuid, String dutyName) {
+        queue(new Change(ChangeType.RESET_DUTY, uuid, dutyName, 0, 0, 0));
+    }
+
+    @Override
+    public void playerReset(UUID uuid) {
+        queue(new Change(ChangeType.RESET_PLAYER, uuid, null, 0, 0, 0));
+    }
+
+    @Override
+    public void dutyResetForAll(String dutyName) {
+        queue(new Change(ChangeType.RESET_DUTY_ALL, null, dutyName, 0, 0, 0));
+    }
+
+    @Override
+    public void allReset() {
+        queue(new Change(ChangeType.RESET_ALL, null, null, 0, 0, 0));
+    }
+
+    @Override
+    public void totalsSet(List<UUID> uuids, List<String> dutyNames, List<Long> totals) {
+        for (int i = 0; i < uuids.size(); i++) {
+            changes.add(new Change(ChangeType.SET_TOTAL, uuids.get(i), dutyNames.get(i), 0, 0, totals.get(i)));
+        }
+        int pending = pendingChanges.addAndGet(uuids.size());
+        if (pending >= maxPendingWrites && (pending - uuids.size()) / maxPendingWrites < pending / maxPendingWrites) {
+            writer.execute(this::flushQuietly);
+        }
+    }
+
+    private void queue(Change change) {
+        changes.add(change);
+        // Every time the count crosses a multiple of the limit, so changes put back by a failed
+        // flush still trigger another one once enough new changes are waiting
+        int pending = pendingChanges.incrementAndGet();
+        if (pending >= maxPendingWrites && (pending - 1) / maxPendingWrites < pending / maxPendingWrites) {
+            writer.execute(this::flushQuietly);
+        }
+    }
+
+    // Used by the migrator to write many totals in one transaction
+    void importTotals(List<UUID> uuids, List<String> dutyNames, List<Long> times) throws SQLException {
+        writeConnection.setAutoCommit(false);
+        try (PreparedStatement upsert = writeConnection.prepareStatement(UPSERT_TOTAL)) {
+            for (int i = 0; i < uuids.size(); i++) {
+                upsert.setString(1, uuids.get(i).toString());
+                upsert.setString(2, dutyNames.get(i));
+                upsert.setLong(3, times.get(i));
+                upsert.addBatch();
+                if (i % 1000 == 999) {
+                    upsert.executeBatch();
+                }
+            }
+            upsert.executeBatch();
+            writeConnection.commit();
+        } catch (SQLException e) {
+            writeConnection.rollback();
+            throw e;
+        } finally {
+            writeConnection.setAutoCommit(true);
+        }
+    }
+
+    private void flush() throws SQLException {
+        List<CompletableFuture<Void>> flushed;
+        synchronized (this) {
+            flushed = waiters.take();
+            try {
+                writeQueued();
+            } catch (SQLException | RuntimeException e) {
+                waiters.failed(flushed);
+                throw e;
+            }
+        }
+        FlushWaiters.written(flushed);
+    }
+
+    private void writeQueued() throws SQLException {
+        List<Change> batch = new ArrayList<>();
+        Change change;
+        while ((change = changes.poll()) != null) {
+            batch.add(change);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        pendingChanges.addAndGet(-batch.size());
+
+        long start = System.nanoTime();
+        writeConnection.setAutoCommit(false);
+        try (PreparedStatement upsert = writeConnection.prepareStatement(UPSERT_TOTAL);
+             PreparedStatement insertSession = writeConnection.prepareStatement(INSERT_SESSION);
+             PreparedStatement deleteTotal = writeConnection.prepareStatement(DELETE_TOTAL);
+             PreparedStatement deletePlayer = writeConnection.prepareStatement(DELETE_PLAYER);
+             PreparedStatement deleteDuty = writeConnection.prepareStatement(DELETE_DUTY);
+             PreparedStatement deleteAll = writeConnection.prepareStatement(DELETE_ALL)) {
+            Statements statements = new Statements(upsert, insertSession, deleteTotal, deletePlayer, deleteDuty, deleteAll);
+
+            // Changes must apply in order, so a batch is sent whenever the kind of change switches
+            ChangeType batchType = null;
+            for (Change next : batch) {
+                if (batchType != null && batchType != next.type) {
+                    executeBatch(batchType, statements);
+                }
+                batchType = next.type;
+
+                String uuid = next.uuid != null ? next.uuid.toString() : null;
+                switch (next.type) {
+                    case SESSION:
+                        upsert.setString(1, uuid);
+                        upsert.setString(2, next.dutyName);
+                        upsert.setLong(3, next.total);
+                        upsert.addBatch();
+                        insertSession.setString(1, uuid);
+                        insertSession.setString(2, next.dutyName);
+                        insertSession.setLong(3, next.startTime);
+                        insertSession.setLong(4, next.endTime);
+                        insertSession.addBatch();
+                        break;
+                    case SET_TOTAL:
+                        upsert.setString(1, uuid);
+                        upsert.setString(2, next.dutyName);
+                        upsert.setLong(3, next.total);
+                        upsert.addBatch();
+                        break;
+                    case RESET_DUTY:
+                        deleteTotal.setString(1, uuid);
+                        deleteTotal.setString(2, next.dutyName);
+                        deleteTotal.addBatch();
+                        break;
+                    case RESET_PLAYER:
+                        deletePlayer.setString(1, uuid);
+                        deletePlayer.addBatch();
+                        break;
+                    case RESET_DUTY_ALL:
+                        deleteDuty.setString(1, next.dutyName);
+                        deleteDuty.addBatch();
+                        break;
+                    case RESET_ALL:
+                        deleteAll.addBatch();
+                        break;
+                }
+            }
+            executeBatch(batchType, statements);
+            writeConnection.commit();
+        } catch (SQLException e) {
+            writeConnection.rollback();
+            // Put the changes back in front of anything queued since, so nothing is lost
+            List<Change> retry = new ArrayList<>(batch);
+            while ((change = changes.poll()) != null) {
+                retry.add(change);
+            }
+            changes.addAll(retry);
+            pendingChanges.addAndGet(batch.size());
+            throw e;
+        } finally {
+            writeConnection.setAutoCommit(true);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        saveTimer.record(elapsed);
+        flushes.incrementAndGet();
+        rowsWritten.addAndGet(batch.size());
+        totalFlushNanos.addAndGet(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    private static void executeBatch(ChangeType type, Statements statements) throws SQLException {
+        switch (type) {
+            case SESSION:
+                statements.upsert.executeBatch();
+                statements.insertSession.executeBatch();
+                break;
+            case SET_TOTAL:
+                statements.upsert.executeBatch();
+                break;
+            case RESET_DUTY:
+                statements.deleteTotal.executeBatch();
+                break;
+            case RESET_PLAYER:
+                statements.deletePlayer.executeBatch();
+                break;
+            case RESET_DUTY_ALL:
+                statements.deleteDuty.executeBatch();
+                break;
+            case RESET_ALL:
+                statements.deleteAll.executeBatch();
+                break;
+        }
+    }
+
+    // The prepared statements of one flush
+    private static class Statements {
+        final PreparedStatement upsert;
+        final PreparedStatement insertSession;
+        final PreparedStatement deleteTotal;
+        final PreparedStatement deletePlayer;
+        final PreparedStatement deleteDuty;
+        final PreparedStatement deleteAll;
+
+        Statements(PreparedStatement upsert, PreparedStatement insertSession, PreparedStatement deleteTotal,
+                   PreparedStatement deletePlayer, PreparedStatement deleteDuty, PreparedStatement deleteAll) {
+            this.upsert = upsert;
+            this.insertSession = insertSession;
+            this.deleteTotal = deleteTotal;
+            this.deletePlayer = deletePlayer;
+            this.deleteDuty = deleteDuty;
+            this.deleteAll = deleteAll;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Could not write duty data to " + databaseFile.getName(), e);
+        }
+    }
+
+    // Runs on the writer after anything still queued, so a zero written meanwhile is caught too
+    @Override
+    public int pruneZeroTotals() throws IOException {
+        try {
+            return writer.submit(() -> {
+                flush();
+                try (Statement statement = writeConnection.createStatement()) {
+                    return statement.executeUpdate("DELETE FROM duty_totals WHERE total_ms = 0");
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pruning " + databaseFile.getName());
+        } catch (ExecutionException e) {
+            throw new IOException("Could not prune " + databaseFile.getName(), e.getCause());
+        }
+    }
+
+    // Pages in use; deleted rows leave free pages that later writes reuse, so they don't count
+    @Override
+    public long getStoredBytes() throws IOException {
+        try {
+            return read(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    long pages = pragma(statement, "page_count") - pragma(statement, "freelist_count");
+                    return pages * pragma(statement, "page_size");
+                }
+            }).join();
+        } catch (CompletionException e) {
+            throw new IOException("Could not read the size of " + databaseFile.getName(), e.getCause());
+        }
+    }
+
+    private static long pragma(Statement statement, String name) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("PRAGMA " + name)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> queryTotal(UUID uuid, String dutyName) {
+        return read(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT total_ms FROM duty_totals WHERE uuid = ? AND duty = ?")) {
+                statement.setString(1, uuid.toString());
+                statement.setString(2, dutyName);
+                try (ResultSet rs = statement.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<SessionRecord>> querySessions(UUID uuid, String dutyName, long from, long to) {
+        return read(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT start_ms, end_ms FROM duty_sessions " +
+                    "WHERE uuid = ? AND duty = ? AND start_ms >= ? AND start_ms < ? ORDER BY start_ms")) {
+                statement.setString(1, uuid.toString());
+                statement.setString(2, dutyName);
+                statement.setLong(3, from);
+                statement.setLong(4, to);
+                List<SessionRecord> sessions = new ArrayList<>();
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        sessions.add(new SessionRecord(uuid, dutyName, rs.getLong(1), rs.getLong(2)));
+                    }
+                }
+                return sessions;
+            }
+        });
+    }
+
+    private interface Query<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private <T> CompletableFuture<T> read(Query<T> query) {
+        return CompletableFuture.supplyAsync(() -> {
+            Connection connection;
+            try {
+                connection = readPool.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return query.run(connection);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            } finally {
+                readPool.add(connection);
+            }
+        }, readers);
+    }
+
+    @Override
+    public CompletableFuture<Void> whenWritten() {
+        return waiters.add();
+    }
+
+    @Override
+    public int getPendingChanges() {
+        return pendingChanges.get();
+    }
+
+    @Override
+    public List<String> describeStats() {
+        long count = flushes.get();
+        double average = count == 0 ? 0 : totalFlushNanos.get() / (double) count / 1_000_000.0;
+        List<String> lines = new ArrayList<>();
+        lines.add("Storage: sqlite, " + count + " transactions, " + rowsWritten.get() +
+                  " changes written, " + pendingChanges.get() + " pending");
+        lines.add("Write latency: avg " + String.format("%.1f", average) + "ms, max " +
+                  TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get()) + "ms");
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (readers != null) {
+            readers.shutdown();
+        }
+
+        try {
+            if (writeConnection != null) {
+                flush();
+                writeConnection.close();
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Could not save duty data to " + databaseFile.getName() + " on shutdown", e);
+        }
+        if (readPool != null) {
+            for (Connection connection : readPool) {
+                try {
+                    connection.close();
+                } catch (SQLException ignored) {}
+            }
+        }
+    }
+
+    private static class Change {
+        final ChangeType type;
+        final UUID uuid;
+        final String dutyName;
+        final long startTime;
+        final long endTime;
+        final long total;
+
+        Change(ChangeType type, UUID uuid, String dutyName, long startTime, long endTime, long total) {
+            this.type = type;
+            this.uuid = uuid;
+            this.dutyName = dutyName;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.total = total;
+        }
+    }
+}
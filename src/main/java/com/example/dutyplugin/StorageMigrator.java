@@ -0,0 +1,103 @@
+package com.example.dutyplugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * One-shot conversion of an existing dutydata.yml into the SQLite database or player files.
+ * The YAML file is renamed to dutydata.yml.migrated afterwards so it is only imported once.
+ */
+class StorageMigrator {
+
+    private StorageMigrator() {
+    }
+
+    // Returns the number of totals imported, or 0 if there was nothing to migrate
+    public static int migrateYamlToSqlite(File yamlFile, SqliteDutyStorage storage, DutyTotals totals, Logger logger)
+            throws IOException {
+        if (!yamlFile.exists() || yamlFile.length() == 0 || totals.playerCount() > 0) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        ConfigurationSection playersSection = YamlConfiguration.loadConfiguration(yamlFile).getConfigurationSection("players");
+        if (playersSection == null) {
+            return 0;
+        }
+
+        List<UUID> uuids = new ArrayList<>();
+        List<String> dutyNames = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        for (String uuidStr : playersSection.getKeys(false)) {
+            UUID uuid;
+            try {
+                uuid = UUID.fromString(uuidStr);
+            } catch (IllegalArgumentException e) {
+                logger.warning("Skipping invalid player id in " + yamlFile.getName() + ": " + uuidStr);
+                continue;
+            }
+            ConfigurationSection playerSection = playersSection.getConfigurationSection(uuidStr);
+            if (playerSection == null) {
+                continue;
+            }
+            for (String dutyName : playerSection.getKeys(false)) {
+                long time = playerSection.getLong(dutyName, 0);
+                if (time != 0) {
+                    uuids.add(uuid);
+                    dutyNames.add(dutyName);
+                    times.add(time);
+                }
+            }
+        }
+
+        try {
+            storage.importTotals(uuids, dutyNames, times);
+        } catch (SQLException e) {
+            throw new IOException("Could not migrate " + yamlFile.getName() + " to " + storage.getDatabaseFile().getName(), e);
+        }
+        totals.load(playersSection);
+
+        File migrated = new File(yamlFile.getParentFile(), yamlFile.getName() + ".migrated");
+        Files.move(yamlFile.toPath(), migrated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        logger.info("Migrated " + uuids.size() + " duty totals from " + yamlFile.getName() + " to " +
+                    storage.getDatabaseFile().getName() + " in " + (System.nanoTime() - start) / 1_000_000 + "ms. " +
+                    "The old file was kept as " + migrated.getName() + ".");
+        return uuids.size();
+    }
+
+    // Returns the number of players imported, or 0 if there was nothing to migrate
+    public static int migrateYamlToShards(File yamlFile, ShardedDutyStorage storage, DutyTotals totals, Logger logger)
+            throws IOException {
+        if (!yamlFile.exists() || yamlFile.length() == 0 || !storage.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        ConfigurationSection playersSection = YamlConfiguration.loadConfiguration(yamlFile).getConfigurationSection("players");
+        if (playersSection == null) {
+            return 0;
+        }
+        // Every player is marked changed; those that don't fit in memory are staged as they are evicted
+        totals.load(playersSection);
+        storage.flushNow();
+        int players = playersSection.getKeys(false).size();
+
+        File migrated = new File(yamlFile.getParentFile(), yamlFile.getName() + ".migrated");
+        Files.move(yamlFile.toPath(), migrated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        logger.info("Migrated " + players + " players from " + yamlFile.getName() + " to player files in " +
+                    (System.nanoTime() - start) / 1_000_000 + "ms. The old file was kept as " + migrated.getName() + ".");
+        return players;
+    }
+}
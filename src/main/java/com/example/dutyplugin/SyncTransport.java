@@ -0,0 +1,38 @@
+package com.example.dutyplugin;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries sync batches between servers. Batches are already compressed and opaque to the
+ * transport; merging them is idempotent and order-independent, so a transport only has to
+ * get each batch to every other server at least once, or make up for a lost one by sending
+ * the full state instead. Every method except Receiver's is called from the sync thread.
+ */
+interface SyncTransport {
+
+    interface Receiver {
+        // May be called from any thread
+        void received(byte[] batch);
+
+        // This server's whole replica, for servers that have just connected or fallen behind.
+        // May be called from any thread.
+        List<byte[]> fullState();
+    }
+
+    // This server's state as the transport last saw it, in frames like fullState(), to rebuild a
+    // lost sync-state.dat from. Empty if it never saw this server id or keeps no history. Called before open.
+    List<byte[]> previousState(String serverId) throws IOException;
+
+    void open(String serverId, Receiver receiver) throws IOException;
+
+    void publish(byte[] batch);
+
+    // Called every batch interval: reconnects, and for transports that poll, delivers what has arrived
+    void poll();
+
+    // A short status for /duty stats
+    String describe();
+
+    void close();
+}
@@ -0,0 +1,130 @@
+package com.example.dutyplugin;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Wraps the real storage when cross-server sync is on. Every change the plugin reports to
+ * storage is also a change to share, so each one is recorded in the sync replica before it
+ * is passed on. Both happen under the replica's lock. Totals changed by other servers are
+ * written outside it, and written again if a local change got in between, so the last write
+ * storage sees is always the latest total.
+ */
+class SyncedDutyStorage implements DutyStorage {
+
+    private final DutyStorage delegate;
+    private final DutySync sync;
+
+    public SyncedDutyStorage(DutyStorage delegate, DutySync sync) {
+        this.delegate = delegate;
+        this.sync = sync;
+    }
+
+    @Override
+    public void load(DutyTotals totals) throws IOException {
+        delegate.load(totals);
+    }
+
+    @Override
+    public void sessionEnded(UUID uuid, String dutyName, long startTime, long endTime, long newTotal) {
+        synchronized (sync) {
+            // The total across every server, which may differ from newTotal if another server's time arrived meanwhile
+            long total = sync.add(uuid, dutyName, endTime - startTime);
+            delegate.sessionEnded(uuid, dutyName, startTime, endTime, total);
+        }
+    }
+
+    @Override
+    public void totalReset(UUID uuid, String dutyName) {
+        synchronized (sync) {
+            sync.reset(uuid, dutyName);
+            delegate.totalReset(uuid, dutyName);
+        }
+    }
+
+    @Override
+    public void playerReset(UUID uuid) {
+        synchronized (sync) {
+            sync.resetPlayer(uuid);
+            delegate.playerReset(uuid);
+        }
+    }
+
+    @Override
+    public void dutyResetForAll(String dutyName) {
+        synchronized (sync) {
+            sync.resetDuty(dutyName);
+            delegate.dutyResetForAll(dutyName);
+        }
+    }
+
+    @Override
+    public void allReset() {
+        synchronized (sync) {
+            sync.resetAll();
+            delegate.allReset();
+        }
+    }
+
+    @Override
+    public void totalsSet(List<UUID> uuids, List<String> dutyNames, List<Long> totals) {
+        synchronized (sync) {
+            for (int i = 0; i < uuids.size(); i++) {
+                sync.set(uuids.get(i), dutyNames.get(i), totals.get(i));
+            }
+            delegate.totalsSet(uuids, dutyNames, totals);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> queryTotal(UUID uuid, String dutyName) {
+        return delegate.queryTotal(uuid, dutyName);
+    }
+
+    @Override
+    public boolean walkTotals(TotalVisitor visitor) throws IOException {
+        return delegate.walkTotals(visitor);
+    }
+
+    @Override
+    public CompletableFuture<List<SessionRecord>> querySessions(UUID uuid, String dutyName, long from, long to) {
+        return delegate.querySessions(uuid, dutyName, from, to);
+    }
+
+    // Only ever run by the compactor with sync on; a zero row and no row are the same total
+    @Override
+    public int pruneZeroTotals() throws IOException {
+        return delegate.pruneZeroTotals();
+    }
+
+    @Override
+    public long getStoredBytes() throws IOException {
+        return delegate.getStoredBytes();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenWritten() {
+        return delegate.whenWritten();
+    }
+
+    @Override
+    public int getPendingChanges() {
+        return delegate.getPendingChanges();
+    }
+
+    @Override
+    public List<String> describeStats() {
+        List<String> lines = delegate.describeStats();
+        lines.addAll(sync.describeStats());
+        return lines;
+    }
+
+    // Sync goes first, so its last batch and saved state include the sessions ended on shutdown
+    @Override
+    public void close() {
+        sync.close();
+        delegate.close();
+    }
+}
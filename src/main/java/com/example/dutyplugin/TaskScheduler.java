@@ -0,0 +1,44 @@
+package com.example.dutyplugin;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Where the plugin runs its tasks. On Paper everything that touches the game runs on the
+ * main thread; on Folia there is no main thread, so server-wide work runs on the global
+ * region and player work on the region that owns the player.
+ */
+interface TaskScheduler {
+
+    // Server-wide work: the main thread on Paper, the global region on Folia
+    void runGlobal(Runnable task);
+
+    // Work on a player: the main thread on Paper, the player's region on Folia.
+    // Dropped if the player has left.
+    void runForPlayer(Player player, Runnable task);
+
+    void runAsync(Runnable task);
+
+    void runGlobalTimer(Runnable task, long delayTicks, long periodTicks);
+
+    // Whether the calling thread may run server-wide work directly
+    boolean isGlobalThread();
+
+    void cancelAll();
+
+    static TaskScheduler create(Plugin plugin) {
+        if (isFolia()) {
+            return new FoliaTaskScheduler(plugin);
+        }
+        return new BukkitTaskScheduler(plugin);
+    }
+
+    static boolean isFolia() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.example.dutyplugin;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends batches straight to every peer over TCP, as length-prefixed frames. Each server
+ * listens for its peers and connects out to each of them; a connection starts with a
+ * challenge/response handshake in which both ends prove they know the shared secret (an
+ * HMAC over fresh nonces from each side, so the secret never crosses the wire and a recorded
+ * handshake can't be replayed), then this server's full state, so a peer that restarts or
+ * loses the connection catches up without a replay log. Batches published while a peer is
+ * down are simply dropped, as the full state sent on reconnect covers them. Peers can all run
+ * on one machine, which is how it is tested locally.
+ * <p>
+ * The sync thread only queues batches. Each peer has its own sender thread, and a write that
+ * stalls for WRITE_TIMEOUT_MILLIS gets its connection closed, so a stuck peer can't hold up
+ * lease renewals to the others. Incoming connections are read by a pool capped at a few more
+ * than there are peers, and an idle connection gets a keepalive so the reading end can time
+ * out a dead one.
+ */
+class TcpSyncTransport implements SyncTransport {
+
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    private static final int NONCE_BYTES = 32;
+    private static final int MAC_BYTES = 32;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final long KEEPALIVE_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = (int) (KEEPALIVE_MILLIS * 3);
+    private static final long WRITE_TIMEOUT_MILLIS = 10_000;
+    private static final long RECONNECT_MILLIS = 5000;
+    private static final int MAX_QUEUED_BATCHES = 1000;
+    private static final byte[] KEEPALIVE = new byte[0];
+
+    private final InetSocketAddress bind;
+    private final List<Peer> peers = new ArrayList<>();
+    private final byte[] secret;
+    private final Logger logger;
+    private final SecureRandom random = new SecureRandom();
+    private final List<Socket> inbound = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+    private ThreadPoolExecutor readers;
+    private Receiver receiver;
+    private volatile boolean open;
+
+    // Throws IllegalArgumentException for an address that isn't host:port or an empty secret
+    public TcpSyncTransport(String bind, List<String> peers, String secret, Logger logger) {
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("sync.tcp.secret is not set");
+        }
+        this.bind = parseAddress(bind);
+        for (String peer : peers) {
+            this.peers.add(new Peer(parseAddress(peer)));
+        }
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.logger = logger;
+    }
+
+    // host:port; throws IllegalArgumentException if it isn't one
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port, got '" + address + "'");
+        }
+        try {
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in '" + address + "'");
+        }
+    }
+
+    @Override
+    public List<byte[]> previousState(String serverId) {
+        // Peers only hold what they merged, and may not be up yet
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void open(String serverId, Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(bind);
+        // Each peer holds one connection to us; the spare threads cover reconnects racing a dead connection's timeout
+        readers = new ThreadPoolExecutor(0, peers.size() + 4, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Sync-Reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        open = true;
+        Thread acceptor = new Thread(this::accept, "DutyPlugin-Sync-Accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers) {
+            peer.start();
+        }
+    }
+
+    private void accept() {
+        while (open) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (open) {
+                    logger.log(Level.WARNING, "Sync listener stopped", e);
+                }
+                return;
+            }
+            inbound.add(socket);
+            try {
+                readers.execute(() -> read(socket));
+            } catch (RejectedExecutionException e) {
+                logger.warning("Too many sync connections, closing the one from " + socket.getRemoteSocketAddress());
+                inbound.remove(socket);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // Frames before the handshake completes are capped at its own size, so nobody unauthenticated gets a big buffer
+            byte[] theirNonce = readFrame(in, NONCE_BYTES);
+            byte[] ourNonce = nonce();
+            writeFrame(out, ourNonce);
+            writeFrame(out, mac("accept", theirNonce, ourNonce));
+            out.flush();
+            if (!MessageDigest.isEqual(mac("connect", ourNonce, theirNonce), readFrame(in, MAC_BYTES))) {
+                logger.warning("Sync connection from " + socket.getRemoteSocketAddress() + " used the wrong secret, closing it.");
+                return;
+            }
+
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            while (open) {
+                byte[] frame = readFrame(in, MAX_FRAME_BYTES);
+                if (frame.length > 0) {
+                    receiver.received(frame);
+                }
+            }
+        } catch (IOException e) {
+            // The peer went away or stopped answering; it sends its full state again when it reconnects
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not read a sync batch from " + socket.getRemoteSocketAddress(), e);
+        } finally {
+            inbound.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream in, int maxBytes) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxBytes) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    // HMAC-SHA256 of the role and both nonces under the shared secret; the role keeps one side's answer from being reflected back as the other's
+    private byte[] mac(String role, byte[] first, byte[] second) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(role.getBytes(StandardCharsets.UTF_8));
+            mac.update(first);
+            mac.update(second);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    @Override
+    public void publish(byte[] batch) {
+        for (Peer peer : peers) {
+            peer.queue(batch);
+        }
+    }
+
+    @Override
+    public void poll() {
+        long now = System.currentTimeMillis();
+        for (Peer peer : peers) {
+            peer.checkStalled(now);
+        }
+    }
+
+    @Override
+    public String describe() {
+        int connected = 0;
+        for (Peer peer : peers) {
+            if (peer.connected) {
+                connected++;
+            }
+        }
+        return "tcp on " + bind.getHostString() + ":" + bind.getPort() + ", " + connected + "/" + peers.size() +
+               " peers connected, " + inbound.size() + " connected to us";
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {}
+        }
+        for (Socket socket : inbound) {
+            closeQuietly(socket);
+        }
+        if (readers != null) {
+            readers.shutdownNow();
+        }
+        for (Peer peer : peers) {
+            peer.stop();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    // An outgoing connection, written by its own thread from a queue the sync thread fills
+    private class Peer {
+        final InetSocketAddress address;
+        final BlockingQueue<byte[]> batches = new ArrayBlockingQueue<>(MAX_QUEUED_BATCHES);
+        volatile Socket socket;
+        volatile boolean connected;
+        volatile long writingSince; // 0 unless a write is in progress
+        Thread sender;
+        boolean warned; // only used by the sender thread
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void start() {
+            sender = new Thread(this::run, "DutyPlugin-Sync-Peer");
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        void stop() {
+            if (sender != null) {
+                sender.interrupt();
+            }
+            disconnect();
+        }
+
+        // Called by the sync thread. Never blocks; while the peer is down batches are dropped,
+        // and a peer too far behind is reconnected, as the full state sent then covers them.
+        void queue(byte[] batch) {
+            if (connected && !batches.offer(batch)) {
+                logger.warning("Sync peer " + address + " is falling behind, reconnecting to send it the full state");
+                disconnect();
+            }
+        }
+
+        // Called by the sync thread; closing the socket fails the stuck write
+        void checkStalled(long now) {
+            long since = writingSince;
+            if (since != 0 && now - since > WRITE_TIMEOUT_MILLIS) {
+                logger.warning("Sync peer " + address + " stopped accepting data, reconnecting");
+                disconnect();
+            }
+        }
+
+        void run() {
+            while (open) {
+                try {
+                    connectAndSend();
+                } catch (IOException e) {
+                    if (!open) {
+                        return;
+                    }
+                    if (!warned) {
+                        logger.warning("Lost or could not reach sync peer " + address + ", retrying every " +
+                                       RECONNECT_MILLIS / 1000 + "s: " + e.getMessage());
+                        warned = true;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    disconnect();
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void connectAndSend() throws IOException, InterruptedException {
+            Socket connecting = new Socket();
+            socket = connecting;
+            connecting.setTcpNoDelay(true);
+            connecting.connect(address, CONNECT_TIMEOUT_MILLIS);
+            connecting.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connecting.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connecting.getOutputStream()));
+
+            byte[] ourNonce = nonce();
+            writeFrame(out, ourNonce);
+            out.flush();
+            byte[] theirNonce = readFrame(in, NONCE_BYTES);
+            if (!MessageDigest.isEqual(mac("accept", ourNonce, theirNonce), readFrame(in, MAC_BYTES))) {
+                throw new IOException("it does not have the same sync.tcp.secret");
+            }
+            writeFrame(out, mac("connect", theirNonce, ourNonce));
+
+            // Anything queued before the full state is taken is part of it
+            batches.clear();
+            connected = true;
+            write(out, receiver.fullState());
+            if (warned) {
+                logger.info("Reconnected to sync peer " + address);
+                warned = false;
+            }
+
+            List<byte[]> pending = new ArrayList<>();
+            while (open && socket == connecting) {
+                byte[] batch = batches.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                pending.add(batch != null ? batch : KEEPALIVE);
+                batches.drainTo(pending);
+                write(out, pending);
+                pending.clear();
+            }
+        }
+
+        private void write(DataOutputStream out, List<byte[]> frames) throws IOException {
+            writingSince = System.currentTimeMillis();
+            try {
+                for (byte[] frame : frames) {
+                    writeFrame(out, frame);
+                }
+                out.flush();
+            } finally {
+                writingSince = 0;
+            }
+        }
+
+        void disconnect() {
+            connected = false;
+            Socket current = socket;
+            if (current != null) {
+                closeQuietly(current);
+            }
+            socket = null;
+        }
+    }
+}
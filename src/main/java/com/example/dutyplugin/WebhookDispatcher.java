@@ -0,0 +1,364 @@
+package com.example.dutyplugin;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends duty log messages to a Discord webhook from a single background thread.
+ * Messages wait in a bounded queue and are sent up to 10 embeds per request over one
+ * keep-alive HTTP client. 429 responses and Discord's bucket headers are honoured by
+ * pausing the whole queue; a batch that is only rate limited keeps waiting, up to a limit,
+ * rather than using up its retries. When the queue is full the oldest message is dropped, and with
+ * the SUMMARIZE policy the next request notes how many were dropped.
+ */
+class WebhookDispatcher {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        SUMMARIZE
+    }
+
+    private static final int MAX_EMBEDS_PER_REQUEST = 10;
+    private static final int MAX_ATTEMPTS = 5; // failed requests; 429s that say how long to wait don't count
+    private static final long MAX_RATE_LIMIT_WAIT_MILLIS = 300_000;
+    private static final int SUMMARY_COLOR = 16776960;
+
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Logger logger;
+    private final LatencyHistogram requestTimer;
+    private final HttpClient client;
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private final Thread thread;
+
+    private volatile URI webhookUri;
+    private volatile boolean running = true;
+    private long rateLimitedUntil; // only touched by the dispatcher thread
+    private int droppedSinceSummary; // guarded by queue
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rateLimitHits = new AtomicLong();
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    public WebhookDispatcher(String webhookUrl, int capacity, OverflowPolicy overflowPolicy, Logger logger,
+                             LatencyHistogram requestTimer) {
+        this(webhookUrl, HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build(),
+                capacity, overflowPolicy, logger, requestTimer);
+    }
+
+    // Tests hand in their own client, pointed with webhookUrl at a local endpoint
+    WebhookDispatcher(String webhookUrl, HttpClient client, int capacity, OverflowPolicy overflowPolicy, Logger logger,
+                      LatencyHistogram requestTimer) {
+        this.capacity = Math.max(MAX_EMBEDS_PER_REQUEST, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.logger = logger;
+        this.requestTimer = requestTimer;
+        this.client = client;
+        setWebhookUrl(webhookUrl);
+        this.thread = new Thread(this::run, "DutyPlugin-Webhook");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void setWebhookUrl(String webhookUrl) {
+        if (webhookUrl == null || webhookUrl.isEmpty()) {
+            webhookUri = null;
+            return;
+        }
+        try {
+            webhookUri = URI.create(webhookUrl);
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid Discord webhook URL, duty logging to Discord is disabled.");
+            webhookUri = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return webhookUri != null;
+    }
+
+    // Never blocks. Drops the oldest queued message if the queue is full.
+    public void enqueue(String description, int color) {
+        if (webhookUri == null) {
+            return;
+        }
+        Message message = new Message(description, color, System.currentTimeMillis(), false);
+        synchronized (queue) {
+            if (queue.size() >= capacity) {
+                queue.pollFirst();
+                dropped.incrementAndGet();
+                droppedSinceSummary++;
+            }
+            queue.addLast(message);
+            queue.notifyAll();
+        }
+    }
+
+    // Stops accepting work and gives the queue up to the timeout to drain
+    public void shutdown(long timeoutMillis) {
+        running = false;
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            thread.interrupt();
+            synchronized (queue) {
+                if (!queue.isEmpty()) {
+                    logger.warning("Discarded " + queue.size() + " unsent Discord messages on shutdown.");
+                }
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getRateLimitHits() {
+        return rateLimitHits.get();
+    }
+
+    // Average time from enqueue to a successful delivery
+    public double getAverageLatencyMillis() {
+        long count = delivered.get();
+        return count == 0 ? 0 : totalLatencyMillis.get() / (double) count;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    private void run() {
+        while (true) {
+            List<Message> batch = new ArrayList<>(MAX_EMBEDS_PER_REQUEST);
+            int droppedCount;
+            synchronized (queue) {
+                while (queue.isEmpty() && running) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+
+                droppedCount = overflowPolicy == OverflowPolicy.SUMMARIZE ? droppedSinceSummary : 0;
+                int room = droppedCount > 0 ? MAX_EMBEDS_PER_REQUEST - 1 : MAX_EMBEDS_PER_REQUEST;
+                while (batch.size() < room && !queue.isEmpty()) {
+                    batch.add(queue.pollFirst());
+                }
+                droppedSinceSummary -= droppedCount;
+            }
+
+            if (droppedCount > 0) {
+                batch.add(0, new Message(droppedCount + " duty log messages were dropped because Discord could not keep up.",
+                        SUMMARY_COLOR, System.currentTimeMillis(), true));
+            }
+
+            try {
+                send(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void send(List<Message> batch) throws InterruptedException {
+        String payload = buildPayload(batch);
+
+        int failures = 0;
+        long rateLimitWait = 0; // waited because of 429s while sending this batch
+        while (failures < MAX_ATTEMPTS) {
+            URI uri = webhookUri;
+            if (uri == null) {
+                return;
+            }
+
+            long wait = rateLimitedUntil - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofSeconds(15))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(payload))
+                    .build();
+
+            HttpResponse<String> response;
+            long start = System.nanoTime();
+            try {
+                requests.incrementAndGet();
+                response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                requestTimer.recordSince(start);
+                failures++;
+                logger.log(Level.WARNING, "Could not reach Discord webhook (attempt " + failures + ")", e);
+                Thread.sleep(backoffMillis(failures));
+                continue;
+            }
+
+            requestTimer.recordSince(start);
+            int status = response.statusCode();
+            if (status == 429) {
+                rateLimitHits.incrementAndGet();
+                long retryAfter = retryAfterMillis(response);
+                if (retryAfter < 0) {
+                    // Discord didn't say how long, so treat it like any other failure
+                    failures++;
+                    retryAfter = 1000;
+                } else {
+                    rateLimitWait += retryAfter;
+                    if (rateLimitWait > MAX_RATE_LIMIT_WAIT_MILLIS) {
+                        logger.warning("Gave up sending " + batch.size() + " messages to Discord after being rate limited for " +
+                                       rateLimitWait / 1000 + "s.");
+                        return;
+                    }
+                }
+                rateLimitedUntil = System.currentTimeMillis() + retryAfter;
+                continue;
+            }
+
+            updateBucket(response);
+            if (status >= 200 && status < 300) {
+                long now = System.currentTimeMillis();
+                for (Message message : batch) {
+                    if (message.summary) {
+                        continue;
+                    }
+                    long latency = now - message.createdAt;
+                    totalLatencyMillis.addAndGet(latency);
+                    maxLatencyMillis.accumulateAndGet(latency, Math::max);
+                    delivered.incrementAndGet();
+                }
+                return;
+            }
+            if (status < 500) {
+                logger.warning("Discord webhook rejected " + batch.size() + " messages with HTTP " + status + ": " + response.body());
+                return;
+            }
+            failures++;
+            Thread.sleep(backoffMillis(failures));
+        }
+
+        logger.warning("Gave up sending " + batch.size() + " messages to Discord after " + MAX_ATTEMPTS + " attempts.");
+    }
+
+    // Pause before the bucket resets if the last request used it up
+    private void updateBucket(HttpResponse<?> response) {
+        Optional<String> remaining = response.headers().firstValue("X-RateLimit-Remaining");
+        Optional<String> resetAfter = response.headers().firstValue("X-RateLimit-Reset-After");
+        if (remaining.isPresent() && resetAfter.isPresent() && remaining.get().trim().equals("0")) {
+            rateLimitedUntil = System.currentTimeMillis() + secondsToMillis(resetAfter.get(), 1000);
+        }
+    }
+
+    // -1 if the response doesn't say
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        Optional<String> retryAfter = response.headers().firstValue("Retry-After");
+        if (retryAfter.isEmpty()) {
+            retryAfter = response.headers().firstValue("X-RateLimit-Reset-After");
+        }
+        return retryAfter.map(value -> secondsToMillis(value, -1)).orElse(-1L);
+    }
+
+    private static long secondsToMillis(String seconds, long fallback) {
+        try {
+            return (long) Math.ceil(Double.parseDouble(seconds.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static long backoffMillis(int attempt) {
+        return Math.min(30_000L, 500L << attempt);
+    }
+
+    static String buildPayload(List<Message> messages) {
+        StringBuilder json = new StringBuilder(64 + messages.size() * 128);
+        json.append("{\"embeds\":[");
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"description\":\"");
+            appendEscaped(json, message.description);
+            json.append("\",\"color\":").append(message.color);
+            json.append(",\"timestamp\":\"").append(Instant.ofEpochMilli(message.createdAt)).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    static void appendEscaped(StringBuilder json, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+    }
+
+    static class Message {
+        final String description;
+        final int color;
+        final long createdAt;
+        final boolean summary; // our own "messages were dropped" note, not counted as delivered
+
+        Message(String description, int color, long createdAt, boolean summary) {
+            this.description = description;
+            this.color = color;
+            this.createdAt = createdAt;
+            this.summary = summary;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.dutyplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the duty data file in the background.
+ * Callers mark the data dirty after each change; pending changes are coalesced
+ * and flushed either every interval or as soon as enough changes are waiting.
+ */
+class WriteBehindPersister {
+
+    private final File target;
+    private final Supplier<String> snapshotter;
+    private final Logger logger;
+    private final long intervalMillis;
+    private final int maxPendingWrites;
+    private final LatencyHistogram flushTimer;
+    private final ScheduledExecutorService executor;
+    private final Object flushLock = new Object();
+    private final FlushWaiters waiters = new FlushWaiters();
+
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong coalescedWrites = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+
+    public WriteBehindPersister(File target, Supplier<String> snapshotter, Logger logger,
+                                long intervalMillis, int maxPendingWrites, LatencyHistogram flushTimer) {
+        this.target = target;
+        this.snapshotter = snapshotter;
+        this.logger = logger;
+        this.intervalMillis = Math.max(1000L, intervalMillis);
+        this.maxPendingWrites = Math.max(1, maxPendingWrites);
+        this.flushTimer = flushTimer;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Persister");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Records one change. Cheap enough to call from the main thread.
+    public void markDirty() {
+        // Every time the count crosses a multiple of the limit, so changes put back by a failed
+        // flush still trigger another one once enough new changes are waiting
+        int pending = pendingWrites.incrementAndGet();
+        if (pending >= maxPendingWrites && (pending - 1) / maxPendingWrites < pending / maxPendingWrites) {
+            executor.execute(this::flushQuietly);
+        }
+    }
+
+    // Completes after the next flush that covers every change marked so far
+    public CompletableFuture<Void> whenFlushed() {
+        return waiters.add();
+    }
+
+    public int getPendingWrites() {
+        return pendingWrites.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    // Number of changes that were folded into another change's write
+    public long getCoalescedWrites() {
+        return coalescedWrites.get();
+    }
+
+    public long getLastFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos.get());
+    }
+
+    public long getMaxFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get());
+    }
+
+    public double getAverageFlushMillis() {
+        long flushes = flushCount.get();
+        if (flushes == 0) {
+            return 0;
+        }
+        return totalFlushNanos.get() / (double) flushes / 1_000_000.0;
+    }
+
+    // Stops the background writer and does one final blocking flush on the calling thread
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for the background data writer to finish.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not save " + target.getName() + " on shutdown", e);
+        }
+    }
+
+    public void flush() throws IOException {
+        List<CompletableFuture<Void>> flushed;
+        synchronized (flushLock) {
+            flushed = waiters.take();
+            int pending = pendingWrites.getAndSet(0);
+            if (pending == 0) {
+                FlushWaiters.written(flushed);
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                writeAtomically(snapshotter.get());
+            } catch (IOException | RuntimeException e) {
+                // Keep the changes pending so the next flush retries them
+                pendingWrites.addAndGet(pending);
+                waiters.failed(flushed);
+                throw e;
+            }
+            long elapsed = System.nanoTime() - start;
+            flushTimer.record(elapsed);
+
+            flushCount.incrementAndGet();
+            coalescedWrites.addAndGet(pending - 1);
+            totalFlushNanos.addAndGet(elapsed);
+            lastFlushNanos.set(elapsed);
+            maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        }
+        FlushWaiters.written(flushed);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not save " + target.getName(), e);
+        }
+    }
+
+    private void writeAtomically(String data) throws IOException {
+        Path targetPath = target.toPath();
+        Path tempPath = targetPath.resolveSibling(target.getName() + ".tmp");
+        // On disk before the move, so a crash can't leave an empty file in place of the data
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
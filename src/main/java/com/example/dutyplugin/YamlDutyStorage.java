@@ -0,0 +1,133 @@
+package com.example.dutyplugin;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * The original dutydata.yml format. The whole file is rewritten from a snapshot of the
+ * totals by a WriteBehindPersister, so changes only mark it dirty. Keeps no session history.
+ */
+class YamlDutyStorage implements DutyStorage {
+
+    private final File dataFile;
+    private final Logger logger;
+    private final long flushIntervalMillis;
+    private final int maxPendingWrites;
+    private final LatencyHistogram saveTimer;
+    private DutyTotals totals;
+    private WriteBehindPersister persister;
+
+    public YamlDutyStorage(File dataFile, Logger logger, long flushIntervalMillis, int maxPendingWrites, LatencyHistogram saveTimer) {
+        this.dataFile = dataFile;
+        this.logger = logger;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxPendingWrites = maxPendingWrites;
+        this.saveTimer = saveTimer;
+    }
+
+    @Override
+    public void load(DutyTotals totals) throws IOException {
+        this.totals = totals;
+        if (!dataFile.exists()) {
+            dataFile.createNewFile();
+        }
+        // Not loadConfiguration, which reads a broken file as empty; the first save would then overwrite it
+        YamlConfiguration yaml = new YamlConfiguration();
+        try {
+            yaml.load(dataFile);
+        } catch (InvalidConfigurationException e) {
+            throw new IOException(dataFile.getName() + " is not valid YAML", e);
+        }
+        totals.load(yaml.getConfigurationSection("players"));
+
+        persister = new WriteBehindPersister(dataFile, totals::saveToString, logger, flushIntervalMillis, maxPendingWrites, saveTimer);
+        persister.start();
+    }
+
+    @Override
+    public void sessionEnded(UUID uuid, String dutyName, long startTime, long endTime, long newTotal) {
+        persister.markDirty();
+    }
+
+    @Override
+    public void totalReset(UUID uuid, String dutyName) {
+        persister.markDirty();
+    }
+
+    @Override
+    public void playerReset(UUID uuid) {
+        persister.markDirty();
+    }
+
+    @Override
+    public void dutyResetForAll(String dutyName) {
+        persister.markDirty();
+    }
+
+    @Override
+    public void allReset() {
+        persister.markDirty();
+    }
+
+    @Override
+    public void totalsSet(List<UUID> uuids, List<String> dutyNames, List<Long> totals) {
+        persister.markDirty();
+    }
+
+    @Override
+    public CompletableFuture<Long> queryTotal(UUID uuid, String dutyName) {
+        return CompletableFuture.completedFuture(totals.get(uuid, totals.ordinalOf(dutyName)));
+    }
+
+    @Override
+    public CompletableFuture<List<SessionRecord>> querySessions(UUID uuid, String dutyName, long from, long to) {
+        return CompletableFuture.completedFuture(new ArrayList<>());
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return dataFile.length();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenWritten() {
+        return persister.whenFlushed();
+    }
+
+    @Override
+    public int getPendingChanges() {
+        return persister.getPendingWrites();
+    }
+
+    @Override
+    public List<String> describeStats() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Storage: yaml, " + persister.getFlushCount() + " writes (coalesced changes: " +
+                  persister.getCoalescedWrites() + ", pending: " + persister.getPendingWrites() + ")");
+        lines.add("Write latency: last " + persister.getLastFlushMillis() + "ms, avg " +
+                  String.format("%.1f", persister.getAverageFlushMillis()) + "ms, max " +
+                  persister.getMaxFlushMillis() + "ms");
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        if (persister == null) {
+            return;
+        }
+        // Always write once more on shutdown, even if nothing was marked dirty
+        persister.markDirty();
+        persister.shutdown();
+        logger.info("Saved duty data (" + persister.getFlushCount() + " writes, " +
+                    persister.getCoalescedWrites() + " changes coalesced, avg " +
+                    String.format("%.1f", persister.getAverageFlushMillis()) + "ms per write).");
+    }
+}
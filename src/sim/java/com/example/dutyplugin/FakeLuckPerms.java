@@ -0,0 +1,84 @@
+package com.example.dutyplugin;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.model.user.UserManager;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for LuckPerms. modifyUser completes after a fixed delay, like a write to
+ * LuckPerms' storage, without running the change itself, since building nodes needs the real
+ * plugin. No users are loaded, so transient groups have nothing to change.
+ */
+class FakeLuckPerms {
+
+    private final long latencyMillis;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "DutyPlugin-Simulation-LuckPerms");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong modifyCalls = new AtomicLong();
+    private final LuckPerms luckPerms;
+
+    public FakeLuckPerms(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        UserManager users = stub(UserManager.class, (method, args) -> {
+            switch (method) {
+                case "modifyUser":
+                    modifyCalls.incrementAndGet();
+                    CompletableFuture<Void> future = new CompletableFuture<>();
+                    executor.schedule(() -> future.complete(null), this.latencyMillis, TimeUnit.MILLISECONDS);
+                    return future;
+                case "getUser":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+        this.luckPerms = stub(LuckPerms.class, (method, args) -> {
+            if (method.equals("getUserManager")) {
+                return users;
+            }
+            throw new UnsupportedOperationException(method);
+        });
+    }
+
+    public LuckPerms get() {
+        return luckPerms;
+    }
+
+    public long getModifyCalls() {
+        return modifyCalls.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    interface Handler {
+        Object invoke(String method, Object[] args);
+    }
+
+    // An implementation of an API interface that only answers the methods the handler knows
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Fake" + type.getSimpleName();
+                default:
+                    return handler.invoke(method.getName(), args);
+            }
+        });
+    }
+}
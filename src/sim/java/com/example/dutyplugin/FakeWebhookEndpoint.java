@@ -0,0 +1,100 @@
+package com.example.dutyplugin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for a Discord webhook. It answers after a fixed delay and enforces a
+ * bucket of 5 requests every 2 seconds with the same headers Discord sends, so the
+ * dispatcher's batching and rate-limit handling are part of the simulation.
+ */
+class FakeWebhookEndpoint {
+
+    private static final int BUCKET_SIZE = 5;
+    private static final long BUCKET_MILLIS = 2000;
+
+    private final long latencyMillis;
+    private final HttpServer server;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private long bucketStart; // guarded by this
+    private int bucketUsed;
+
+    public FakeWebhookEndpoint(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/webhook", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "DutyPlugin-Simulation-Webhook");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/webhook";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            bytesReceived.addAndGet(in.readAllBytes().length);
+        }
+        requests.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        int remaining;
+        long resetAfter;
+        synchronized (this) {
+            if (now - bucketStart >= BUCKET_MILLIS) {
+                bucketStart = now;
+                bucketUsed = 0;
+            }
+            remaining = BUCKET_SIZE - ++bucketUsed;
+            resetAfter = BUCKET_MILLIS - (now - bucketStart);
+        }
+        String seconds = String.format(Locale.ROOT, "%.3f", resetAfter / 1000.0);
+        exchange.getResponseHeaders().set("X-RateLimit-Reset-After", seconds);
+        if (remaining < 0) {
+            rateLimited.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", seconds);
+            exchange.sendResponseHeaders(429, -1);
+        } else {
+            exchange.getResponseHeaders().set("X-RateLimit-Remaining", Integer.toString(remaining));
+            exchange.sendResponseHeaders(204, -1);
+        }
+        exchange.close();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
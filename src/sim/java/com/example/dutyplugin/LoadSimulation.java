@@ -0,0 +1,500 @@
+package com.example.dutyplugin;
+
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Replays a spike of /duty toggles against the plugin's own storage, session journal,
+ * rollups, LuckPerms queue and Discord dispatcher, with LuckPerms, the webhook, the server and
+ * its players replaced by local fakes, and times every tick of the simulated main thread. The
+ * plugin itself can't be constructed outside a server, so the simulation wires up the same
+ * parts onEnable does and toggles through DutyToggles, which /duty uses too. Background
+ * threads run for real, so by default ticks are paced at 20 a second to give them the same
+ * time they would have in game.
+ * <p>
+ * Run with: mvn -P simulation verify, choosing the scenario and limits with -Dsim.* properties
+ * (see the simulation profile in pom.xml). Exits with 1, failing the build, if a limit is exceeded.
+ */
+public class LoadSimulation {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long SEED = 20240601L;
+
+    enum Scenario {
+        LOGIN_RUSH,   // everyone goes on duty in the first fifth of the run and off in the last fifth
+        SHIFT_CHANGE, // half start on duty, and everyone toggles within ten seconds of the midpoint
+        STEADY;       // everyone toggles about every 20 seconds, at random
+
+        // The staff members toggling on each tick
+        List<List<Integer>> plan(int staff, int ticks, Random random, boolean[] onDutyAtStart) {
+            List<List<Integer>> plan = new ArrayList<>(ticks);
+            for (int i = 0; i < ticks; i++) {
+                plan.add(new ArrayList<>());
+            }
+            for (int member = 0; member < staff; member++) {
+                switch (this) {
+                    case LOGIN_RUSH:
+                        plan.get(random.nextInt(Math.max(1, ticks / 5))).add(member);
+                        plan.get(ticks - 1 - random.nextInt(Math.max(1, ticks / 5))).add(member);
+                        break;
+                    case SHIFT_CHANGE:
+                        onDutyAtStart[member] = member % 2 == 0;
+                        int window = Math.min(ticks, 200);
+                        plan.get(ticks / 2 - window / 2 + random.nextInt(window)).add(member);
+                        break;
+                    case STEADY:
+                        onDutyAtStart[member] = random.nextBoolean();
+                        for (double tick = -Math.log(1 - random.nextDouble()) * 400; tick < ticks;
+                             tick += -Math.log(1 - random.nextDouble()) * 400) {
+                            plan.get((int) tick).add(member);
+                        }
+                        break;
+                }
+            }
+            return plan;
+        }
+    }
+
+    private final Scenario scenario;
+    private final int staff;
+    private final int historicalPlayers;
+    private final int ticks;
+    private final String storageType;
+    private final boolean pace;
+    private final File dataFolder;
+    private final long luckPermsLatencyMillis;
+    private final long webhookLatencyMillis;
+    private final double maxTickP99Millis;
+    private final double maxTickMillis;
+    private final double maxAllocP99Kb;
+    private final double maxShutdownMillis;
+
+    private final Logger logger = Logger.getLogger("DutyPlugin");
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final DutyTotals totals = new DutyTotals();
+    private final SessionRegistry sessions = new SessionRegistry();
+    private FileConfiguration config;
+    private DutyConfig dutyConfig;
+    private List<DutyType> dutyTypes;
+    private DutyStorage storage;
+    private DutyRollups rollups;
+    private WriteBehindPersister rollupPersister;
+    private SessionJournal journal;
+    private DutyCompactor compactor;
+    private PlayerNameIndex nameIndex;
+    private DutyToggles toggles;
+    private SimulatedScheduler scheduler;
+    private FakeLuckPerms luckPerms;
+    private GroupMutationQueue groupQueue;
+    private FakeWebhookEndpoint webhookEndpoint;
+    private WebhookDispatcher webhookDispatcher;
+    private UUID[] staffIds;
+    private Player[] staffPlayers;
+    private final Map<UUID, Player> online = new HashMap<>();
+    private int toggledOn;
+    private int toggledOff;
+
+    LoadSimulation() {
+        scenario = Scenario.valueOf(System.getProperty("sim.scenario", "shift-change").toUpperCase(Locale.ROOT).replace('-', '_'));
+        staff = Integer.getInteger("sim.staff", 2000);
+        historicalPlayers = Integer.getInteger("sim.historical-players", 50000);
+        ticks = Math.max(20, Integer.getInteger("sim.seconds", 60) * 20);
+        storageType = System.getProperty("sim.storage", "yaml");
+        pace = Boolean.parseBoolean(System.getProperty("sim.pace", "true"));
+        dataFolder = new File(System.getProperty("sim.dir", "target/simulation"));
+        luckPermsLatencyMillis = Long.getLong("sim.luckperms-latency-ms", 20);
+        webhookLatencyMillis = Long.getLong("sim.webhook-latency-ms", 50);
+        maxTickP99Millis = Double.parseDouble(System.getProperty("sim.max-tick-p99-ms", "5"));
+        maxTickMillis = Double.parseDouble(System.getProperty("sim.max-tick-ms", "50"));
+        maxAllocP99Kb = Double.parseDouble(System.getProperty("sim.max-alloc-p99-kb", "1024"));
+        maxShutdownMillis = Double.parseDouble(System.getProperty("sim.max-shutdown-ms", "10000"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> failures = new LoadSimulation().run();
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.out.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+    }
+
+    List<String> run() throws Exception {
+        Random random = new Random(SEED);
+        prepareDataFolder(random);
+        scheduler = new SimulatedScheduler(Thread.currentThread());
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        IoCounters ioBefore = IoCounters.read();
+
+        long loadStart = System.nanoTime();
+        enable();
+        long loadNanos = System.nanoTime() - loadStart;
+
+        boolean[] onDutyAtStart = new boolean[staff];
+        List<List<Integer>> plan = scenario.plan(staff, ticks, random, onDutyAtStart);
+        long now = System.currentTimeMillis();
+        for (int member = 0; member < staff; member++) {
+            if (onDutyAtStart[member]) {
+                // Started some time in the last hour, before the simulation
+                DutyType type = dutyTypes.get(random.nextInt(dutyTypes.size()));
+                long start = now - random.nextInt(60 * 60 * 1000);
+                sessions.tryStart(staffIds[member], new DutySession(type.getName(), start));
+                journal.recordStart(staffIds[member], type.getName(), start);
+            }
+        }
+
+        long[] tickNanos = new long[ticks];
+        long[] tickBytes = new long[ticks];
+        int tasksRun = 0;
+        long nextTick = System.nanoTime();
+        for (int tick = 0; tick < ticks; tick++) {
+            long allocStart = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            tasksRun += scheduler.runTick();
+            for (int member : plan.get(tick)) {
+                toggle(member, random);
+            }
+            tickNanos[tick] = System.nanoTime() - start;
+            tickBytes[tick] = threads.getCurrentThreadAllocatedBytes() - allocStart;
+
+            nextTick += TICK_NANOS;
+            long sleep = nextTick - System.nanoTime();
+            if (pace && sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+
+        long shutdownStart = System.nanoTime();
+        disable();
+        long shutdownNanos = System.nanoTime() - shutdownStart;
+        IoCounters ioAfter = IoCounters.read();
+
+        return report(tickNanos, tickBytes, tasksRun, loadNanos, shutdownNanos, ioBefore, ioAfter);
+    }
+
+    // A fresh plugin folder with the historical players in dutydata.yml, migrated on load like a real upgrade
+    private void prepareDataFolder(Random random) throws IOException {
+        if (dataFolder.exists()) {
+            try (Stream<Path> files = Files.walk(dataFolder.toPath())) {
+                for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+        Files.createDirectories(dataFolder.toPath());
+
+        config = YamlConfiguration.loadConfiguration(new InputStreamReader(
+                LoadSimulation.class.getResourceAsStream("/config.yml"), StandardCharsets.UTF_8));
+        config.set("storage.type", storageType);
+        dutyConfig = DutyConfig.fromConfiguration(config, null);
+        dutyTypes = new ArrayList<>(dutyConfig.getDutyTypes().values());
+
+        DutyTotals history = new DutyTotals();
+        for (DutyType type : dutyTypes) {
+            history.register(type.getName());
+        }
+        staffIds = new UUID[staff];
+        for (int i = 0; i < Math.max(staff, historicalPlayers); i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            if (i < staff) {
+                staffIds[i] = uuid;
+            }
+            if (i < historicalPlayers) {
+                for (int j = 0; j < 3; j++) {
+                    history.set(uuid, random.nextInt(dutyTypes.size()), 1000L + (long) (random.nextDouble() * 500 * 60 * 60 * 1000));
+                }
+            }
+        }
+        Files.write(new File(dataFolder, "dutydata.yml").toPath(), history.saveToString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // What onEnable sets up for duty toggles, in the same order
+    private void enable() throws IOException {
+        luckPerms = new FakeLuckPerms(luckPermsLatencyMillis);
+        webhookEndpoint = new FakeWebhookEndpoint(webhookLatencyMillis);
+        webhookDispatcher = new WebhookDispatcher(webhookEndpoint.getUrl(), config.getInt("discord.queue-capacity", 500),
+                WebhookDispatcher.OverflowPolicy.valueOf(config.getString("discord.overflow-policy", "SUMMARIZE")
+                        .toUpperCase(Locale.ROOT).replace('-', '_')),
+                logger, metrics.timer(PluginMetrics.Timer.WEBHOOK_SEND));
+        webhookDispatcher.start();
+        Plugin plugin = FakeLuckPerms.stub(Plugin.class, (method, args) -> {
+            switch (method) {
+                case "getLogger":
+                    return logger;
+                case "isEnabled":
+                    return true;
+                case "getName":
+                    return "DutyPlugin";
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+        groupQueue = new GroupMutationQueue(plugin, scheduler, luckPerms.get(), config.getBoolean("luckperms.transient-groups", false),
+                metrics.timer(PluginMetrics.Timer.LUCKPERMS_WRITE));
+        Server server = fakeServer();
+
+        long loadStart = System.nanoTime();
+        openStorage();
+        rollups = new DutyRollups(totals, ZoneId.systemDefault(), config.getInt("rollups.retention-days", 90),
+                config.getInt("rollups.retention-weeks", 26), config.getInt("rollups.retention-months", 24));
+        rollupPersister = new WriteBehindPersister(new File(dataFolder, "rollups.yml"), rollups::saveToString, logger,
+                TimeUnit.SECONDS.toMillis(config.getLong("persistence.flush-interval-seconds", 30)),
+                config.getInt("persistence.max-pending-writes", 100), metrics.timer(PluginMetrics.Timer.SAVE_ROLLUPS));
+        rollupPersister.start();
+        compactor = new DutyCompactor(dataFolder, totals, storage, rollups, rollupPersister, sessions,
+                () -> dutyConfig.getDutyTypes().keySet(), logger,
+                metrics.timer(PluginMetrics.Timer.SAVE_DATA), metrics.timer(PluginMetrics.Timer.COMPACT_DATA),
+                config.getInt("retention.archive-after-days", 365),
+                config.getBoolean("retention.archive-removed-duties", true), false,
+                config.getInt("retention.batch-size", 250), config.getLong("retention.pause-millis", 50),
+                TimeUnit.SECONDS.toMillis(config.getLong("persistence.flush-interval-seconds", 30) + 5));
+        compactor.load(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStart));
+
+        nameIndex = new PlayerNameIndex(config.getInt("name-index.max-entries", 50000));
+        for (Player player : staffPlayers) {
+            nameIndex.put(player.getUniqueId(), player.getName());
+        }
+        DutyDataTransfer dataTransfer = new DutyDataTransfer(new File(dataFolder, "exports"), totals, storage, nameIndex::getName);
+        DutyTabCompleter tabCompleter = new DutyTabCompleter(nameIndex, dataTransfer);
+
+        journal = new SessionJournal(dataFolder, storage, rollupPersister, logger, config.getLong("session-journal.sync-interval-millis", 200),
+                TimeUnit.SECONDS.toMillis(config.getLong("session-journal.checkpoint-interval-seconds", 30)),
+                config.getInt("session-journal.compact-after-records", 1000));
+        toggles = new DutyToggles(server, sessions, totals, rollups, rollupPersister, storage, journal, compactor, nameIndex,
+                tabCompleter, scheduler, groupQueue, null, webhookDispatcher, () -> dutyConfig, nameIndex::getName);
+        journal.recover();
+        journal.open(Collections.emptyList());
+
+        compactor.start(dataTransfer, config.getBoolean("retention.enabled", true)
+                ? TimeUnit.HOURS.toMillis(config.getLong("retention.interval-hours", 24)) : 0);
+        AfkTracker afkTracker = new AfkTracker(server, sessions, scheduler);
+        afkTracker.configure(config.getBoolean("afk.enabled", false) ? (long) (config.getDouble("afk.idle-minutes", 10) * 60000) : 0,
+                config.getLong("afk.sample-interval-seconds", 5) * 1000,
+                AfkTracker.Action.valueOf(config.getString("afk.action", "end").toUpperCase(Locale.ROOT)));
+        AfkTracker.Handler afkHandler = toggles.afkHandler(afkTracker);
+        scheduler.runGlobalTimer(() -> afkTracker.tick(afkHandler), 20, 20);
+    }
+
+    // A server whose only players are the staff, all online, and whose events nobody listens to
+    private Server fakeServer() {
+        PluginManager pluginManager = FakeLuckPerms.stub(PluginManager.class, (method, args) -> {
+            if (method.equals("callEvent")) {
+                return null;
+            }
+            throw new UnsupportedOperationException(method);
+        });
+        staffPlayers = new Player[staff];
+        for (int member = 0; member < staff; member++) {
+            UUID uuid = staffIds[member];
+            String name = "Staff" + member;
+            Location location = new Location(null, member, 64, 0);
+            staffPlayers[member] = FakeLuckPerms.stub(Player.class, (method, args) -> {
+                switch (method) {
+                    case "getUniqueId":
+                        return uuid;
+                    case "getName":
+                        return name;
+                    case "hasPermission":
+                    case "isOnline":
+                        return true;
+                    case "getLocation":
+                        return location;
+                    case "sendMessage":
+                        return null; // rendered, but there is no one to send it to
+                    default:
+                        throw new UnsupportedOperationException(method);
+                }
+            });
+            online.put(uuid, staffPlayers[member]);
+        }
+        return FakeLuckPerms.stub(Server.class, (method, args) -> {
+            switch (method) {
+                case "getPlayer":
+                    return args[0] instanceof UUID ? online.get(args[0]) : null;
+                case "getPluginManager":
+                    return pluginManager;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+    }
+
+    // The same choice as DutyPlugin.openStorage, without its fallbacks: a storage that fails to open fails the run
+    private void openStorage() throws IOException {
+        File yamlFile = new File(dataFolder, "dutydata.yml");
+        long flushInterval = TimeUnit.SECONDS.toMillis(config.getLong("persistence.flush-interval-seconds", 30));
+        int maxPendingWrites = config.getInt("persistence.max-pending-writes", 100);
+        if (storageType.equalsIgnoreCase("sqlite")) {
+            SqliteDutyStorage sqlite = new SqliteDutyStorage(new File(dataFolder, "dutydata.db"), logger, flushInterval,
+                    maxPendingWrites, config.getInt("storage.sqlite.pool-size", 4), metrics.timer(PluginMetrics.Timer.SAVE_DATA));
+            storage = sqlite;
+            sqlite.load(totals);
+            StorageMigrator.migrateYamlToSqlite(yamlFile, sqlite, totals, logger);
+        } else if (storageType.equalsIgnoreCase("sharded")) {
+            ShardedDutyStorage sharded = new ShardedDutyStorage(dataFolder, logger, flushInterval, maxPendingWrites,
+                    config.getInt("storage.sharded.max-resident-players", 2000),
+                    config.getInt("storage.sharded.leaderboard-size", 1000), metrics.timer(PluginMetrics.Timer.SAVE_DATA));
+            storage = sharded;
+            sharded.load(totals);
+            StorageMigrator.migrateYamlToShards(yamlFile, sharded, totals, logger);
+        } else {
+            storage = new YamlDutyStorage(yamlFile, logger, flushInterval, maxPendingWrites, metrics.timer(PluginMetrics.Timer.SAVE_DATA));
+            storage.load(totals);
+        }
+    }
+
+    // /duty <name> or /duty, as handleDutyCommand runs them
+    private void toggle(int member, Random random) {
+        Player player = staffPlayers[member];
+        if (sessions.isOnDuty(player.getUniqueId())) {
+            if (toggles.stop(player) != null) {
+                toggledOff++;
+            }
+            return;
+        }
+        DutyType type = dutyTypes.get(random.nextInt(dutyTypes.size()));
+        if (toggles.start(player, type.getName()) != null) {
+            toggledOn++;
+        }
+    }
+
+    // What onDisable does, timed as a whole since it blocks the main thread
+    private void disable() {
+        toggles.endAll();
+        scheduler.cancelAll();
+        webhookDispatcher.shutdown(5000);
+        groupQueue.shutdown(5000);
+        compactor.close();
+        storage.close();
+        rollupPersister.shutdown();
+        journal.close();
+        luckPerms.shutdown();
+        webhookEndpoint.stop();
+    }
+
+    private List<String> report(long[] tickNanos, long[] tickBytes, int tasksRun, long loadNanos, long shutdownNanos,
+                                IoCounters ioBefore, IoCounters ioAfter) {
+        long[] sortedNanos = tickNanos.clone();
+        long[] sortedBytes = tickBytes.clone();
+        Arrays.sort(sortedNanos);
+        Arrays.sort(sortedBytes);
+        long totalNanos = 0;
+        long totalBytes = 0;
+        int overBudget = 0;
+        for (int i = 0; i < ticks; i++) {
+            totalNanos += tickNanos[i];
+            totalBytes += tickBytes[i];
+            if (tickNanos[i] > TICK_NANOS) {
+                overBudget++;
+            }
+        }
+
+        print("Scenario %s: %d staff, %d historical players, %d ticks (%ds), %s storage%s",
+                scenario.name().toLowerCase(Locale.ROOT).replace('_', '-'), staff, historicalPlayers, ticks, ticks / 20,
+                storageType, pace ? "" : ", unpaced");
+        print("Toggles: %d on, %d off; main-thread tasks run: %d", toggledOn, toggledOff, tasksRun);
+        print("Tick time: p50 %.3fms, p95 %.3fms, p99 %.3fms, max %.3fms, mean %.3fms; over 50ms: %d",
+                millis(quantile(sortedNanos, 0.5)), millis(quantile(sortedNanos, 0.95)), millis(quantile(sortedNanos, 0.99)),
+                millis(sortedNanos[ticks - 1]), millis(totalNanos / ticks), overBudget);
+        print("Allocated per tick: p50 %.1fKB, p99 %.1fKB, max %.1fKB; total %.1fMB",
+                quantile(sortedBytes, 0.5) / 1024.0, quantile(sortedBytes, 0.99) / 1024.0,
+                sortedBytes[ticks - 1] / 1024.0, totalBytes / (1024.0 * 1024.0));
+        print("Load: %.1fms; shutdown: %.1fms", millis(loadNanos), millis(shutdownNanos));
+        if (ioBefore != null && ioAfter != null) {
+            print("Disk I/O: read %.1fKB, written %.1fKB", (ioAfter.readBytes - ioBefore.readBytes) / 1024.0,
+                    (ioAfter.writeBytes - ioBefore.writeBytes) / 1024.0);
+        } else {
+            print("Disk I/O: not available on this platform");
+        }
+        print("LuckPerms: %d modifyUser calls, %d changes applied, %d coalesced",
+                luckPerms.getModifyCalls(), groupQueue.getApplied(), groupQueue.getCoalesced());
+        print("Discord: %d requests (%d rate limited), %.1fKB sent, %d messages delivered, %d dropped",
+                webhookEndpoint.getRequests(), webhookEndpoint.getRateLimited(), webhookEndpoint.getBytesReceived() / 1024.0,
+                webhookDispatcher.getDelivered(), webhookDispatcher.getDropped());
+        for (String line : storage.describeStats()) {
+            print("%s", line);
+        }
+
+        List<String> failures = new ArrayList<>();
+        check(failures, "tick p99", millis(quantile(sortedNanos, 0.99)), maxTickP99Millis, "ms");
+        check(failures, "longest tick", millis(sortedNanos[ticks - 1]), maxTickMillis, "ms");
+        check(failures, "allocation p99 per tick", quantile(sortedBytes, 0.99) / 1024.0, maxAllocP99Kb, "KB");
+        check(failures, "shutdown", millis(shutdownNanos), maxShutdownMillis, "ms");
+        return failures;
+    }
+
+    private static void check(List<String> failures, String what, double value, double limit, String unit) {
+        if (value > limit) {
+            failures.add(String.format(Locale.ROOT, "%s was %.3f%s, the limit is %.3f%s", what, value, unit, limit, unit));
+        }
+    }
+
+    private static long quantile(long[] sorted, double quantile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static void print(String format, Object... args) {
+        System.out.println(String.format(Locale.ROOT, format, args));
+    }
+
+    // Bytes this process read from and wrote to storage, from /proc/self/io on Linux
+    private static class IoCounters {
+        long readBytes;
+        long writeBytes;
+
+        static IoCounters read() {
+            Path io = Paths.get("/proc/self/io");
+            if (!Files.isReadable(io)) {
+                return null;
+            }
+            IoCounters counters = new IoCounters();
+            try {
+                for (String line : Files.readAllLines(io)) {
+                    if (line.startsWith("read_bytes:")) {
+                        counters.readBytes = Long.parseLong(line.substring("read_bytes:".length()).trim());
+                    } else if (line.startsWith("write_bytes:")) {
+                        counters.writeBytes = Long.parseLong(line.substring("write_bytes:".length()).trim());
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                Logger.getLogger("DutyPlugin").log(Level.FINE, "Could not read /proc/self/io", e);
+                return null;
+            }
+            return counters;
+        }
+    }
+}
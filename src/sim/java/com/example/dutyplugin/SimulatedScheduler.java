@@ -0,0 +1,105 @@
+package com.example.dutyplugin;
+
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The simulation's main thread. Tasks handed to the global thread (or a player's thread, as
+ * there are no regions here) wait until the start of the next tick and are timed as part of
+ * it, like they would be on a server.
+ */
+class SimulatedScheduler implements TaskScheduler {
+
+    private final Thread mainThread;
+    private final Queue<Runnable> global = new ConcurrentLinkedQueue<>();
+    private final List<Timer> timers = new ArrayList<>(); // only touched by the main thread
+    private final ExecutorService async = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "DutyPlugin-Simulation-Async");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long tick;
+
+    public SimulatedScheduler(Thread mainThread) {
+        this.mainThread = mainThread;
+    }
+
+    @Override
+    public void runGlobal(Runnable task) {
+        global.add(task);
+    }
+
+    @Override
+    public void runForPlayer(Player player, Runnable task) {
+        global.add(task);
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        async.execute(task);
+    }
+
+    @Override
+    public void runGlobalTimer(Runnable task, long delayTicks, long periodTicks) {
+        timers.add(new Timer(task, tick + Math.max(1, delayTicks), Math.max(1, periodTicks)));
+    }
+
+    @Override
+    public boolean isGlobalThread() {
+        return Thread.currentThread() == mainThread;
+    }
+
+    @Override
+    public void cancelAll() {
+        timers.clear();
+        global.clear();
+        async.shutdown();
+        try {
+            async.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs everything due at the start of a tick; returns how many tasks ran
+    public int runTick() {
+        tick++;
+        int ran = 0;
+        for (Timer timer : timers) {
+            if (tick >= timer.next) {
+                timer.next = tick + timer.period;
+                timer.task.run();
+                ran++;
+            }
+        }
+        // Only what was queued before the tick started, as on a server
+        for (int queued = global.size(); queued > 0; queued--) {
+            Runnable task = global.poll();
+            if (task == null) {
+                break;
+            }
+            task.run();
+            ran++;
+        }
+        return ran;
+    }
+
+    private static class Timer {
+        final Runnable task;
+        final long period;
+        long next;
+
+        Timer(Runnable task, long next, long period) {
+            this.task = task;
+            this.next = next;
+            this.period = period;
+        }
+    }
+}
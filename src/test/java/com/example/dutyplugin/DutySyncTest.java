@@ -0,0 +1,228 @@
+package com.example.dutyplugin;
+
+import org.bukkit.entity.Player;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two servers syncing over loopback TCP, each with its own totals, sessions and state file.
+ * A peer that starts before the other is listening reconnects after a few seconds, so the
+ * waits here are generous.
+ */
+class DutySyncTest {
+
+    private static final String DUTY = "Staff";
+    private static final long WAIT_MILLIS = 20_000;
+
+    private Path dir;
+    private Server a;
+    private Server b;
+
+    @BeforeEach
+    void startServers() throws IOException {
+        dir = Files.createTempDirectory("duty-sync-test");
+        int portA = freePort();
+        int portB = freePort();
+        a = new Server("a", portA, portB);
+        b = new Server("b", portB, portA);
+        a.start();
+        b.start();
+    }
+
+    @AfterEach
+    void stopServers() throws IOException {
+        a.sync.close();
+        b.sync.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void concurrentIncrementsConverge() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        CountDownLatch go = new CountDownLatch(1);
+        Thread onA = new Thread(() -> addOneAtATime(a, uuid, go, 500));
+        Thread onB = new Thread(() -> addOneAtATime(b, uuid, go, 300));
+        onA.start();
+        onB.start();
+        go.countDown();
+        onA.join();
+        onB.join();
+
+        awaitTrue(() -> a.total(uuid) == 800 && b.total(uuid) == 800);
+    }
+
+    @Test
+    void resetEpochWinsOverStaleCounters() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        a.sync.add(uuid, DUTY, 40);
+        b.sync.add(uuid, DUTY, 60);
+        awaitTrue(() -> a.total(uuid) == 100 && b.total(uuid) == 100);
+        List<byte[]> stale = b.sync.fullState();
+
+        a.totals.reset(uuid, a.totals.ordinalOf(DUTY));
+        a.sync.reset(uuid, DUTY);
+        awaitTrue(() -> a.total(uuid) == 0 && b.total(uuid) == 0);
+
+        // B's counters from before the reset arrive again, as after a reconnect
+        for (byte[] batch : stale) {
+            a.sync.received(batch);
+        }
+        assertEquals(0, a.total(uuid));
+
+        b.sync.add(uuid, DUTY, 5);
+        awaitTrue(() -> a.total(uuid) == 5 && b.total(uuid) == 5);
+    }
+
+    @Test
+    void leaseMovesToTheServerThePlayerIsOnDutyOn() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        DutySession onA = new DutySession(DUTY, System.currentTimeMillis());
+        assertNull(a.sessions.tryStart(uuid, onA));
+        awaitTrue(() -> b.sync.leaseElsewhere(uuid) != null);
+        assertEquals("a", b.sync.leaseElsewhere(uuid).getServer());
+        assertNull(a.sync.leaseElsewhere(uuid));
+
+        assertTrue(a.sessions.end(uuid, onA));
+        awaitTrue(() -> b.sync.leaseElsewhere(uuid) == null);
+
+        assertNull(b.sessions.tryStart(uuid, new DutySession(DUTY, System.currentTimeMillis())));
+        awaitTrue(() -> a.sync.leaseElsewhere(uuid) != null);
+        assertEquals("b", a.sync.leaseElsewhere(uuid).getServer());
+        assertTrue(a.ended.isEmpty());
+        assertTrue(b.ended.isEmpty());
+    }
+
+    @Test
+    void refusesToSeedTimesThatWereAlreadyShared() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        a.sync.add(uuid, DUTY, 30);
+        awaitTrue(() -> b.total(uuid) == 30);
+        a.sync.close();
+        Files.delete(dir.resolve("a").resolve("sync-state.dat"));
+
+        // Its totals already hold what every server added, so seeding them again would double them
+        Server restarted = new Server("a", a.port, a.peerPort);
+        restarted.totals.set(uuid, restarted.totals.register(DUTY), 30);
+        assertThrows(IOException.class, restarted::start);
+        a = restarted;
+    }
+
+    private static void addOneAtATime(Server server, UUID uuid, CountDownLatch go, int times) {
+        try {
+            go.await();
+        } catch (InterruptedException e) {
+            return;
+        }
+        for (int i = 0; i < times; i++) {
+            server.sync.add(uuid, DUTY, 1);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(20);
+        }
+    }
+
+    private class Server {
+        final DutyTotals totals = new DutyTotals();
+        final SessionRegistry sessions = new SessionRegistry();
+        final List<String> ended = new CopyOnWriteArrayList<>(); // sessions ended because another server held the lease
+        final int port;
+        final int peerPort;
+        final DutySync sync;
+
+        Server(String id, int port, int peerPort) throws IOException {
+            this.port = port;
+            this.peerPort = peerPort;
+            File folder = dir.resolve(id).toFile();
+            folder.mkdirs();
+            TcpSyncTransport transport = new TcpSyncTransport("127.0.0.1:" + port,
+                    List.of("127.0.0.1:" + peerPort), "test-secret", Logger.getLogger("DutySyncTest." + id));
+            DutySync.Handler handler = new DutySync.Handler() {
+                @Override
+                public void endedElsewhere(UUID uuid, DutySession session, String server) {
+                    ended.add(uuid + " on " + server);
+                }
+
+                @Override
+                public void endRequested(UUID uuid, String server) {
+                }
+            };
+            sync = new DutySync(id, transport, totals, new MemoryStorage(), sessions, new InlineScheduler(), handler,
+                    Logger.getLogger("DutySyncTest." + id), new File(folder, "sync-state.dat"), 50, 5000, 1000);
+        }
+
+        void start() throws IOException {
+            sync.start();
+        }
+
+        long total(UUID uuid) {
+            int ordinal = totals.ordinalOf(DUTY);
+            return ordinal < 0 ? 0 : totals.get(uuid, ordinal);
+        }
+    }
+
+    // Every total is in DutyTotals, so there is nothing to write
+    private static class MemoryStorage implements DutyStorage {
+        @Override public void load(DutyTotals totals) {}
+        @Override public void sessionEnded(UUID uuid, String dutyName, long startTime, long endTime, long newTotal) {}
+        @Override public void totalReset(UUID uuid, String dutyName) {}
+        @Override public void playerReset(UUID uuid) {}
+        @Override public void dutyResetForAll(String dutyName) {}
+        @Override public void allReset() {}
+        @Override public void totalsSet(List<UUID> uuids, List<String> dutyNames, List<Long> totals) {}
+        @Override public CompletableFuture<Long> queryTotal(UUID uuid, String dutyName) { return CompletableFuture.completedFuture(0L); }
+        @Override public long getStoredBytes() { return 0; }
+        @Override public CompletableFuture<List<SessionRecord>> querySessions(UUID uuid, String dutyName, long from, long to) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        @Override public CompletableFuture<Void> whenWritten() { return CompletableFuture.completedFuture(null); }
+        @Override public int getPendingChanges() { return 0; }
+        @Override public List<String> describeStats() { return List.of(); }
+        @Override public void close() {}
+    }
+
+    // Runs everything straight away on the calling thread
+    private static class InlineScheduler implements TaskScheduler {
+        @Override public void runGlobal(Runnable task) { task.run(); }
+        @Override public void runForPlayer(Player player, Runnable task) { task.run(); }
+        @Override public void runAsync(Runnable task) { task.run(); }
+        @Override public void runGlobalTimer(Runnable task, long delayTicks, long periodTicks) {}
+        @Override public boolean isGlobalThread() { return true; }
+        @Override public void cancelAll() {}
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.dutyplugin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the dispatcher against a local stand-in for the Discord webhook, which answers with
+ * scripted responses and then 204s.
+ */
+class WebhookDispatcherTest {
+
+    private HttpServer server;
+    private final BlockingQueue<Request> received = new LinkedBlockingQueue<>();
+    private final Queue<Response> responses = new ConcurrentLinkedQueue<>();
+    private WebhookDispatcher dispatcher;
+
+    @BeforeEach
+    void startEndpoint() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/webhook", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        if (dispatcher != null) {
+            dispatcher.shutdown(1000);
+        }
+        server.stop(0);
+    }
+
+    @Test
+    void sendsUpToTenEmbedsPerRequest() throws Exception {
+        dispatcher = newDispatcher();
+        for (int i = 0; i < 25; i++) {
+            dispatcher.enqueue("message " + i, 1);
+        }
+        dispatcher.start();
+
+        assertEquals(10, embeds(take()));
+        assertEquals(10, embeds(take()));
+        assertEquals(5, embeds(take()));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        awaitTrue(() -> dispatcher.getDelivered() == 25);
+        assertEquals(3, dispatcher.getRequests());
+    }
+
+    @Test
+    void retriesAfterTheWaitA429Asks() throws Exception {
+        responses.add(new Response(429, "Retry-After", "0.3"));
+        dispatcher = newDispatcher();
+        dispatcher.enqueue("rate limited", 1);
+        dispatcher.start();
+
+        Request limited = take();
+        Request retried = take();
+        assertEquals(limited.body, retried.body);
+        assertTrue(retried.nanos - limited.nanos >= TimeUnit.MILLISECONDS.toNanos(300),
+                "retried after " + TimeUnit.NANOSECONDS.toMillis(retried.nanos - limited.nanos) + "ms");
+        awaitTrue(() -> dispatcher.getDelivered() == 1);
+        assertEquals(1, dispatcher.getRateLimitHits());
+        assertEquals(2, dispatcher.getRequests());
+    }
+
+    @Test
+    void waitsForAUsedUpBucketToReset() throws Exception {
+        responses.add(new Response(204, "X-RateLimit-Remaining", "0", "X-RateLimit-Reset-After", "0.3"));
+        dispatcher = newDispatcher();
+        for (int i = 0; i < 11; i++) {
+            dispatcher.enqueue("message " + i, 1);
+        }
+        dispatcher.start();
+
+        Request first = take();
+        Request second = take();
+        assertEquals(10, embeds(first));
+        assertEquals(1, embeds(second));
+        assertTrue(second.nanos - first.nanos >= TimeUnit.MILLISECONDS.toNanos(300),
+                "sent after " + TimeUnit.NANOSECONDS.toMillis(second.nanos - first.nanos) + "ms");
+        assertEquals(0, dispatcher.getRateLimitHits());
+    }
+
+    private WebhookDispatcher newDispatcher() {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/webhook";
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        return new WebhookDispatcher(url, client, 100, WebhookDispatcher.OverflowPolicy.DROP_OLDEST,
+                Logger.getLogger("WebhookDispatcherTest"), new LatencyHistogram());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        received.add(new Request(body, System.nanoTime()));
+        Response response = responses.poll();
+        if (response == null) {
+            response = new Response(204);
+        }
+        for (int i = 0; i < response.headers.length; i += 2) {
+            exchange.getResponseHeaders().set(response.headers[i], response.headers[i + 1]);
+        }
+        exchange.sendResponseHeaders(response.status, -1);
+        exchange.close();
+    }
+
+    private Request take() throws InterruptedException {
+        Request request = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(request, "no request reached the endpoint");
+        return request;
+    }
+
+    private static int embeds(Request request) {
+        int count = 0;
+        for (int i = request.body.indexOf("\"description\""); i >= 0; i = request.body.indexOf("\"description\"", i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    // Delivery is counted after the response arrives, so give the dispatcher thread a moment
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static class Request {
+        final String body;
+        final long nanos;
+
+        Request(String body, long nanos) {
+            this.body = body;
+            this.nanos = nanos;
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final String[] headers; // name, value, name, value...
+
+        Response(int status, String... headers) {
+            this.status = status;
+            this.headers = headers;
+        }
+    }
+}